@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Implements a static r-tree in a compact format, written by {@link StaticRTreeBuilder#writeCompact(File)}.
+ * <p>
+ * Unlike {@link StaticRTree}, each internal node is a single 16 byte record: its bounds quantized to 16 bits
+ * relative to the bounds of its parent, the index of its first child and its child count. Children are
+ * stored contiguously, so visiting a node touches one small region of memory. Quantized bounds are rounded
+ * outwards, so they always contain the exact bounds. Only the entries themselves, i.e. the leaves, store
+ * exact bounds, together with their id, offset and type.
+ * <p>
+ * The file format is big-endian:
+ * <pre>
+ * magic, version, entry count, node count, depth, maximum child count, root bounds (4)
+ * node records (4 per node): quantized min x|y, quantized max x|y, first child, child count|leaf flag
+ * entry records (7 per entry): min x, min y, max x, max y, id, offset, type
+ * </pre>
+ * Query results are entry indexes, numbered from 0 to {@link #getSize()} - 1.
+ */
+public class CompactRTree {
+	/** Magic number identifying the file format. */
+	static final int MAGIC = 0x52545632;
+
+	/** Version of the file format. */
+	static final int VERSION = 2;
+
+	/** Number of ints in the header. */
+	static final int HEADER_SIZE = 10;
+
+	/** Number of ints per node record. */
+	static final int NODE_SIZE = 4;
+
+	/** Number of ints per entry record. */
+	static final int ENTRY_SIZE = 7;
+
+	/** Flag marking nodes whose children are entries. */
+	static final int LEAF_FLAG = 0x80000000;
+
+	/** Largest quantized value. */
+	static final int QUANTIZED_MAX = 0xFFFF;
+
+	/** The number of entries. */
+	private int size;
+
+	/** The number of internal nodes. */
+	private int nodeCount;
+
+	/** The number of levels of internal nodes below the root. */
+	private int depth;
+
+	/** The maximum number of children of a node. */
+	private int maxChildCount;
+
+	/** The exact bounds of the root. */
+	private int rootMinX;
+	private int rootMinY;
+	private int rootMaxX;
+	private int rootMaxY;
+
+	/** The node records, if copied to the heap. */
+	private int[] nodeArray;
+
+	/** The entry records, if copied to the heap. */
+	private int[] entryArray;
+
+	/** The node records, if memory-mapped. */
+	private IntBuffer nodes;
+
+	/** The entry records, if memory-mapped. */
+	private IntBuffer entries;
+
+	/**
+	 * A traversal stack kept between queries, taken by one query at a time. Concurrent or nested queries
+	 * allocate their own.
+	 */
+	private final AtomicReference<int[]> stackCache = new AtomicReference<int[]>();
+
+
+	/**
+	 * Creates a new CompactRTree from the specified file, copying it to the heap.
+	 * @param file the file containing the r-tree.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public CompactRTree(File file) throws FileNotFoundException, IOException {
+		this(file, false);
+	}
+
+
+	/**
+	 * Creates a new CompactRTree from the specified file.
+	 * @param file the file containing the r-tree.
+	 * @param memoryMapped if <code>true</code> the file is memory-mapped and no heap copy is made.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public CompactRTree(File file, boolean memoryMapped) throws FileNotFoundException, IOException {
+		ByteBuffer data = FileBuffers.map(file);
+		long length = data.limit() / 4;
+		if ((length < HEADER_SIZE) || (data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)) {
+			throw new IOException("Invalid compact r-tree file: " + file);
+		}
+		size = data.getInt(8);
+		nodeCount = data.getInt(12);
+		depth = data.getInt(16);
+		maxChildCount = data.getInt(20);
+		rootMinX = data.getInt(24);
+		rootMinY = data.getInt(28);
+		rootMaxX = data.getInt(32);
+		rootMaxY = data.getInt(36);
+		if ((size < 0) || (nodeCount < 0) || (HEADER_SIZE + (long) nodeCount * NODE_SIZE
+				+ (long) size * ENTRY_SIZE > length)) {
+			throw new IOException("Invalid compact r-tree file: " + file);
+		}
+
+		int nodesStart = HEADER_SIZE * 4;
+		int entriesStart = nodesStart + nodeCount * NODE_SIZE * 4;
+		nodes = FileBuffers.section(data, nodesStart, nodeCount * NODE_SIZE * 4).asIntBuffer();
+		entries = FileBuffers.section(data, entriesStart, size * ENTRY_SIZE * 4).asIntBuffer();
+
+		// copy the records with bulk reads, so queries read arrays
+		if (!memoryMapped) {
+			nodeArray = new int[nodeCount * NODE_SIZE];
+			nodes.get(nodeArray);
+			entryArray = new int[size * ENTRY_SIZE];
+			entries.get(entryArray);
+			nodes = null;
+			entries = null;
+		}
+	}
+
+
+	/**
+	 * Gets an int of the node records.
+	 * @param position
+	 * @return
+	 */
+	private int node(int position) {
+		return (nodeArray != null) ? nodeArray[position] : nodes.get(position);
+	}
+
+
+	/**
+	 * Gets an int of the entry records.
+	 * @param position
+	 * @return
+	 */
+	private int entry(int position) {
+		return (entryArray != null) ? entryArray[position] : entries.get(position);
+	}
+
+
+	/**
+	 * Queries the tree for entries within a given rectangle.
+	 * @param queryRect region of interest.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(MapRect queryRect, int queryType, int[] results, int maxResults) {
+		return traverse(queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
+				queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for entries within a given rectangle.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults) {
+		return traverse(minX, minY, maxX, maxY, queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for entries within a given rectangle, passing each result to a visitor.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param visitor called for each result, may stop the query early.
+	 * @return the number of results visited.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, RTreeVisitor visitor) {
+		return traverse(minX, minY, maxX, maxY, queryType, null, 0, visitor);
+	}
+
+
+	/**
+	 * Performs a query on a stack taken from the cache, returning it afterwards.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private int traverse(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults,
+			RTreeVisitor visitor) {
+		if ((nodeCount == 0) || !MapRect.intersects(minX, minY, maxX, maxY, rootMinX, rootMinY, rootMaxX, rootMaxY)) {
+			return 0;
+		}
+
+		// each stack element is a node followed by its decoded bounds, with at most all children of a node
+		// on each level
+		int[] stack = stackCache.getAndSet(null);
+		if (stack == null) {
+			stack = new int[((depth + 1) * maxChildCount + 1) * 5];
+		}
+		try {
+			return traverse(stack, minX, minY, maxX, maxY, queryType, results, maxResults, visitor);
+		} finally {
+			stackCache.set(stack);
+		}
+	}
+
+
+	/**
+	 * Performs a query with an explicit stack of nodes and their decoded bounds.
+	 * @param stack
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private int traverse(int[] stack, int minX, int minY, int maxX, int maxY, int queryType, int[] results,
+			int maxResults, RTreeVisitor visitor) {
+		stack[0] = 0;
+		stack[1] = rootMinX;
+		stack[2] = rootMinY;
+		stack[3] = rootMaxX;
+		stack[4] = rootMaxY;
+		int stackSize = 5;
+
+		int resultsIndex = 0;
+		while (stackSize > 0) {
+			stackSize -= 5;
+			int record = stack[stackSize] * NODE_SIZE;
+			int parentMinX = stack[stackSize + 1];
+			int parentMinY = stack[stackSize + 2];
+			int parentMaxX = stack[stackSize + 3];
+			int parentMaxY = stack[stackSize + 4];
+			int firstChild = node(record + 2);
+			int childCount = node(record + 3);
+
+			if ((childCount & LEAF_FLAG) != 0) {
+				// test the exact bounds of entries
+				int end = firstChild + (childCount & ~LEAF_FLAG);
+				for (int entry = firstChild; entry < end; entry++) {
+					int e = entry * ENTRY_SIZE;
+					if (MapRect.intersects(minX, minY, maxX, maxY,
+							entry(e), entry(e + 1), entry(e + 2), entry(e + 3))
+							&& ((queryType == -1) || (entry(e + 6) == queryType))) {
+						if (results != null) {
+							if (resultsIndex >= maxResults) {
+								return resultsIndex;
+							}
+							results[resultsIndex] = entry;
+						}
+						resultsIndex++;
+						if ((visitor != null) && !visitor.visit(entry)) {
+							return resultsIndex;
+						}
+					}
+				}
+			} else {
+				// decode the bounds of child nodes relative to this node
+				for (int child = firstChild + childCount - 1; child >= firstChild; child--) {
+					int c = child * NODE_SIZE;
+					int low = node(c);
+					int high = node(c + 1);
+					int childMinX = decodeMin(parentMinX, parentMaxX, low >>> 16);
+					int childMinY = decodeMin(parentMinY, parentMaxY, low & QUANTIZED_MAX);
+					int childMaxX = decodeMax(parentMinX, parentMaxX, high >>> 16);
+					int childMaxY = decodeMax(parentMinY, parentMaxY, high & QUANTIZED_MAX);
+					if (MapRect.intersects(minX, minY, maxX, maxY, childMinX, childMinY, childMaxX, childMaxY)) {
+						stack[stackSize] = child;
+						stack[stackSize + 1] = childMinX;
+						stack[stackSize + 2] = childMinY;
+						stack[stackSize + 3] = childMaxX;
+						stack[stackSize + 4] = childMaxY;
+						stackSize += 5;
+					}
+				}
+			}
+		}
+		return resultsIndex;
+	}
+
+
+	/**
+	 * Quantizes a minimum coordinate relative to a range, rounding down.
+	 * @param rangeMin
+	 * @param rangeMax
+	 * @param value
+	 * @return
+	 */
+	static int encodeMin(int rangeMin, int rangeMax, int value) {
+		long range = (long) rangeMax - rangeMin;
+		if (range <= 0) {
+			return 0;
+		}
+		long quantized = ((long) value - rangeMin) * QUANTIZED_MAX / range;
+		return (int) Math.max(0, Math.min(QUANTIZED_MAX, quantized));
+	}
+
+
+	/**
+	 * Quantizes a maximum coordinate relative to a range, rounding up.
+	 * @param rangeMin
+	 * @param rangeMax
+	 * @param value
+	 * @return
+	 */
+	static int encodeMax(int rangeMin, int rangeMax, int value) {
+		long range = (long) rangeMax - rangeMin;
+		if (range <= 0) {
+			return QUANTIZED_MAX;
+		}
+		long quantized = (((long) value - rangeMin) * QUANTIZED_MAX + range - 1) / range;
+		return (int) Math.max(0, Math.min(QUANTIZED_MAX, quantized));
+	}
+
+
+	/**
+	 * Decodes a quantized minimum coordinate, never exceeding the original value.
+	 * @param rangeMin
+	 * @param rangeMax
+	 * @param quantized
+	 * @return
+	 */
+	static int decodeMin(int rangeMin, int rangeMax, int quantized) {
+		return (int) (rangeMin + quantized * ((long) rangeMax - rangeMin) / QUANTIZED_MAX);
+	}
+
+
+	/**
+	 * Decodes a quantized maximum coordinate, never falling below the original value.
+	 * @param rangeMin
+	 * @param rangeMax
+	 * @param quantized
+	 * @return
+	 */
+	static int decodeMax(int rangeMin, int rangeMax, int quantized) {
+		return (int) (rangeMin + (quantized * ((long) rangeMax - rangeMin) + QUANTIZED_MAX - 1) / QUANTIZED_MAX);
+	}
+
+
+	/**
+	 * Gets the ID of the specified entry.
+	 * @param index
+	 * @return
+	 */
+	public int getId(int index) {
+		return entry(index * ENTRY_SIZE + 4);
+	}
+
+
+	/**
+	 * Gets the offset of the specified entry.
+	 * @param index
+	 * @return
+	 */
+	public int getOffset(int index) {
+		return entry(index * ENTRY_SIZE + 5);
+	}
+
+
+	/**
+	 * Gets the type of the specified entry.
+	 * @param index
+	 * @return
+	 */
+	public int getType(int index) {
+		return entry(index * ENTRY_SIZE + 6);
+	}
+
+
+	/**
+	 * Gets the bounds of the specified entry.
+	 * @param index
+	 * @return
+	 */
+	public MapRect getBounds(int index) {
+		int e = index * ENTRY_SIZE;
+		return new MapRect(entry(e), entry(e + 1), entry(e + 2), entry(e + 3));
+	}
+
+
+	/**
+	 * Gets the bounds of the specified entry without allocating.
+	 * @param index
+	 * @param result array receiving minX, minY, maxX and maxY.
+	 */
+	public void getBounds(int index, int[] result) {
+		int e = index * ENTRY_SIZE;
+		result[0] = entry(e);
+		result[1] = entry(e + 1);
+		result[2] = entry(e + 2);
+		result[3] = entry(e + 3);
+	}
+
+
+	/**
+	 * Gets the min point, i.e. (minX, minY), of the specified entry.
+	 * @param index
+	 * @return
+	 */
+	public MapPoint getPoint(int index) {
+		return new MapPoint(entry(index * ENTRY_SIZE), entry(index * ENTRY_SIZE + 1));
+	}
+
+
+	/**
+	 * Gets the number of entries in the tree.
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Gets the number of internal nodes in the tree.
+	 * @return
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.util.Arrays;
+
+
+/**
+ * Binary min-heap of indexes keyed by distance.
+ * <p>
+ * To keep the object count low, parallel arrays are used instead of entry objects.
+ */
+class DistanceHeap {
+	/** Initial capacity of the heap. */
+	private final static int INITIAL_CAPACITY = 64;
+
+	/** The distance of each entry. */
+	private double[] distances = new double[INITIAL_CAPACITY];
+
+	/** The index of each entry. */
+	private int[] indexes = new int[INITIAL_CAPACITY];
+
+	/** The number of entries in the heap. */
+	private int size;
+
+
+	/**
+	 * Adds an entry to the heap.
+	 * @param index
+	 * @param distance
+	 */
+	public void push(int index, double distance) {
+		if (size == indexes.length) {
+			distances = Arrays.copyOf(distances, size * 2);
+			indexes = Arrays.copyOf(indexes, size * 2);
+		}
+
+		// sift up
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (distances[parent] <= distance) {
+				break;
+			}
+			distances[i] = distances[parent];
+			indexes[i] = indexes[parent];
+			i = parent;
+		}
+		distances[i] = distance;
+		indexes[i] = index;
+	}
+
+
+	/**
+	 * Gets the index of the entry with the smallest distance.
+	 * @return
+	 */
+	public int peekIndex() {
+		return indexes[0];
+	}
+
+
+	/**
+	 * Gets the smallest distance.
+	 * @return
+	 */
+	public double peekDistance() {
+		return distances[0];
+	}
+
+
+	/**
+	 * Removes the entry with the smallest distance.
+	 */
+	public void pop() {
+		size--;
+		if (size == 0) {
+			return;
+		}
+
+		// sift the last entry down from the top
+		double distance = distances[size];
+		int index = indexes[size];
+		int i = 0;
+		while (true) {
+			int child = i * 2 + 1;
+			if (child >= size) {
+				break;
+			}
+			if ((child + 1 < size) && (distances[child + 1] < distances[child])) {
+				child++;
+			}
+			if (distance <= distances[child]) {
+				break;
+			}
+			distances[i] = distances[child];
+			indexes[i] = indexes[child];
+			i = child;
+		}
+		distances[i] = distance;
+		indexes[i] = index;
+	}
+
+
+	/**
+	 * Tests if the heap is empty.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		size = 0;
+	}
+}
\ No newline at end of file
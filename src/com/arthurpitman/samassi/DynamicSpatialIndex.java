@@ -0,0 +1,715 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.util.Arrays;
+
+
+/**
+ * Implements a mutable spatial hash for map data which changes frequently, such as moving objects.
+ * <p>
+ * Entries are filed under the grid cell containing their min point, and cells are hashed into buckets of
+ * doubly linked lists, so insert, remove and move take constant time. Queries visit the cells covering the
+ * query rectangle, extended by the size of the largest entry, and test each entry with
+ * {@link MapRect#intersects(int, int, int, int, int, int, int, int)}. Entry sizes are counted in power of 2
+ * classes, so the largest size shrinks again when large entries are removed or moved.
+ * <p>
+ * To keep the object count low, arrays are used. Entries are addressed by the index returned by
+ * {@link #insert(int, int, int, int, int, int)}, which stays valid until the entry is removed. This class is
+ * not thread-safe.
+ */
+public class DynamicSpatialIndex {
+	/** Default cell size, as a power of 2 in map units. */
+	public static final int DEFAULT_CELL_SHIFT = 16;
+
+	/** Marks a free index or the end of a list. */
+	private static final int NONE = -1;
+
+	/** Initial capacity of the entry arrays. */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/** Cell size as a power of 2. */
+	private final int cellShift;
+
+	/** Number of cell columns, covering the map width. */
+	private final int columnCount;
+
+	/** The number of entries. */
+	private int size;
+
+	/** The number of indexes in use or on the free list. */
+	private int used;
+
+	/** First free index, linked through {@link #next}. */
+	private int free = NONE;
+
+	/** The id of each entry. */
+	private int[] ids = new int[INITIAL_CAPACITY];
+
+	/** The type of each entry. */
+	private int[] types = new int[INITIAL_CAPACITY];
+
+	/** The bounds of each entry. */
+	private int[] bounds = new int[INITIAL_CAPACITY * 4];
+
+	/** The cell column and row of each entry, {@link #NONE} for free indexes. */
+	private int[] columns = new int[INITIAL_CAPACITY];
+	private int[] rows = new int[INITIAL_CAPACITY];
+
+	/** Next and previous entry in the same bucket. */
+	private int[] next = new int[INITIAL_CAPACITY];
+	private int[] previous = new int[INITIAL_CAPACITY];
+
+	/** First entry of each bucket. */
+	private int[] buckets;
+	private int bucketMask;
+
+	/** The number of entries in each width and height class, class c covering sizes below 2^c. */
+	private final int[] widthCounts = new int[32];
+	private final int[] heightCounts = new int[32];
+
+	/** The largest width and height of any entry, rounded up to its class, by which queries are extended. */
+	private int maxWidth;
+	private int maxHeight;
+
+	/** Whether the largest class may have emptied, so {@link #maxWidth} and {@link #maxHeight} are stale. */
+	private boolean extentsDirty;
+
+
+	/**
+	 * Creates a new DynamicSpatialIndex with the default cell size.
+	 */
+	public DynamicSpatialIndex() {
+		this(DEFAULT_CELL_SHIFT);
+	}
+
+
+	/**
+	 * Creates a new DynamicSpatialIndex.
+	 * @param cellShift cell size as a power of 2 in map units, ideally close to the size of typical queries.
+	 */
+	public DynamicSpatialIndex(int cellShift) {
+		if ((cellShift < 4) || (cellShift > 28)) {
+			throw new IllegalArgumentException("Cell shift must be between 4 and 28: " + cellShift);
+		}
+		this.cellShift = cellShift;
+		columnCount = MapPoint.BASE >> cellShift;
+		buckets = new int[INITIAL_CAPACITY];
+		bucketMask = INITIAL_CAPACITY - 1;
+		Arrays.fill(buckets, NONE);
+	}
+
+
+	/**
+	 * Inserts an entry.
+	 * @param id
+	 * @param type
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return the index of the entry.
+	 */
+	public int insert(int id, int type, int minX, int minY, int maxX, int maxY) {
+		int index;
+		if (free != NONE) {
+			index = free;
+			free = next[index];
+		} else {
+			if (used == ids.length) {
+				grow();
+			}
+			index = used++;
+		}
+
+		ids[index] = id;
+		types[index] = type;
+		setBounds(index, minX, minY, maxX, maxY);
+		addExtent(index);
+		columns[index] = column(minX);
+		rows[index] = row(minY);
+		link(index);
+
+		size++;
+		if (size > buckets.length) {
+			rehash(buckets.length * 2);
+		}
+		return index;
+	}
+
+
+	/**
+	 * Removes an entry.
+	 * @param index
+	 */
+	public void remove(int index) {
+		checkIndex(index);
+		removeExtent(index);
+		unlink(index);
+		columns[index] = NONE;
+		next[index] = free;
+		free = index;
+		size--;
+	}
+
+
+	/**
+	 * Moves an entry to new bounds.
+	 * @param index
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	public void move(int index, int minX, int minY, int maxX, int maxY) {
+		checkIndex(index);
+		removeExtent(index);
+		setBounds(index, minX, minY, maxX, maxY);
+		addExtent(index);
+
+		// only relink if the entry changed cell
+		int column = column(minX);
+		int row = row(minY);
+		if ((column != columns[index]) || (row != rows[index])) {
+			unlink(index);
+			columns[index] = column;
+			rows[index] = row;
+			link(index);
+		}
+	}
+
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		size = 0;
+		used = 0;
+		free = NONE;
+		maxWidth = 0;
+		maxHeight = 0;
+		extentsDirty = false;
+		Arrays.fill(widthCounts, 0);
+		Arrays.fill(heightCounts, 0);
+		Arrays.fill(buckets, NONE);
+	}
+
+
+	/**
+	 * Queries the index for entries within a given rectangle.
+	 * @param queryRect region of interest.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(MapRect queryRect, int queryType, int[] results, int maxResults) {
+		return search(queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
+				queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the index for entries within a given rectangle.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults) {
+		return search(minX, minY, maxX, maxY, queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the index for entries within a given rectangle, passing each result to a visitor.
+	 * <p>
+	 * The index must not be changed by the visitor.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param visitor called for each result, may stop the query early.
+	 * @return the number of results visited.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, RTreeVisitor visitor) {
+		return search(minX, minY, maxX, maxY, queryType, null, 0, visitor);
+	}
+
+
+	/**
+	 * Finds the entry closest to a point.
+	 * @param x
+	 * @param y
+	 * @param maxDistance maximum distance in map units.
+	 * @param queryType type restriction, -1 for none.
+	 * @return the index of the closest entry, or -1 if there is none within the maximum distance.
+	 */
+	public int nearest(final int x, final int y, int maxDistance, int queryType) {
+		final long[] best = { (long) maxDistance * maxDistance, -1 };
+		search((x - maxDistance) & MapPoint.MASK, y - maxDistance, (x + maxDistance) & MapPoint.MASK,
+				y + maxDistance, queryType, null, 0, new RTreeVisitor() {
+			@Override
+			public boolean visit(int index) {
+				long distance = distanceSquared(x, y, index);
+				if (distance <= best[0]) {
+					best[0] = distance;
+					best[1] = index;
+				}
+				return true;
+			}
+		});
+		return (int) best[1];
+	}
+
+
+	/**
+	 * Visits the cells which may contain entries intersecting a rectangle.
+	 * <p>
+	 * Cells are visited in a wrapped range of columns. Entries are filed under the cell of their min point,
+	 * so the range starts one maximum entry size before the rectangle. Several cells may share a bucket, so
+	 * only entries of the visited cell are tested, and no entry is returned twice.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private int search(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults,
+			RTreeVisitor visitor) {
+		if (size == 0) {
+			return 0;
+		}
+		if (extentsDirty) {
+			updateExtents();
+		}
+
+		// scan everything if there are more cells than entries
+		long width = ((minX <= maxX) ? (long) maxX - minX : (long) maxX + MapPoint.BASE - minX) + maxWidth;
+		int firstColumn = column((int) (minX - (long) maxWidth) & MapPoint.MASK);
+		// within a cell of the full width, both ends may fall in the same column although all are covered
+		int columnSpan = (width + (1 << cellShift) >= MapPoint.BASE) ? columnCount
+				: (((column(maxX) - firstColumn) & (columnCount - 1)) + 1);
+		int firstRow = row(Math.max(minY - maxHeight, 0));
+		int lastRow = row(Math.max(maxY, 0));
+		if ((long) columnSpan * (lastRow - firstRow + 1) > used) {
+			return scan(minX, minY, maxX, maxY, queryType, results, maxResults, visitor);
+		}
+
+		int resultsIndex = 0;
+		for (int c = 0; c < columnSpan; c++) {
+			int column = (firstColumn + c) & (columnCount - 1);
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int index = buckets[hash(column, row)]; index != NONE; index = next[index]) {
+					if ((columns[index] != column) || (rows[index] != row)
+							|| !matches(index, minX, minY, maxX, maxY, queryType)) {
+						continue;
+					}
+					if (results != null) {
+						if (resultsIndex >= maxResults) {
+							return resultsIndex;
+						}
+						results[resultsIndex] = index;
+					}
+					resultsIndex++;
+					if ((visitor != null) && !visitor.visit(index)) {
+						return resultsIndex;
+					}
+				}
+			}
+		}
+		return resultsIndex;
+	}
+
+
+	/**
+	 * Tests every entry, for queries covering more cells than there are entries.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private int scan(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults,
+			RTreeVisitor visitor) {
+		int resultsIndex = 0;
+		for (int index = 0; index < used; index++) {
+			if ((columns[index] == NONE) || !matches(index, minX, minY, maxX, maxY, queryType)) {
+				continue;
+			}
+			if (results != null) {
+				if (resultsIndex >= maxResults) {
+					return resultsIndex;
+				}
+				results[resultsIndex] = index;
+			}
+			resultsIndex++;
+			if ((visitor != null) && !visitor.visit(index)) {
+				return resultsIndex;
+			}
+		}
+		return resultsIndex;
+	}
+
+
+	/**
+	 * Tests if an entry matches a query.
+	 * @param index
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @return
+	 */
+	private boolean matches(int index, int minX, int minY, int maxX, int maxY, int queryType) {
+		int b = index * 4;
+		return ((queryType == -1) || (types[index] == queryType))
+				&& MapRect.intersects(minX, minY, maxX, maxY, bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+	}
+
+
+	/**
+	 * Gets the squared distance in map units from a point to the bounds of an entry.
+	 * @param x
+	 * @param y
+	 * @param index
+	 * @return
+	 */
+	private long distanceSquared(int x, int y, int index) {
+		int b = index * 4;
+		int minX = bounds[b];
+		int minY = bounds[b + 1];
+		int maxX = bounds[b + 2];
+		int maxY = bounds[b + 3];
+
+		int closestY = (y < minY) ? minY : ((y > maxY) ? maxY : y);
+		long deltaY = closestY - y;
+		long deltaX = 0;
+		if (!MapRect.contains(minX, minY, maxX, maxY, x, closestY)) {
+			deltaX = Math.min(Math.abs(wrapDelta(minX - x)), Math.abs(wrapDelta(maxX - x)));
+		}
+		return deltaX * deltaX + deltaY * deltaY;
+	}
+
+
+	/**
+	 * Wraps a difference of x coordinates to the shorter way around the map.
+	 * @param delta
+	 * @return
+	 */
+	private static int wrapDelta(int delta) {
+		return (delta << 2) >> 2;
+	}
+
+
+	/**
+	 * Gets the cell column of an x coordinate.
+	 * @param x
+	 * @return
+	 */
+	private int column(int x) {
+		return (x & MapPoint.MASK) >> cellShift;
+	}
+
+
+	/**
+	 * Gets the cell row of a y coordinate.
+	 * @param y
+	 * @return
+	 */
+	private int row(int y) {
+		return y >> cellShift;
+	}
+
+
+	/**
+	 * Hashes a cell to a bucket.
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	private int hash(int column, int row) {
+		int h = column * 0x9E3779B9 + row * 0x85EBCA6B;
+		return (h ^ (h >>> 15)) & bucketMask;
+	}
+
+
+	/**
+	 * Sets the bounds of an entry.
+	 * @param index
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	private void setBounds(int index, int minX, int minY, int maxX, int maxY) {
+		int b = index * 4;
+		bounds[b] = minX;
+		bounds[b + 1] = minY;
+		bounds[b + 2] = maxX;
+		bounds[b + 3] = maxY;
+	}
+
+
+	/**
+	 * Counts the size of an entry, growing the largest entry size if necessary.
+	 * @param index
+	 */
+	private void addExtent(int index) {
+		int widthClass = widthClass(index);
+		int heightClass = heightClass(index);
+		widthCounts[widthClass]++;
+		heightCounts[heightClass]++;
+		maxWidth = Math.max(maxWidth, classExtent(widthClass));
+		maxHeight = Math.max(maxHeight, classExtent(heightClass));
+	}
+
+
+	/**
+	 * Uncounts the size of an entry, marking the largest entry size stale if its class emptied.
+	 * @param index
+	 */
+	private void removeExtent(int index) {
+		int widthClass = widthClass(index);
+		int heightClass = heightClass(index);
+		if ((--widthCounts[widthClass] == 0) && (classExtent(widthClass) == maxWidth)) {
+			extentsDirty = true;
+		}
+		if ((--heightCounts[heightClass] == 0) && (classExtent(heightClass) == maxHeight)) {
+			extentsDirty = true;
+		}
+	}
+
+
+	/**
+	 * Recomputes the largest entry size from the highest classes in use.
+	 */
+	private void updateExtents() {
+		maxWidth = classExtent(highestClass(widthCounts));
+		maxHeight = classExtent(highestClass(heightCounts));
+		extentsDirty = false;
+	}
+
+
+	/**
+	 * Gets the highest class in use.
+	 * @param counts
+	 * @return the class, or 0 if none is in use.
+	 */
+	private static int highestClass(int[] counts) {
+		for (int c = counts.length - 1; c > 0; c--) {
+			if (counts[c] != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+
+	/**
+	 * Gets the width class of an entry.
+	 * @param index
+	 * @return
+	 */
+	private int widthClass(int index) {
+		int b = index * 4;
+		return 32 - Integer.numberOfLeadingZeros((bounds[b + 2] - bounds[b]) & MapPoint.MASK);
+	}
+
+
+	/**
+	 * Gets the height class of an entry.
+	 * @param index
+	 * @return
+	 */
+	private int heightClass(int index) {
+		int b = index * 4;
+		return 32 - Integer.numberOfLeadingZeros(Math.max(bounds[b + 3] - bounds[b + 1], 0));
+	}
+
+
+	/**
+	 * Gets the largest size in a class.
+	 * @param sizeClass
+	 * @return
+	 */
+	private static int classExtent(int sizeClass) {
+		return (int) ((1L << sizeClass) - 1);
+	}
+
+
+	/**
+	 * Links an entry into the bucket of its cell.
+	 * @param index
+	 */
+	private void link(int index) {
+		int bucket = hash(columns[index], rows[index]);
+		int head = buckets[bucket];
+		previous[index] = NONE;
+		next[index] = head;
+		if (head != NONE) {
+			previous[head] = index;
+		}
+		buckets[bucket] = index;
+	}
+
+
+	/**
+	 * Unlinks an entry from the bucket of its cell.
+	 * @param index
+	 */
+	private void unlink(int index) {
+		if (previous[index] != NONE) {
+			next[previous[index]] = next[index];
+		} else {
+			buckets[hash(columns[index], rows[index])] = next[index];
+		}
+		if (next[index] != NONE) {
+			previous[next[index]] = previous[index];
+		}
+	}
+
+
+	/**
+	 * Changes the number of buckets, relinking all entries.
+	 * @param bucketCount a power of 2.
+	 */
+	private void rehash(int bucketCount) {
+		buckets = new int[bucketCount];
+		bucketMask = bucketCount - 1;
+		Arrays.fill(buckets, NONE);
+		for (int index = 0; index < used; index++) {
+			if (columns[index] != NONE) {
+				link(index);
+			}
+		}
+	}
+
+
+	/**
+	 * Doubles the capacity of the entry arrays.
+	 */
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		types = Arrays.copyOf(types, capacity);
+		bounds = Arrays.copyOf(bounds, capacity * 4);
+		columns = Arrays.copyOf(columns, capacity);
+		rows = Arrays.copyOf(rows, capacity);
+		next = Arrays.copyOf(next, capacity);
+		previous = Arrays.copyOf(previous, capacity);
+	}
+
+
+	/**
+	 * Checks that an index refers to an entry.
+	 * @param index
+	 */
+	private void checkIndex(int index) {
+		if ((index < 0) || (index >= used) || (columns[index] == NONE)) {
+			throw new IllegalArgumentException("Invalid index: " + index);
+		}
+	}
+
+
+	/**
+	 * Gets the ID of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getId(int index) {
+		return ids[index];
+	}
+
+
+	/**
+	 * Gets the type of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getType(int index) {
+		return types[index];
+	}
+
+
+	/**
+	 * Gets the bounds of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public MapRect getBounds(int index) {
+		int b = index * 4;
+		return new MapRect(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+	}
+
+
+	/**
+	 * Gets the bounds of the specified index without allocating.
+	 * @param index
+	 * @param result array receiving minX, minY, maxX and maxY.
+	 */
+	public void getBounds(int index, int[] result) {
+		int b = index * 4;
+		result[0] = bounds[b];
+		result[1] = bounds[b + 1];
+		result[2] = bounds[b + 2];
+		result[3] = bounds[b + 3];
+	}
+
+
+	/**
+	 * Gets the min x coordinate of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getMinX(int index) {
+		return bounds[index * 4];
+	}
+
+
+	/**
+	 * Gets the min y coordinate of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getMinY(int index) {
+		return bounds[index * 4 + 1];
+	}
+
+
+	/**
+	 * Gets the number of entries.
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Maps the big-endian files read by the indexes of this package.
+ */
+final class FileBuffers {
+
+	private FileBuffers() {
+	}
+
+
+	/**
+	 * Memory-maps a file read-only.
+	 * @param file
+	 * @return a big-endian buffer of the whole file.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	static ByteBuffer map(File file) throws FileNotFoundException, IOException {
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			FileChannel channel = inputStream.getChannel();
+			MappedByteBuffer mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mappedBuffer.order(ByteOrder.BIG_ENDIAN);
+			return mappedBuffer;
+		} finally {
+			// a mapping remains valid after its channel is closed
+			inputStream.close();
+		}
+	}
+
+
+	/**
+	 * Gets a big-endian section of a byte buffer.
+	 * @param data the buffer containing the whole file.
+	 * @param start the start of the section in bytes.
+	 * @param length the length of the section in bytes.
+	 * @return a buffer sharing content with the specified buffer, indexed from the start of the section.
+	 */
+	static ByteBuffer section(ByteBuffer data, int start, int length) {
+		data.limit(start + length);
+		data.position(start);
+		ByteBuffer section = data.slice();
+		section.order(ByteOrder.BIG_ENDIAN);
+		data.clear();
+		return section;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Implements a static r-tree which stays on disk, reading the same file format as {@link StaticRTree}.
+ * <p>
+ * The file is read in fixed-size blocks on demand and kept in a bounded LRU block cache, so memory use is
+ * set by the cache size rather than by the size of the tree. Queries are synchronized, as they share the
+ * cache.
+ */
+public class PagedStaticRTree {
+	/** Default block size in bytes. */
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	/** Default cache size in bytes. */
+	public static final int DEFAULT_CACHE_SIZE = 1 << 20;
+
+	/** The file containing the r-tree. */
+	private final RandomAccessFile file;
+
+	/** The channel used to read blocks. */
+	private final FileChannel channel;
+
+	/** The block cache. */
+	private final BlockCache cache;
+
+	/** The number of entries in the r-tree. */
+	private final int size;
+
+	/** The tables, read through the block cache. */
+	private final RTreeTables tables;
+
+
+	/**
+	 * LRU cache of file blocks, indexed by an open addressing hash table.
+	 * <p>
+	 * To keep the object count low, cached blocks live in slots which are reused on eviction, and the LRU
+	 * order is a doubly linked list of slot numbers.
+	 */
+	private class BlockCache extends RTreeTables.Source {
+		/** Marks an empty hash table position or list end. */
+		private static final int NONE = -1;
+
+		/**
+		 * Number of recently accessed blocks read without a lookup, a power of 2. A traversal reads each node
+		 * from several tables, so this covers the blocks of one node.
+		 */
+		private static final int RECENT_SIZE = 8;
+
+		/** Number of ints per block, a power of 2. */
+		private final int blockInts;
+
+		/** The block stored in each slot. */
+		private final int[] keys;
+
+		/** The data of each slot. */
+		private final int[][] blocks;
+
+		/** Next and previous slot in LRU order, most recently used first. */
+		private final int[] next;
+		private final int[] previous;
+
+		/** Hash table of slots. */
+		private final int[] table;
+		private final int tableMask;
+
+		/** Recently accessed blocks and their data, by block number modulo {@link #RECENT_SIZE}. */
+		private final int[] recentBlocks = new int[RECENT_SIZE];
+		private final int[][] recentData = new int[RECENT_SIZE][];
+
+		/** Buffer for reading blocks. */
+		private final ByteBuffer readBuffer;
+
+		private int head = NONE;
+		private int tail = NONE;
+		private int count;
+
+		private int hitCount;
+		private int missCount;
+
+
+		/**
+		 * Creates a new BlockCache.
+		 * @param blockSize size of blocks in bytes.
+		 * @param capacity maximum number of cached blocks.
+		 */
+		public BlockCache(int blockSize, int capacity) {
+			blockInts = blockSize / 4;
+			keys = new int[capacity];
+			blocks = new int[capacity][];
+			next = new int[capacity];
+			previous = new int[capacity];
+
+			int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+			table = new int[tableSize];
+			tableMask = tableSize - 1;
+			for (int i = 0; i < tableSize; i++) {
+				table[i] = NONE;
+			}
+			for (int i = 0; i < RECENT_SIZE; i++) {
+				recentBlocks[i] = NONE;
+			}
+
+			readBuffer = ByteBuffer.allocate(blockSize);
+			readBuffer.order(ByteOrder.BIG_ENDIAN);
+		}
+
+
+		/**
+		 * Gets a block, reading it from the file if it isn't cached.
+		 * @param block
+		 * @return
+		 */
+		public int[] get(int block) {
+			int position = find(block);
+			if (position != NONE) {
+				hitCount++;
+				int slot = table[position];
+				if (slot != head) {
+					unlink(slot);
+					linkFirst(slot);
+				}
+				return blocks[slot];
+			}
+
+			missCount++;
+			int slot;
+			if (count < keys.length) {
+				slot = count++;
+				blocks[slot] = new int[blockInts];
+			} else {
+				// evict the least recently used block, which may no longer be read as a recent one
+				slot = tail;
+				unlink(slot);
+				remove(find(keys[slot]));
+				int recent = keys[slot] & (RECENT_SIZE - 1);
+				if (recentBlocks[recent] == keys[slot]) {
+					recentBlocks[recent] = NONE;
+				}
+			}
+
+			read(block, blocks[slot]);
+			keys[slot] = block;
+			insert(block, slot);
+			linkFirst(slot);
+			return blocks[slot];
+		}
+
+
+		@Override
+		int getInt(int position) {
+			int block = position / blockInts;
+			int recent = block & (RECENT_SIZE - 1);
+			if (recentBlocks[recent] != block) {
+				recentData[recent] = get(block);
+				recentBlocks[recent] = block;
+			}
+			return recentData[recent][position & (blockInts - 1)];
+		}
+
+
+		/**
+		 * Reads a block from the file.
+		 * @param block
+		 * @param data
+		 */
+		private void read(int block, int[] data) {
+			readBuffer.clear();
+			try {
+				long position = (long) block * blockInts * 4;
+				while (readBuffer.hasRemaining()) {
+					if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't read r-tree block " + block, e);
+			}
+			readBuffer.flip();
+			readBuffer.asIntBuffer().get(data, 0, readBuffer.remaining() / 4);
+		}
+
+
+		/**
+		 * Finds the hash table position of a block.
+		 * @param block
+		 * @return the position, or {@link #NONE} if the block isn't cached.
+		 */
+		private int find(int block) {
+			int position = hash(block);
+			while (table[position] != NONE) {
+				if (keys[table[position]] == block) {
+					return position;
+				}
+				position = (position + 1) & tableMask;
+			}
+			return NONE;
+		}
+
+
+		/**
+		 * Inserts a slot into the hash table.
+		 * @param block
+		 * @param slot
+		 */
+		private void insert(int block, int slot) {
+			int position = hash(block);
+			while (table[position] != NONE) {
+				position = (position + 1) & tableMask;
+			}
+			table[position] = slot;
+		}
+
+
+		/**
+		 * Removes a hash table position, shifting back following positions of the same probe sequence.
+		 * @param position
+		 */
+		private void remove(int position) {
+			table[position] = NONE;
+			int current = (position + 1) & tableMask;
+			while (table[current] != NONE) {
+				int home = hash(keys[table[current]]);
+				// move the slot back if the free position lies between its home and its current position
+				boolean movable = (current > position)
+						? ((home <= position) || (home > current))
+						: ((home <= position) && (home > current));
+				if (movable) {
+					table[position] = table[current];
+					table[current] = NONE;
+					position = current;
+				}
+				current = (current + 1) & tableMask;
+			}
+		}
+
+
+		/**
+		 * Hashes a block number to a hash table position.
+		 * @param block
+		 * @return
+		 */
+		private int hash(int block) {
+			int h = block * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & tableMask;
+		}
+
+
+		/**
+		 * Links a slot as most recently used.
+		 * @param slot
+		 */
+		private void linkFirst(int slot) {
+			previous[slot] = NONE;
+			next[slot] = head;
+			if (head != NONE) {
+				previous[head] = slot;
+			}
+			head = slot;
+			if (tail == NONE) {
+				tail = slot;
+			}
+		}
+
+
+		/**
+		 * Unlinks a slot from the LRU list.
+		 * @param slot
+		 */
+		private void unlink(int slot) {
+			if (previous[slot] != NONE) {
+				next[previous[slot]] = next[slot];
+			} else {
+				head = next[slot];
+			}
+			if (next[slot] != NONE) {
+				previous[next[slot]] = previous[slot];
+			} else {
+				tail = previous[slot];
+			}
+		}
+	}
+
+
+	/**
+	 * Opens a PagedStaticRTree with the default block and cache size.
+	 * @param file the file containing the r-tree.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public PagedStaticRTree(File file) throws FileNotFoundException, IOException {
+		this(file, DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_SIZE);
+	}
+
+
+	/**
+	 * Opens a PagedStaticRTree.
+	 * @param file the file containing the r-tree.
+	 * @param blockSize size of blocks in bytes, a power of 2 of at least 64.
+	 * @param cacheSize maximum size of cached blocks in bytes, at least 4 blocks.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public PagedStaticRTree(File file, int blockSize, int cacheSize) throws FileNotFoundException, IOException {
+		if ((blockSize < 64) || (Integer.bitCount(blockSize) != 1)) {
+			throw new IllegalArgumentException("Block size must be a power of 2 of at least 64: " + blockSize);
+		}
+
+		this.file = new RandomAccessFile(file, "r");
+		channel = this.file.getChannel();
+		cache = new BlockCache(blockSize, Math.max(cacheSize / blockSize, 4));
+
+		long length = this.file.length();
+		size = (length >= 4) ? this.file.readInt() : -1;
+		if ((size < 0) || (((long) size * RTreeTables.ENTRY_INTS + 1) * 4 > length)) {
+			this.file.close();
+			throw new IOException("Invalid r-tree file: " + file);
+		}
+
+		tables = new RTreeTables(cache, 1, size, false);
+	}
+
+
+	/**
+	 * Closes the file. The tree can't be queried afterwards.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+
+	/**
+	 * Queries the tree for nodes within a given rectangle.
+	 * @param queryRect region of interest.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(MapRect queryRect, int queryType, int[] results, int maxResults) {
+		return traverse(queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
+				queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for nodes within a given rectangle.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults) {
+		return traverse(minX, minY, maxX, maxY, queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for nodes within a given rectangle, passing each result to a visitor.
+	 * <p>
+	 * The tree stays locked while the visitor is called.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param visitor called for each result, may stop the query early.
+	 * @return the number of results visited.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, RTreeVisitor visitor) {
+		return traverse(minX, minY, maxX, maxY, queryType, null, 0, visitor);
+	}
+
+
+	/**
+	 * Performs a query iteratively through the block cache.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private synchronized int traverse(int minX, int minY, int maxX, int maxY, int queryType, int[] results,
+			int maxResults, RTreeVisitor visitor) {
+		return tables.traverse(0, minX, minY, maxX, maxY, Long.MIN_VALUE, Long.MAX_VALUE, queryType, null, results,
+				maxResults, visitor);
+	}
+
+
+	/**
+	 * Gets the ID of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public synchronized int getId(int index) {
+		return tables.getId(index);
+	}
+
+
+	/**
+	 * Gets the offset of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public synchronized int getOffset(int index) {
+		return tables.getOffset(index);
+	}
+
+
+	/**
+	 * Gets the type of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public synchronized int getType(int index) {
+		return tables.getType(index);
+	}
+
+
+	/**
+	 * Gets the bounds of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public synchronized MapRect getBounds(int index) {
+		int b = index * 4;
+		return new MapRect(tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2), tables.getBound(b + 3));
+	}
+
+
+	/**
+	 * Gets the bounds of the specified index without allocating.
+	 * @param index
+	 * @param result array receiving minX, minY, maxX and maxY.
+	 */
+	public synchronized void getBounds(int index, int[] result) {
+		int b = index * 4;
+		result[0] = tables.getBound(b);
+		result[1] = tables.getBound(b + 1);
+		result[2] = tables.getBound(b + 2);
+		result[3] = tables.getBound(b + 3);
+	}
+
+
+	/**
+	 * Gets the min point, i.e. (minX, minY), of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public synchronized MapPoint getPoint(int index) {
+		int b = index * 4;
+		return new MapPoint(tables.getBound(b), tables.getBound(b + 1));
+	}
+
+
+	/**
+	 * Gets the size of the tree.
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Gets the number of block accesses served from the cache. Further reads of a block while it is among the
+	 * most recently accessed ones are not counted.
+	 * @return
+	 */
+	public synchronized int getHitCount() {
+		return cache.hitCount;
+	}
+
+
+	/**
+	 * Gets the number of blocks read from the file.
+	 * @return
+	 */
+	public synchronized int getMissCount() {
+		return cache.missCount;
+	}
+}
\ No newline at end of file
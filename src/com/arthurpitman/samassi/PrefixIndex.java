@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.text.Normalizer;
+
+
+/**
+ * Implements a memory-mapped prefix index mapping normalized names to {@link StaticRTree} ids, written by
+ * {@link PrefixIndexBuilder}.
+ * <p>
+ * Names are sorted and front-coded in blocks: the first name of each block is stored in full, the others
+ * as the length of the prefix shared with the previous name followed by the remaining chars. A search
+ * binary searches the first names of the blocks and then decodes names until they no longer start with the
+ * prefix, so only a few pages of the file are touched. The type and bounds of each entry are stored as well, so
+ * searches restricted to a rectangle test the matches directly instead of querying a tree.
+ * <p>
+ * The file format is big-endian:
+ * <pre>
+ * magic, version, entry count, block size, block count, name data length (in chars), maximum name length
+ * block offsets (1 per block, in chars)
+ * ids (1 per entry, in name order)
+ * types (1 per entry, in name order)
+ * bounds (minX, minY, maxX, maxY per entry, in name order)
+ * name data: for each block, first name length and chars, then for each other name shared length,
+ * suffix length and suffix chars
+ * </pre>
+ */
+public class PrefixIndex {
+	/** Magic number identifying the file format. */
+	static final int MAGIC = 0x50465831;
+
+	/** Version of the file format. */
+	static final int VERSION = 2;
+
+	/** Number of ints in the header. */
+	static final int HEADER_SIZE = 7;
+
+	/** The number of entries. */
+	private int size;
+
+	/** The number of names per block. */
+	private int blockSize;
+
+	/** The number of blocks. */
+	private int blockCount;
+
+	/** The length of the longest name. */
+	private int maxNameLength;
+
+	/** The start of each block in the name data. */
+	private IntBuffer blockOffsets;
+
+	/** The id of each entry. */
+	private IntBuffer ids;
+
+	/** The type of each entry. */
+	private IntBuffer types;
+
+	/** The bounds of each entry. */
+	private IntBuffer bounds;
+
+	/** The name data. */
+	private CharBuffer names;
+
+
+	/**
+	 * Creates a new PrefixIndex by memory-mapping the specified file.
+	 * @param file the file containing the index.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public PrefixIndex(File file) throws FileNotFoundException, IOException {
+		ByteBuffer data = FileBuffers.map(file);
+		long length = data.limit();
+		if ((length < HEADER_SIZE * 4) || (data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)) {
+			throw new IOException("Invalid prefix index file: " + file);
+		}
+		size = data.getInt(8);
+		blockSize = data.getInt(12);
+		blockCount = data.getInt(16);
+		int namesLength = data.getInt(20);
+		maxNameLength = data.getInt(24);
+		long idsStart = (HEADER_SIZE + (long) blockCount) * 4;
+		long typesStart = idsStart + (long) size * 4;
+		long boundsStart = typesStart + (long) size * 4;
+		long namesStart = boundsStart + (long) size * 16;
+		if ((size < 0) || (blockSize < 1) || (blockCount != (size + blockSize - 1) / blockSize)
+				|| (namesLength < 0) || (maxNameLength < 0) || (namesStart + (long) namesLength * 2 > length)) {
+			throw new IOException("Invalid prefix index file: " + file);
+		}
+
+		blockOffsets = FileBuffers.section(data, HEADER_SIZE * 4, blockCount * 4).asIntBuffer();
+		ids = FileBuffers.section(data, (int) idsStart, size * 4).asIntBuffer();
+		types = FileBuffers.section(data, (int) typesStart, size * 4).asIntBuffer();
+		bounds = FileBuffers.section(data, (int) boundsStart, size * 16).asIntBuffer();
+		names = FileBuffers.section(data, (int) namesStart, namesLength * 2).asCharBuffer();
+	}
+
+
+	/**
+	 * Normalizes a name for indexing or searching: accents are removed, letters are lower-cased and runs of
+	 * whitespace are replaced by a single space.
+	 * @param text
+	 * @return
+	 */
+	public static String normalize(CharSequence text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder builder = new StringBuilder(decomposed.length());
+		boolean space = false;
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				space = builder.length() > 0;
+				continue;
+			}
+			if (space) {
+				builder.append(' ');
+				space = false;
+			}
+			builder.append(Character.toLowerCase(c));
+		}
+		return builder.toString();
+	}
+
+
+	/**
+	 * Searches for names starting with a given prefix.
+	 * @param prefix the prefix, normalized by this method.
+	 * @param results buffer for result ids, in name order.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int search(String prefix, int[] results, int maxResults) {
+		return scan(normalize(prefix).toCharArray(), false, 0, 0, 0, 0, -1, results, maxResults);
+	}
+
+
+	/**
+	 * Searches for names starting with a given prefix whose entries intersect a rectangle.
+	 * @param prefix the prefix, normalized by this method.
+	 * @param queryRect region of interest.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result ids, in name order.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int search(String prefix, MapRect queryRect, int queryType, int[] results, int maxResults) {
+		return scan(normalize(prefix).toCharArray(), true, queryRect.getMinX(), queryRect.getMinY(),
+				queryRect.getMaxX(), queryRect.getMaxY(), queryType, results, maxResults);
+	}
+
+
+	/**
+	 * Decodes names from the block which may contain the first match, until names no longer start with the
+	 * prefix or enough results are found.
+	 * @param prefix the normalized prefix.
+	 * @param filtered whether to restrict results to the rectangle and type.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @return
+	 */
+	private int scan(char[] prefix, boolean filtered, int minX, int minY, int maxX, int maxY, int queryType,
+			int[] results, int maxResults) {
+		if ((size == 0) || (maxResults <= 0)) {
+			return 0;
+		}
+
+		char[] name = new char[maxNameLength];
+		int nameLength = 0;
+		int resultsIndex = 0;
+		int position = 0;
+		for (int entry = findBlock(prefix) * blockSize; entry < size; entry++) {
+			// decode the next name, reusing the prefix shared with the previous one
+			if (entry % blockSize == 0) {
+				position = blockOffsets.get(entry / blockSize);
+				nameLength = 0;
+			} else {
+				nameLength = names.get(position++);
+			}
+			int suffixLength = names.get(position++);
+			for (int i = 0; i < suffixLength; i++) {
+				name[nameLength++] = names.get(position++);
+			}
+
+			int comparison = comparePrefix(name, nameLength, prefix);
+			if (comparison > 0) {
+				break;
+			}
+			if ((comparison == 0) && (!filtered || matches(entry, minX, minY, maxX, maxY, queryType))) {
+				results[resultsIndex++] = ids.get(entry);
+				if (resultsIndex == maxResults) {
+					break;
+				}
+			}
+		}
+		return resultsIndex;
+	}
+
+
+	/**
+	 * Tests if an entry has a type and intersects a rectangle.
+	 * @param entry
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @return
+	 */
+	private boolean matches(int entry, int minX, int minY, int maxX, int maxY, int queryType) {
+		if ((queryType != -1) && (types.get(entry) != queryType)) {
+			return false;
+		}
+		int b = entry * 4;
+		return MapRect.intersects(minX, minY, maxX, maxY, bounds.get(b), bounds.get(b + 1), bounds.get(b + 2),
+				bounds.get(b + 3));
+	}
+
+
+	/**
+	 * Finds the last block whose first name sorts before the prefix.
+	 * @param prefix
+	 * @return the block, or 0 if there is none.
+	 */
+	private int findBlock(char[] prefix) {
+		int low = 0;
+		int high = blockCount - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (compareFirstName(middle, prefix) < 0) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+
+	/**
+	 * Compares the first name of a block to a prefix.
+	 * @param block
+	 * @param prefix
+	 * @return a negative number if the name sorts before the prefix, otherwise a positive number or 0.
+	 */
+	private int compareFirstName(int block, char[] prefix) {
+		int position = blockOffsets.get(block);
+		int length = names.get(position++);
+		int common = Math.min(length, prefix.length);
+		for (int i = 0; i < common; i++) {
+			int difference = names.get(position + i) - prefix[i];
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length - prefix.length;
+	}
+
+
+	/**
+	 * Compares a name to a prefix.
+	 * @param name
+	 * @param nameLength
+	 * @param prefix
+	 * @return 0 if the name starts with the prefix, otherwise a negative or positive number if the name sorts
+	 * before or after the names starting with the prefix.
+	 */
+	private static int comparePrefix(char[] name, int nameLength, char[] prefix) {
+		int common = Math.min(nameLength, prefix.length);
+		for (int i = 0; i < common; i++) {
+			int difference = name[i] - prefix[i];
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return (nameLength < prefix.length) ? -1 : 0;
+	}
+
+
+	/**
+	 * Gets the number of entries.
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Builds {@link PrefixIndex} files.
+ */
+public class PrefixIndexBuilder {
+	/** Default number of names per front-coded block. */
+	public static final int DEFAULT_BLOCK_SIZE = 16;
+
+	/** Maximum length of a normalized name. */
+	private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+	/** Number of names per front-coded block. */
+	private final int blockSize;
+
+	/** The normalized names added. */
+	private final List<String> names = new ArrayList<String>();
+
+	/** The ids added. */
+	private int[] ids = new int[1024];
+
+	/** The type of each name added. */
+	private int[] types = new int[1024];
+
+	/** The bounds (minX, minY, maxX, maxY) of each name added. */
+	private int[] bounds = new int[1024 * 4];
+
+
+	/**
+	 * Creates a new {@link PrefixIndexBuilder} with the default block size.
+	 */
+	public PrefixIndexBuilder() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+
+	/**
+	 * Creates a new {@link PrefixIndexBuilder}.
+	 * @param blockSize number of names per front-coded block, at least 1.
+	 */
+	public PrefixIndexBuilder(int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+		}
+		this.blockSize = blockSize;
+	}
+
+
+	/**
+	 * Adds a name without a location, which matches every rectangle. An id may be added several times, e.g.
+	 * under alternative names.
+	 * @param name the name, normalized by this method.
+	 * @param id the id of the matching {@link StaticRTree} entry.
+	 */
+	public void add(String name, int id) {
+		add(name, id, -1, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Adds a name for an entry of a tree, copying its id, type and bounds.
+	 * @param name the name, normalized by this method.
+	 * @param tree
+	 * @param index the index of the entry in the tree.
+	 */
+	public void add(String name, StaticRTree tree, int index) {
+		add(name, tree.getId(index), tree.getType(index), tree.getMinX(index), tree.getMinY(index),
+				tree.getMaxX(index), tree.getMaxY(index));
+	}
+
+
+	/**
+	 * Adds a name. An id may be added several times, e.g. under alternative names.
+	 * @param name the name, normalized by this method.
+	 * @param id the id of the matching {@link StaticRTree} entry.
+	 * @param type the type of the entry, must not be {@link StaticRTree#TYPE_NODE}.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	public void add(String name, int id, int type, int minX, int minY, int maxX, int maxY) {
+		String normalized = PrefixIndex.normalize(name);
+		if (normalized.length() > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Name too long: " + normalized.length());
+		}
+		if (type == StaticRTree.TYPE_NODE) {
+			throw new IllegalArgumentException("Type is reserved for internal nodes: " + type);
+		}
+		int index = names.size();
+		if (index == ids.length) {
+			ids = Arrays.copyOf(ids, index * 2);
+			types = Arrays.copyOf(types, index * 2);
+			bounds = Arrays.copyOf(bounds, index * 8);
+		}
+		names.add(normalized);
+		ids[index] = id;
+		types[index] = type;
+		bounds[index * 4] = minX;
+		bounds[index * 4 + 1] = minY;
+		bounds[index * 4 + 2] = maxX;
+		bounds[index * 4 + 3] = maxY;
+	}
+
+
+	/**
+	 * Gets the number of names added.
+	 * @return
+	 */
+	public int getSize() {
+		return names.size();
+	}
+
+
+	/**
+	 * Writes the index to a file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		OutputStream outputStream = new FileOutputStream(file);
+		try {
+			write(outputStream);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+
+	/**
+	 * Writes the index to a stream.
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	public void write(OutputStream outputStream) throws IOException {
+		final int size = names.size();
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int comparison = names.get(a).compareTo(names.get(b));
+				return (comparison != 0) ? comparison : ((ids[a] < ids[b]) ? -1 : ((ids[a] == ids[b]) ? 0 : 1));
+			}
+		});
+
+		// front-code the names
+		int blockCount = (size + blockSize - 1) / blockSize;
+		int[] blockOffsets = new int[blockCount];
+		StringBuilder data = new StringBuilder();
+		int maxNameLength = 0;
+		String previous = null;
+		for (int i = 0; i < size; i++) {
+			String name = names.get(order[i]);
+			maxNameLength = Math.max(maxNameLength, name.length());
+			if (i % blockSize == 0) {
+				blockOffsets[i / blockSize] = data.length();
+				data.append((char) name.length());
+				data.append(name);
+			} else {
+				int shared = 0;
+				int common = Math.min(name.length(), previous.length());
+				while ((shared < common) && (name.charAt(shared) == previous.charAt(shared))) {
+					shared++;
+				}
+				data.append((char) shared);
+				data.append((char) (name.length() - shared));
+				data.append(name, shared, name.length());
+			}
+			previous = name;
+		}
+
+		DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+		dataStream.writeInt(PrefixIndex.MAGIC);
+		dataStream.writeInt(PrefixIndex.VERSION);
+		dataStream.writeInt(size);
+		dataStream.writeInt(blockSize);
+		dataStream.writeInt(blockCount);
+		dataStream.writeInt(data.length());
+		dataStream.writeInt(maxNameLength);
+		for (int offset : blockOffsets) {
+			dataStream.writeInt(offset);
+		}
+		for (int i = 0; i < size; i++) {
+			dataStream.writeInt(ids[order[i]]);
+		}
+		for (int i = 0; i < size; i++) {
+			dataStream.writeInt(types[order[i]]);
+		}
+		for (int i = 0; i < size; i++) {
+			int b = order[i] * 4;
+			for (int j = 0; j < 4; j++) {
+				dataStream.writeInt(bounds[b + j]);
+			}
+		}
+		dataStream.writeChars(data.toString());
+		dataStream.flush();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Common base of the r-tree builders, bulk loading entries with Sort-Tile-Recursive (STR) packing.
+ * <p>
+ * Each level of the tree is packed by sorting its nodes on the x coordinate of their centers, cutting them
+ * into vertical slices, sorting each slice on y and grouping runs of nodes under new parents. This gives
+ * nearly full nodes with little overlap, so queries visit few nodes. Internal nodes have the type
+ * {@link StaticRTree#TYPE_NODE}. Sorting is spread over an {@link ExecutorService} for large inputs.
+ * <p>
+ * Writes the layout read by {@link StaticRTree}; subclasses extend it through the package-private hooks
+ * or add further formats.
+ * <p>
+ * To keep the object count low, arrays are used.
+ */
+abstract class RTreeBuilder {
+	/** Minimum number of keys to sort per task. */
+	private static final int MIN_SORT_CHUNK = 1 << 16;
+
+	/** Initial capacity of the entry arrays. */
+	static final int INITIAL_CAPACITY = 1024;
+
+	/** Maximum number of children per node. */
+	final int nodeCapacity;
+
+	/** Executor used for sorting, <code>null</code> to create one for each build. */
+	private ExecutorService executor;
+
+	/** The number of entries added. */
+	int size;
+
+	/** The id of each entry. */
+	int[] ids = new int[INITIAL_CAPACITY];
+
+	/** The offset of each entry. */
+	int[] offsets = new int[INITIAL_CAPACITY];
+
+	/** The type of each entry. */
+	int[] types = new int[INITIAL_CAPACITY];
+
+	/** The bounds (minX, minY, maxX, maxY) of each entry, followed by those of internal nodes while building. */
+	int[] bounds = new int[INITIAL_CAPACITY * 4];
+
+
+	/**
+	 * Creates a new {@link RTreeBuilder}.
+	 * @param nodeCapacity maximum number of children per node, at least 2.
+	 */
+	RTreeBuilder(int nodeCapacity) {
+		if (nodeCapacity < 2) {
+			throw new IllegalArgumentException("Node capacity must be at least 2: " + nodeCapacity);
+		}
+		this.nodeCapacity = nodeCapacity;
+	}
+
+
+	/**
+	 * Sets the executor used to sort in parallel.
+	 * @param executor the executor, or <code>null</code> to use a temporary thread pool for each build.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Adds an entry.
+	 * @param id
+	 * @param offset
+	 * @param type the type of the entry, must not be {@link StaticRTree#TYPE_NODE}.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	public void add(int id, int offset, int type, int minX, int minY, int maxX, int maxY) {
+		if (type == StaticRTree.TYPE_NODE) {
+			throw new IllegalArgumentException("Type is reserved for internal nodes: " + type);
+		}
+
+		if (size == ids.length) {
+			int capacity = size * 2;
+			ids = Arrays.copyOf(ids, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			types = Arrays.copyOf(types, capacity);
+			resizeNodes(capacity);
+		}
+
+		ids[size] = id;
+		offsets[size] = offset;
+		types[size] = type;
+		bounds[size * 4] = minX;
+		bounds[size * 4 + 1] = minY;
+		bounds[size * 4 + 2] = maxX;
+		bounds[size * 4 + 3] = maxY;
+		size++;
+	}
+
+
+	/**
+	 * Gets the number of entries added.
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Builds the tree and writes it to the specified file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		OutputStream outputStream = new FileOutputStream(file);
+		try {
+			write(outputStream);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+
+	/**
+	 * Builds the tree and writes it to the specified stream, in big-endian order.
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	public void write(OutputStream outputStream) throws IOException {
+		try {
+			writeTree(build(), outputStream);
+		} finally {
+			release();
+		}
+	}
+
+
+	/**
+	 * Packs the entries, sorting on the executor if one is set or the input is large.
+	 * @return
+	 * @throws IOException
+	 */
+	Tree build() throws IOException {
+		ExecutorService sortExecutor = executor;
+		boolean temporaryExecutor = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		if ((sortExecutor == null) && (threads > 1) && (size >= MIN_SORT_CHUNK * 2)) {
+			sortExecutor = Executors.newFixedThreadPool(threads);
+			temporaryExecutor = true;
+		}
+
+		try {
+			return pack(sortExecutor, threads);
+		} finally {
+			if (temporaryExecutor) {
+				sortExecutor.shutdown();
+			}
+		}
+	}
+
+
+	/**
+	 * Drops the bounds of internal nodes after writing, so more entries can be added.
+	 */
+	void release() {
+		resizeNodes(ids.length);
+	}
+
+
+	/**
+	 * Resizes the arrays holding data of both entries and internal nodes.
+	 * @param capacity the number of nodes, including entries.
+	 */
+	void resizeNodes(int capacity) {
+		bounds = Arrays.copyOf(bounds, capacity * 4);
+	}
+
+
+	/**
+	 * Packed tree. Nodes are numbered with entries first, followed by internal nodes level by level, and
+	 * the children of each internal node are a contiguous range of {@code children}.
+	 */
+	static class Tree {
+		int nodeCount;
+		int root;
+		int[] children;
+		int[] childStarts;
+		int[] childEnds;
+	}
+
+
+	/**
+	 * Packs the entries level by level until a single root remains.
+	 * @param sortExecutor
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 */
+	private Tree pack(ExecutorService sortExecutor, int threads) throws IOException {
+		Tree tree = new Tree();
+		tree.nodeCount = size;
+		tree.children = new int[0];
+
+		// internal node n has index n - size in the child range arrays
+		int capacity = Math.max(size / (nodeCapacity - 1) + 16, 16);
+		tree.childStarts = new int[capacity];
+		tree.childEnds = new int[capacity];
+		if ((size + capacity) * 4 > bounds.length) {
+			resizeNodes(size + capacity);
+		}
+
+		if (size == 0) {
+			tree.root = -1;
+			return tree;
+		}
+
+		int[] level = new int[size];
+		for (int i = 0; i < size; i++) {
+			level[i] = i;
+		}
+
+		while (level.length > 1) {
+			int count = level.length;
+			int sliceSize = sortLevel(level, sortExecutor, threads);
+
+			// the sorted level becomes the children of the next level
+			int childBase = tree.children.length;
+			tree.children = Arrays.copyOf(tree.children, childBase + count);
+			System.arraycopy(level, 0, tree.children, childBase, count);
+
+			// each slice may end with a partial node
+			int[] nextLevel = new int[(count + nodeCapacity - 1) / nodeCapacity + (count + sliceSize - 1) / sliceSize];
+			int nextCount = 0;
+			for (int sliceStart = 0; sliceStart < count; sliceStart += sliceSize) {
+				int sliceEnd = Math.min(sliceStart + sliceSize, count);
+				for (int start = sliceStart; start < sliceEnd; start += nodeCapacity) {
+					int end = Math.min(start + nodeCapacity, sliceEnd);
+					int node = addNode(tree, childBase + start, childBase + end);
+					nextLevel[nextCount++] = node;
+				}
+			}
+			level = Arrays.copyOf(nextLevel, nextCount);
+		}
+
+		tree.root = level[0];
+		return tree;
+	}
+
+
+	/**
+	 * Sorts a level, so that runs of nodes within each slice can be grouped under new parents.
+	 * <p>
+	 * The level is sorted into vertical slices, and each slice is sorted on y.
+	 * @param level
+	 * @param sortExecutor
+	 * @param threads
+	 * @return the size of the slices, a multiple of the node capacity.
+	 * @throws IOException
+	 */
+	int sortLevel(int[] level, ExecutorService sortExecutor, int threads) throws IOException {
+		int parentCount = (level.length + nodeCapacity - 1) / nodeCapacity;
+		int sliceSize = (int) Math.ceil(Math.sqrt(parentCount)) * nodeCapacity;
+		sort(level, 0, level.length, true, sortExecutor, threads);
+		sortSlices(level, 0, level.length, sliceSize, sortExecutor);
+		return sliceSize;
+	}
+
+
+	/**
+	 * Adds an internal node, computing its bounds from its children.
+	 * @param tree
+	 * @param childStart
+	 * @param childEnd
+	 * @return the number of the node.
+	 */
+	private int addNode(Tree tree, int childStart, int childEnd) {
+		int node = tree.nodeCount++;
+		int internal = node - size;
+		if (internal == tree.childStarts.length) {
+			int capacity = internal * 2;
+			tree.childStarts = Arrays.copyOf(tree.childStarts, capacity);
+			tree.childEnds = Arrays.copyOf(tree.childEnds, capacity);
+		}
+		if (node * 4 >= bounds.length) {
+			resizeNodes(node * 2);
+		}
+		tree.childStarts[internal] = childStart;
+		tree.childEnds[internal] = childEnd;
+
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		boolean wraps = false;
+		for (int i = childStart; i < childEnd; i++) {
+			int b = tree.children[i] * 4;
+			minX = Math.min(minX, bounds[b]);
+			minY = Math.min(minY, bounds[b + 1]);
+			maxX = Math.max(maxX, bounds[b + 2]);
+			maxY = Math.max(maxY, bounds[b + 3]);
+			wraps |= bounds[b] > bounds[b + 2];
+		}
+
+		// children crossing the date line are covered by spanning the whole width
+		if (wraps) {
+			minX = 0;
+			maxX = MapPoint.BASE;
+		}
+
+		int b = node * 4;
+		bounds[b] = minX;
+		bounds[b + 1] = minY;
+		bounds[b + 2] = maxX;
+		bounds[b + 3] = maxY;
+		addNodeData(node, tree.children, childStart, childEnd);
+		return node;
+	}
+
+
+	/**
+	 * Called when an internal node is added, to compute further data from its children.
+	 * @param node
+	 * @param children
+	 * @param childStart
+	 * @param childEnd
+	 */
+	void addNodeData(int node, int[] children, int childStart, int childEnd) {
+	}
+
+
+	/**
+	 * Sorts each slice of a range of a level on the y coordinate of the node centers.
+	 * @param level
+	 * @param from
+	 * @param to
+	 * @param sliceSize
+	 * @param sortExecutor
+	 * @throws IOException
+	 */
+	void sortSlices(final int[] level, int from, int to, int sliceSize, ExecutorService sortExecutor)
+			throws IOException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int sliceStart = from; sliceStart < to; sliceStart += sliceSize) {
+			final int start = sliceStart;
+			final int end = Math.min(sliceStart + sliceSize, to);
+			if ((sortExecutor == null) || (end - start < MIN_SORT_CHUNK)) {
+				sort(level, start, end, false, null, 1);
+			} else {
+				tasks.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						sort(level, start, end, false, null, 1);
+						return null;
+					}
+				});
+			}
+		}
+		invokeAll(sortExecutor, tasks);
+	}
+
+
+	/**
+	 * Sorts a range of nodes on the x or y coordinate of their centers.
+	 * <p>
+	 * Nodes are sorted as packed long keys, with the center in the high and the position in the low bits.
+	 * Large ranges are sorted in chunks on the executor and then merged.
+	 * @param nodes
+	 * @param from
+	 * @param to
+	 * @param onX
+	 * @param sortExecutor
+	 * @param threads
+	 * @throws IOException
+	 */
+	void sort(int[] nodes, int from, int to, boolean onX, ExecutorService sortExecutor, int threads)
+			throws IOException {
+		int length = to - from;
+		final long[] keys = new long[length];
+		int offset = onX ? 0 : 1;
+		for (int i = 0; i < length; i++) {
+			int b = nodes[from + i] * 4 + offset;
+			long center = ((long) bounds[b] + bounds[b + 2]) >> 1;
+			keys[i] = (center << 32) | i;
+		}
+
+		int chunks = Math.min(threads, length / MIN_SORT_CHUNK);
+		if ((sortExecutor == null) || (chunks < 2)) {
+			Arrays.sort(keys);
+		} else {
+			parallelSort(keys, chunks, sortExecutor);
+		}
+
+		int[] sorted = new int[length];
+		for (int i = 0; i < length; i++) {
+			sorted[i] = nodes[from + (int) (keys[i] & 0xFFFFFFFFL)];
+		}
+		System.arraycopy(sorted, 0, nodes, from, length);
+	}
+
+
+	/**
+	 * Sorts keys by sorting chunks in parallel and merging pairs of sorted runs in parallel rounds.
+	 * @param keys
+	 * @param chunks
+	 * @param sortExecutor
+	 * @throws IOException
+	 */
+	private static void parallelSort(long[] keys, int chunks, ExecutorService sortExecutor) throws IOException {
+		final int length = keys.length;
+		final int chunkSize = (length + chunks - 1) / chunks;
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < length; start += chunkSize) {
+			final long[] chunkKeys = keys;
+			final int from = start;
+			final int to = Math.min(start + chunkSize, length);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					Arrays.sort(chunkKeys, from, to);
+					return null;
+				}
+			});
+		}
+		invokeAll(sortExecutor, tasks);
+
+		long[] source = keys;
+		long[] target = new long[length];
+		for (int width = chunkSize; width < length; width *= 2) {
+			tasks.clear();
+			for (int start = 0; start < length; start += width * 2) {
+				final long[] mergeSource = source;
+				final long[] mergeTarget = target;
+				final int from = start;
+				final int middle = Math.min(start + width, length);
+				final int to = Math.min(start + width * 2, length);
+				tasks.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						merge(mergeSource, mergeTarget, from, middle, to);
+						return null;
+					}
+				});
+			}
+			invokeAll(sortExecutor, tasks);
+
+			long[] swap = source;
+			source = target;
+			target = swap;
+		}
+
+		if (source != keys) {
+			System.arraycopy(source, 0, keys, 0, length);
+		}
+	}
+
+
+	/**
+	 * Merges two adjacent sorted runs.
+	 * @param source
+	 * @param target
+	 * @param from start of the first run.
+	 * @param middle start of the second run.
+	 * @param to end of the second run.
+	 */
+	private static void merge(long[] source, long[] target, int from, int middle, int to) {
+		int i = from;
+		int j = middle;
+		int k = from;
+		while ((i < middle) && (j < to)) {
+			target[k++] = (source[i] <= source[j]) ? source[i++] : source[j++];
+		}
+		while (i < middle) {
+			target[k++] = source[i++];
+		}
+		while (j < to) {
+			target[k++] = source[j++];
+		}
+	}
+
+
+	/**
+	 * Runs tasks on the executor and waits for them to complete.
+	 * @param sortExecutor
+	 * @param tasks
+	 * @throws IOException if a task failed or the thread was interrupted.
+	 */
+	private static void invokeAll(ExecutorService sortExecutor, List<Callable<Void>> tasks) throws IOException {
+		if (tasks.isEmpty()) {
+			return;
+		}
+
+		try {
+			for (Future<Void> future : sortExecutor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while building r-tree", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to build r-tree", e.getCause());
+		}
+	}
+
+
+	/**
+	 * Writes the tree in preorder, in the layout read by {@link StaticRTree}.
+	 * @param tree
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	private void writeTree(Tree tree, OutputStream outputStream) throws IOException {
+		int nodeCount = (tree.root < 0) ? 0 : tree.nodeCount;
+
+		// number nodes in preorder with an explicit stack
+		int[] preorder = new int[nodeCount];
+		int[] nodeParents = new int[nodeCount];
+		int[] nodeSiblings = new int[nodeCount];
+		int[] lastChildren = new int[nodeCount];
+		Arrays.fill(lastChildren, -1);
+		int[] stack = new int[Math.max(nodeCount, 1)];
+		int[] stackParents = new int[stack.length];
+		int stackSize = 0;
+		int index = 0;
+
+		if (nodeCount > 0) {
+			stack[stackSize] = tree.root;
+			stackParents[stackSize] = -1;
+			stackSize++;
+		}
+		while (stackSize > 0) {
+			stackSize--;
+			int node = stack[stackSize];
+			int parentIndex = stackParents[stackSize];
+
+			preorder[index] = node;
+			nodeParents[index] = parentIndex;
+			if (parentIndex >= 0) {
+				if (lastChildren[parentIndex] >= 0) {
+					nodeSiblings[lastChildren[parentIndex]] = index;
+				}
+				lastChildren[parentIndex] = index;
+			}
+
+			// push children in reverse, so the first child is numbered next
+			if (node >= size) {
+				int internal = node - size;
+				for (int i = tree.childEnds[internal] - 1; i >= tree.childStarts[internal]; i--) {
+					stack[stackSize] = tree.children[i];
+					stackParents[stackSize] = index;
+					stackSize++;
+				}
+			}
+			index++;
+		}
+
+		DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+		writeHeader(dataOutputStream, nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			dataOutputStream.writeInt((preorder[i] < size) ? ids[preorder[i]] : -1);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			dataOutputStream.writeInt((preorder[i] < size) ? offsets[preorder[i]] : -1);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			dataOutputStream.writeInt((preorder[i] < size) ? types[preorder[i]] : StaticRTree.TYPE_NODE);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			int b = preorder[i] * 4;
+			dataOutputStream.writeInt(bounds[b]);
+			dataOutputStream.writeInt(bounds[b + 1]);
+			dataOutputStream.writeInt(bounds[b + 2]);
+			dataOutputStream.writeInt(bounds[b + 3]);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			dataOutputStream.writeInt(nodeSiblings[i]);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			dataOutputStream.writeInt(nodeParents[i]);
+		}
+		writeNodeData(dataOutputStream, preorder, nodeCount);
+		dataOutputStream.flush();
+	}
+
+
+	/**
+	 * Writes the header of the layout read by {@link StaticRTree}, i.e. the number of nodes.
+	 * @param dataOutputStream
+	 * @param nodeCount
+	 * @throws IOException
+	 */
+	void writeHeader(DataOutputStream dataOutputStream, int nodeCount) throws IOException {
+		dataOutputStream.writeInt(nodeCount);
+	}
+
+
+	/**
+	 * Writes further tables following the layout read by {@link StaticRTree}, none by default.
+	 * @param dataOutputStream
+	 * @param preorder the node at each index.
+	 * @param nodeCount
+	 * @throws IOException
+	 */
+	void writeNodeData(DataOutputStream dataOutputStream, int[] preorder, int nodeCount) throws IOException {
+	}
+}
\ No newline at end of file
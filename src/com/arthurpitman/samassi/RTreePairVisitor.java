@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+
+/**
+ * Receives the results of a join between two r-trees one pair at a time.
+ */
+public interface RTreePairVisitor {
+
+	/**
+	 * Called for each pair of intersecting entries.
+	 * @param indexA the index (NOT id!) of the entry in the first tree.
+	 * @param indexB the index (NOT id!) of the entry in the second tree.
+	 * @return <code>true</code> to continue the join, <code>false</code> to stop it.
+	 */
+	boolean visit(int indexA, int indexB);
+}
\ No newline at end of file
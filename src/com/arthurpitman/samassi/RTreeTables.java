@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+
+/**
+ * The tables of an r-tree in the layout written by {@link StaticRTreeBuilder}, shared by the r-tree readers.
+ * <p>
+ * The tables hold the ids, offsets, types, bounds (4 per entry), siblings and parents of all entries, one
+ * after the other. Entries are stored in preorder, so the first child of a node directly follows it and a
+ * traversal can be resumed from the sibling and parent tables without a stack. Spatiotemporal trees also
+ * store the time range of each entry, as 2 longs following the other tables.
+ * <p>
+ * The tables are either copied into arrays, which the traversal reads directly, or read through a
+ * {@link Source}, e.g. a memory-mapped file or a block cache.
+ */
+final class RTreeTables {
+	/** Number of ints per entry. */
+	static final int ENTRY_INTS = 9;
+
+	/** Number of ints per entry including its time range. */
+	static final int TIMED_ENTRY_INTS = 13;
+
+	/**
+	 * Reads the ints of a file by position.
+	 */
+	abstract static class Source {
+
+		/**
+		 * Gets an int.
+		 * @param position the position in ints.
+		 * @return
+		 */
+		abstract int getInt(int position);
+
+
+		/**
+		 * Gets a long, stored as two ints.
+		 * @param position the position in ints.
+		 * @return
+		 */
+		long getLong(int position) {
+			return ((long) getInt(position) << 32) | (getInt(position + 1) & 0xFFFFFFFFL);
+		}
+	}
+
+
+	/**
+	 * Reads ints from a big-endian buffer, e.g. a memory-mapped file.
+	 */
+	private static class BufferSource extends Source {
+		private final ByteBuffer data;
+		private final IntBuffer ints;
+
+
+		/**
+		 * Creates a new BufferSource.
+		 * @param data
+		 */
+		public BufferSource(ByteBuffer data) {
+			this.data = data;
+			ints = data.asIntBuffer();
+		}
+
+
+		@Override
+		int getInt(int position) {
+			return ints.get(position);
+		}
+
+
+		@Override
+		long getLong(int position) {
+			return data.getLong(position * 4);
+		}
+	}
+
+
+	/** The number of entries. */
+	final int size;
+
+	/** The tables, if copied to the heap. */
+	private final int[] ids;
+	private final int[] offsets;
+	private final int[] types;
+	private final int[] bounds;
+	private final int[] siblings;
+	private final int[] parents;
+	private final long[] times;
+
+	/** The source of the tables, if not copied. */
+	private final Source source;
+
+	/** Start of each table in the source, in ints. */
+	private final int idsStart;
+	private final int offsetsStart;
+	private final int typesStart;
+	private final int boundsStart;
+	private final int siblingsStart;
+	private final int parentsStart;
+	private final int timesStart;
+
+	/** Whether entries have time ranges. */
+	private final boolean timed;
+
+
+	/**
+	 * Creates new RTreeTables from a big-endian buffer.
+	 * @param data the buffer containing the whole file.
+	 * @param start the start of the tables in ints.
+	 * @param size the number of entries.
+	 * @param timed whether entries have time ranges.
+	 * @param copy if <code>true</code> the tables are copied to the heap, otherwise they are read from the buffer.
+	 */
+	RTreeTables(ByteBuffer data, int start, int size, boolean timed, boolean copy) {
+		this(copy ? null : new BufferSource(data), start, size, timed, copy ? data : null);
+	}
+
+
+	/**
+	 * Creates new RTreeTables read through a source.
+	 * @param source
+	 * @param start the start of the tables in ints.
+	 * @param size the number of entries.
+	 * @param timed whether entries have time ranges.
+	 */
+	RTreeTables(Source source, int start, int size, boolean timed) {
+		this(source, start, size, timed, null);
+	}
+
+
+	/**
+	 * Creates new RTreeTables.
+	 * @param source
+	 * @param start
+	 * @param size
+	 * @param timed
+	 * @param copyData the buffer to copy the tables from, <code>null</code> to read them through the source.
+	 */
+	private RTreeTables(Source source, int start, int size, boolean timed, ByteBuffer copyData) {
+		this.size = size;
+		this.source = source;
+		this.timed = timed;
+		idsStart = start;
+		offsetsStart = start + size;
+		typesStart = start + size * 2;
+		boundsStart = start + size * 3;
+		siblingsStart = start + size * 7;
+		parentsStart = start + size * 8;
+		timesStart = start + size * 9;
+
+		if (copyData != null) {
+			// copy all tables with bulk reads
+			copyData.position(start * 4);
+			IntBuffer data = copyData.asIntBuffer();
+			copyData.clear();
+			ids = new int[size];
+			offsets = new int[size];
+			types = new int[size];
+			bounds = new int[size * 4];
+			siblings = new int[size];
+			parents = new int[size];
+			data.get(ids);
+			data.get(offsets);
+			data.get(types);
+			data.get(bounds);
+			data.get(siblings);
+			data.get(parents);
+			if (timed) {
+				copyData.position(timesStart * 4);
+				LongBuffer longData = copyData.asLongBuffer();
+				copyData.clear();
+				times = new long[size * 2];
+				longData.get(times);
+			} else {
+				times = null;
+			}
+		} else {
+			ids = null;
+			offsets = null;
+			types = null;
+			bounds = null;
+			siblings = null;
+			parents = null;
+			times = null;
+		}
+	}
+
+
+	/**
+	 * Performs a query of a subtree iteratively, passing each result to the results buffer and the visitor.
+	 * @param root the root of the subtree, 0 for the whole tree.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param startTime start of the time range, inclusive, ignored unless entries have time ranges.
+	 * @param endTime end of the time range, inclusive.
+	 * @param queryType type restriction, -1 for none.
+	 * @param masks type masks of the subtrees, used to skip subtrees lacking the query type, may be null.
+	 * @param results buffer for result indexes, null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @param visitor called for each result, may stop the query early, may be null.
+	 * @return the number of results.
+	 */
+	int traverse(int root, int minX, int minY, int maxX, int maxY, long startTime, long endTime, int queryType,
+			int[] masks, int[] results, int maxResults, RTreeVisitor visitor) {
+		if (size == 0) {
+			return 0;
+		}
+		if (bounds == null) {
+			return traverseSource(root, minX, minY, maxX, maxY, startTime, endTime, queryType, masks, results,
+					maxResults, visitor);
+		}
+
+		int typeBit = typeBit(queryType);
+		int resultsIndex = 0;
+		int index = root;
+		while (true) {
+			// only descend if the node intersects the region of interest and time range and contains the query type
+			int b = index * 4;
+			int t = index * 2;
+			boolean intersects = ((masks == null) || ((masks[index] & typeBit) != 0))
+					&& ((times == null) || ((times[t] <= endTime) && (times[t + 1] >= startTime)))
+					&& MapRect.intersects(minX, minY, maxX, maxY, bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+
+			if (intersects) {
+				// save result if the type matches query type or no query type is specified
+				if (matches(types[index], queryType)) {
+					if (results != null) {
+						if (resultsIndex >= maxResults) {
+							return resultsIndex;
+						}
+						results[resultsIndex] = index;
+					}
+					resultsIndex++;
+					if ((visitor != null) && !visitor.visit(index)) {
+						return resultsIndex;
+					}
+				}
+
+				int childIndex = index + 1;
+				if ((childIndex < size) && (parents[childIndex] == index)) {
+					index = childIndex;
+					continue;
+				}
+			}
+
+			// move on to the next sibling, climbing up until one is found
+			while (true) {
+				if (index == root) {
+					return resultsIndex;
+				}
+				int siblingIndex = siblings[index];
+				if (siblingIndex != 0) {
+					index = siblingIndex;
+					break;
+				}
+				index = parents[index];
+			}
+		}
+	}
+
+
+	/**
+	 * Performs a query in the same way as
+	 * {@link #traverse(int, int, int, int, int, long, long, int, int[], int[], int, RTreeVisitor)}, reading through
+	 * the source.
+	 * @param root
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param startTime
+	 * @param endTime
+	 * @param queryType
+	 * @param masks
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private int traverseSource(int root, int minX, int minY, int maxX, int maxY, long startTime, long endTime,
+			int queryType, int[] masks, int[] results, int maxResults, RTreeVisitor visitor) {
+		int typeBit = typeBit(queryType);
+		int resultsIndex = 0;
+		int index = root;
+		while (index >= 0) {
+			int b = boundsStart + index * 4;
+			int t = timesStart + index * 4;
+			boolean intersects = ((masks == null) || ((masks[index] & typeBit) != 0))
+					&& (!timed || ((source.getLong(t) <= endTime) && (source.getLong(t + 2) >= startTime)))
+					&& MapRect.intersects(minX, minY, maxX, maxY, source.getInt(b), source.getInt(b + 1),
+							source.getInt(b + 2), source.getInt(b + 3));
+
+			if (intersects) {
+				if (matches(source.getInt(typesStart + index), queryType)) {
+					if (results != null) {
+						if (resultsIndex >= maxResults) {
+							return resultsIndex;
+						}
+						results[resultsIndex] = index;
+					}
+					resultsIndex++;
+					if ((visitor != null) && !visitor.visit(index)) {
+						return resultsIndex;
+					}
+				}
+
+				int childIndex = firstChild(index);
+				if (childIndex != 0) {
+					index = childIndex;
+					continue;
+				}
+			}
+			index = next(root, index);
+		}
+		return resultsIndex;
+	}
+
+
+	/**
+	 * Gets the first child of the specified index.
+	 * @param index
+	 * @return the index of the first child, or 0 if there is none.
+	 */
+	int firstChild(int index) {
+		int childIndex = index + 1;
+		return ((childIndex < size) && (getParent(childIndex) == index)) ? childIndex : 0;
+	}
+
+
+	/**
+	 * Gets the entry following the subtree of the specified index in preorder, i.e. the next sibling of the
+	 * index or of its closest ancestor which has one.
+	 * @param root the root of the traversal, which is never left.
+	 * @param index
+	 * @return the next index, or -1 if the traversal is complete.
+	 */
+	int next(int root, int index) {
+		while (index != root) {
+			int siblingIndex = getSibling(index);
+			if (siblingIndex != 0) {
+				return siblingIndex;
+			}
+			index = getParent(index);
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Tests if a type matches a query type.
+	 * @param type
+	 * @param queryType type restriction, -1 for none, which matches everything except internal nodes.
+	 * @return
+	 */
+	static boolean matches(int type, int queryType) {
+		return (queryType == -1) ? (type != StaticRTree.TYPE_NODE) : (type == queryType);
+	}
+
+
+	/**
+	 * Gets the bit representing a type in type masks.
+	 * @param type
+	 * @return
+	 */
+	static int typeBit(int type) {
+		return 1 << (type & 31);
+	}
+
+
+	/**
+	 * Gets the id of the specified index.
+	 * @param index
+	 * @return
+	 */
+	int getId(int index) {
+		return (ids != null) ? ids[index] : source.getInt(idsStart + index);
+	}
+
+
+	/**
+	 * Gets the offset of the specified index.
+	 * @param index
+	 * @return
+	 */
+	int getOffset(int index) {
+		return (offsets != null) ? offsets[index] : source.getInt(offsetsStart + index);
+	}
+
+
+	/**
+	 * Gets the type of the specified index.
+	 * @param index
+	 * @return
+	 */
+	int getType(int index) {
+		return (types != null) ? types[index] : source.getInt(typesStart + index);
+	}
+
+
+	/**
+	 * Gets a bound.
+	 * @param position the index times 4, plus 0 for minX, 1 for minY, 2 for maxX or 3 for maxY.
+	 * @return
+	 */
+	int getBound(int position) {
+		return (bounds != null) ? bounds[position] : source.getInt(boundsStart + position);
+	}
+
+
+	/**
+	 * Gets the next sibling of the specified index.
+	 * @param index
+	 * @return the sibling, or 0 if there is none.
+	 */
+	int getSibling(int index) {
+		return (siblings != null) ? siblings[index] : source.getInt(siblingsStart + index);
+	}
+
+
+	/**
+	 * Gets the parent of the specified index.
+	 * @param index
+	 * @return
+	 */
+	int getParent(int index) {
+		return (parents != null) ? parents[index] : source.getInt(parentsStart + index);
+	}
+
+
+	/**
+	 * Gets the start time of the specified index.
+	 * @param index
+	 * @return
+	 */
+	long getStartTime(int index) {
+		return (times != null) ? times[index * 2] : source.getLong(timesStart + index * 4);
+	}
+
+
+	/**
+	 * Gets the end time of the specified index.
+	 * @param index
+	 * @return
+	 */
+	long getEndTime(int index) {
+		return (times != null) ? times[index * 2 + 1] : source.getLong(timesStart + index * 4 + 2);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+
+/**
+ * Receives the results of an r-tree query one at a time.
+ */
+public interface RTreeVisitor {
+
+	/**
+	 * Called for each entry matching the query.
+	 * @param index the index (NOT id!) of the entry.
+	 * @return <code>true</code> to continue the query, <code>false</code> to stop it.
+	 */
+	boolean visit(int index);
+}
\ No newline at end of file
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+
+/**
+ * Implements a memory-mapped columnar record store, written by {@link RecordStoreBuilder}.
+ * <p>
+ * This is the secondary table addressed by {@link StaticRTree#getOffset(int)}: records are numbered from 0
+ * and each has a value in every column. Int and float columns are fixed-width, string columns refer to a
+ * shared heap of UTF-16 strings, each prefixed by its length. Values are read straight from the mapping,
+ * so accessors other than {@link #getString(int, int)} don't allocate.
+ * <p>
+ * The file format is big-endian:
+ * <pre>
+ * magic, version, record count, column count, heap length (in chars)
+ * column types (1 per column)
+ * column values (record count per column, floats as raw int bits, strings as heap offsets or -1)
+ * heap: for each string, its length followed by its chars
+ * </pre>
+ */
+public class RecordStore {
+	/** Column of ints. */
+	public static final int COLUMN_INT = 0;
+
+	/** Column of floats. */
+	public static final int COLUMN_FLOAT = 1;
+
+	/** Column of strings. */
+	public static final int COLUMN_STRING = 2;
+
+	/** Magic number identifying the file format. */
+	static final int MAGIC = 0x52435331;
+
+	/** Version of the file format. */
+	static final int VERSION = 1;
+
+	/** Number of ints in the header. */
+	static final int HEADER_SIZE = 5;
+
+	/** Heap offset of <code>null</code> strings. */
+	static final int NULL_STRING = -1;
+
+	/** The number of records. */
+	private int recordCount;
+
+	/** The type of each column. */
+	private int[] columnTypes;
+
+	/** The values of all columns, column after column. */
+	private IntBuffer values;
+
+	/** The string heap. */
+	private CharBuffer heap;
+
+
+	/**
+	 * Creates a new RecordStore by memory-mapping the specified file.
+	 * @param file the file containing the records.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public RecordStore(File file) throws FileNotFoundException, IOException {
+		ByteBuffer data = FileBuffers.map(file);
+		long length = data.limit();
+		if ((length < HEADER_SIZE * 4) || (data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)) {
+			throw new IOException("Invalid record store file: " + file);
+		}
+		recordCount = data.getInt(8);
+		int columnCount = data.getInt(12);
+		int heapLength = data.getInt(16);
+		long valuesStart = (HEADER_SIZE + (long) columnCount) * 4;
+		long valuesLength = (long) columnCount * recordCount * 4;
+		long heapStart = valuesStart + valuesLength;
+		if ((recordCount < 0) || (columnCount < 0) || (heapLength < 0) || (valuesLength > Integer.MAX_VALUE)
+				|| (heapStart + (long) heapLength * 2 > length)) {
+			throw new IOException("Invalid record store file: " + file);
+		}
+
+		columnTypes = new int[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			columnTypes[i] = data.getInt((HEADER_SIZE + i) * 4);
+		}
+		values = FileBuffers.section(data, (int) valuesStart, (int) valuesLength).asIntBuffer();
+		heap = FileBuffers.section(data, (int) heapStart, heapLength * 2).asCharBuffer();
+	}
+
+
+	/**
+	 * Gets the number of records.
+	 * @return
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+
+	/**
+	 * Gets the number of columns.
+	 * @return
+	 */
+	public int getColumnCount() {
+		return columnTypes.length;
+	}
+
+
+	/**
+	 * Gets the type of a column.
+	 * @param column
+	 * @return {@link #COLUMN_INT}, {@link #COLUMN_FLOAT} or {@link #COLUMN_STRING}.
+	 */
+	public int getColumnType(int column) {
+		return columnTypes[column];
+	}
+
+
+	/**
+	 * Gets the raw value of a record, i.e. the heap offset for string columns.
+	 * @param record
+	 * @param column
+	 * @return
+	 */
+	private int get(int record, int column) {
+		if ((record < 0) || (record >= recordCount)) {
+			throw new IndexOutOfBoundsException("Invalid record: " + record);
+		}
+		if ((column < 0) || (column >= columnTypes.length)) {
+			throw new IndexOutOfBoundsException("Invalid column: " + column);
+		}
+		return values.get(column * recordCount + record);
+	}
+
+
+	/**
+	 * Gets an int value.
+	 * @param record
+	 * @param column an int column.
+	 * @return
+	 */
+	public int getInt(int record, int column) {
+		return get(record, column);
+	}
+
+
+	/**
+	 * Gets the int values of several records with a single call, e.g. for the results of a query.
+	 * @param records
+	 * @param count the number of records.
+	 * @param column an int column.
+	 * @param results receives the value of each record.
+	 */
+	public void getInts(int[] records, int count, int column, int[] results) {
+		for (int i = 0; i < count; i++) {
+			results[i] = get(records[i], column);
+		}
+	}
+
+
+	/**
+	 * Gets a float value.
+	 * @param record
+	 * @param column a float column.
+	 * @return
+	 */
+	public float getFloat(int record, int column) {
+		return Float.intBitsToFloat(get(record, column));
+	}
+
+
+	/**
+	 * Gets the length of a string value.
+	 * @param record
+	 * @param column a string column.
+	 * @return the length in chars, or -1 if the string is <code>null</code>.
+	 */
+	public int getStringLength(int record, int column) {
+		int offset = get(record, column);
+		return (offset == NULL_STRING) ? -1 : heap.get(offset);
+	}
+
+
+	/**
+	 * Copies a string value into a buffer without allocating.
+	 * @param record
+	 * @param column a string column.
+	 * @param buffer receives the chars, must have room for {@link #getStringLength(int, int)} chars.
+	 * @param bufferOffset
+	 * @return the length of the string, or -1 if the string is <code>null</code>.
+	 */
+	public int getString(int record, int column, char[] buffer, int bufferOffset) {
+		int offset = get(record, column);
+		if (offset == NULL_STRING) {
+			return -1;
+		}
+		int length = heap.get(offset);
+		for (int i = 0; i < length; i++) {
+			buffer[bufferOffset + i] = heap.get(offset + 1 + i);
+		}
+		return length;
+	}
+
+
+	/**
+	 * Gets a string value.
+	 * @param record
+	 * @param column a string column.
+	 * @return
+	 */
+	public String getString(int record, int column) {
+		int offset = get(record, column);
+		if (offset == NULL_STRING) {
+			return null;
+		}
+		int length = heap.get(offset);
+		char[] chars = new char[length];
+		getString(record, column, chars, 0);
+		return new String(chars);
+	}
+
+
+	/**
+	 * Tests if a string value is equal to a given string without allocating.
+	 * @param record
+	 * @param column a string column.
+	 * @param value
+	 * @return
+	 */
+	public boolean stringEquals(int record, int column, CharSequence value) {
+		int offset = get(record, column);
+		if ((offset == NULL_STRING) || (value == null)) {
+			return (offset == NULL_STRING) && (value == null);
+		}
+		int length = heap.get(offset);
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (heap.get(offset + 1 + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
\ No newline at end of file
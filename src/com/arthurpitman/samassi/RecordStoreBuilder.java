@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Builds {@link RecordStore} files.
+ * <p>
+ * Records are added one at a time and their index is passed as the offset of the matching entry to
+ * {@link StaticRTreeBuilder#add(int, int, int, int, int, int, int)}. Values default to 0 and
+ * <code>null</code>. Equal strings are stored once.
+ */
+public class RecordStoreBuilder {
+	/** Initial capacity of the columns. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Maximum length of a string. */
+	private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+	/** The type of each column. */
+	private final int[] columnTypes;
+
+	/** The values of each column. */
+	private final int[][] values;
+
+	/** The number of records added. */
+	private int recordCount;
+
+	/** The capacity of the columns. */
+	private int capacity = INITIAL_CAPACITY;
+
+	/** The string heap. */
+	private final StringBuilder heap = new StringBuilder();
+
+	/** The heap offset of each string added. */
+	private final HashMap<String, Integer> heapOffsets = new HashMap<String, Integer>();
+
+
+	/**
+	 * Creates a new {@link RecordStoreBuilder}.
+	 * @param columnTypes the type of each column, see {@link RecordStore#COLUMN_INT}.
+	 */
+	public RecordStoreBuilder(int... columnTypes) {
+		for (int type : columnTypes) {
+			if ((type != RecordStore.COLUMN_INT) && (type != RecordStore.COLUMN_FLOAT)
+					&& (type != RecordStore.COLUMN_STRING)) {
+				throw new IllegalArgumentException("Invalid column type: " + type);
+			}
+		}
+		this.columnTypes = columnTypes.clone();
+		values = new int[columnTypes.length][INITIAL_CAPACITY];
+	}
+
+
+	/**
+	 * Adds a record.
+	 * @return the index of the record.
+	 */
+	public int addRecord() {
+		if (recordCount == capacity) {
+			capacity *= 2;
+			for (int i = 0; i < values.length; i++) {
+				values[i] = Arrays.copyOf(values[i], capacity);
+			}
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i][recordCount] = (columnTypes[i] == RecordStore.COLUMN_STRING) ? RecordStore.NULL_STRING : 0;
+		}
+		return recordCount++;
+	}
+
+
+	/**
+	 * Checks a record and column.
+	 * @param record
+	 * @param column
+	 * @param type the expected column type.
+	 */
+	private void check(int record, int column, int type) {
+		if ((record < 0) || (record >= recordCount)) {
+			throw new IndexOutOfBoundsException("Invalid record: " + record);
+		}
+		if (columnTypes[column] != type) {
+			throw new IllegalArgumentException("Column " + column + " has type " + columnTypes[column]);
+		}
+	}
+
+
+	/**
+	 * Sets an int value.
+	 * @param record
+	 * @param column an int column.
+	 * @param value
+	 */
+	public void setInt(int record, int column, int value) {
+		check(record, column, RecordStore.COLUMN_INT);
+		values[column][record] = value;
+	}
+
+
+	/**
+	 * Sets a float value.
+	 * @param record
+	 * @param column a float column.
+	 * @param value
+	 */
+	public void setFloat(int record, int column, float value) {
+		check(record, column, RecordStore.COLUMN_FLOAT);
+		values[column][record] = Float.floatToRawIntBits(value);
+	}
+
+
+	/**
+	 * Sets a string value.
+	 * @param record
+	 * @param column a string column.
+	 * @param value the string, at most 65535 chars, or <code>null</code>.
+	 */
+	public void setString(int record, int column, String value) {
+		check(record, column, RecordStore.COLUMN_STRING);
+		if (value == null) {
+			values[column][record] = RecordStore.NULL_STRING;
+			return;
+		}
+		if (value.length() > MAX_STRING_LENGTH) {
+			throw new IllegalArgumentException("String too long: " + value.length());
+		}
+
+		Integer offset = heapOffsets.get(value);
+		if (offset == null) {
+			offset = heap.length();
+			heap.append((char) value.length());
+			heap.append(value);
+			heapOffsets.put(value, offset);
+		}
+		values[column][record] = offset;
+	}
+
+
+	/**
+	 * Gets the number of records added.
+	 * @return
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+
+	/**
+	 * Writes the records to a file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		OutputStream outputStream = new FileOutputStream(file);
+		try {
+			write(outputStream);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+
+	/**
+	 * Writes the records to a stream.
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	public void write(OutputStream outputStream) throws IOException {
+		DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+		dataStream.writeInt(RecordStore.MAGIC);
+		dataStream.writeInt(RecordStore.VERSION);
+		dataStream.writeInt(recordCount);
+		dataStream.writeInt(columnTypes.length);
+		dataStream.writeInt(heap.length());
+		for (int type : columnTypes) {
+			dataStream.writeInt(type);
+		}
+		for (int[] column : values) {
+			for (int i = 0; i < recordCount; i++) {
+				dataStream.writeInt(column[i]);
+			}
+		}
+		dataStream.writeChars(heap.toString());
+		dataStream.flush();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Implements a static r-tree whose entries also cover a time range, written by
+ * {@link SpatioTemporalRTreeBuilder}.
+ * <p>
+ * The layout follows {@link StaticRTree}, with the time range (start and end, inclusive) of each node stored
+ * alongside its bounds, so a single traversal prunes on space and time. Spatial tests use
+ * {@link MapRect#intersects(int, int, int, int, int, int, int, int)}.
+ * <p>
+ * The file format is big-endian:
+ * <pre>
+ * magic, version, size
+ * ids, offsets, types (1 per node), bounds (4 per node), siblings, parents (1 per node)
+ * time ranges (2 longs per node)
+ * </pre>
+ */
+public class SpatioTemporalRTree {
+	/** Magic number identifying the file format. */
+	static final int MAGIC = 0x53545431;
+
+	/** Version of the file format. */
+	static final int VERSION = 1;
+
+	/** Number of ints in the header. */
+	static final int HEADER_SIZE = 3;
+
+	/** The number of entries in the r-tree. */
+	private int size;
+
+	/** The id, offset, type, bounds, sibling, parent and time range of each entry. */
+	private RTreeTables tables;
+
+
+	/**
+	 * Creates a new SpatioTemporalRTree from the specified file, copying it to the heap.
+	 * @param file the file containing the r-tree.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public SpatioTemporalRTree(File file) throws FileNotFoundException, IOException {
+		this(file, false);
+	}
+
+
+	/**
+	 * Creates a new SpatioTemporalRTree from the specified file.
+	 * @param file the file containing the r-tree.
+	 * @param memoryMapped if <code>true</code> the file is memory-mapped and no heap copy is made.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public SpatioTemporalRTree(File file, boolean memoryMapped) throws FileNotFoundException, IOException {
+		ByteBuffer data = FileBuffers.map(file);
+		long length = data.limit();
+		if ((length < HEADER_SIZE * 4) || (data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)) {
+			throw new IOException("Invalid spatiotemporal r-tree file: " + file);
+		}
+		size = data.getInt(8);
+		if ((size < 0) || ((HEADER_SIZE + (long) size * RTreeTables.TIMED_ENTRY_INTS) * 4 > length)) {
+			throw new IOException("Invalid spatiotemporal r-tree file: " + file);
+		}
+
+		tables = new RTreeTables(data, HEADER_SIZE, size, true, !memoryMapped);
+	}
+
+
+	/**
+	 * Queries the tree for entries within a given rectangle and time range.
+	 * @param queryRect region of interest.
+	 * @param startTime start of the time range, inclusive.
+	 * @param endTime end of the time range, inclusive.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(MapRect queryRect, long startTime, long endTime, int queryType, int[] results, int maxResults) {
+		return traverse(queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
+				startTime, endTime, queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for entries within a given rectangle and time range.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param startTime start of the time range, inclusive.
+	 * @param endTime end of the time range, inclusive.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, long startTime, long endTime, int queryType,
+			int[] results, int maxResults) {
+		return traverse(minX, minY, maxX, maxY, startTime, endTime, queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for entries within a given rectangle and time range, passing each result to a visitor.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param startTime start of the time range, inclusive.
+	 * @param endTime end of the time range, inclusive.
+	 * @param queryType type restriction, -1 for none.
+	 * @param visitor called for each result, may stop the query early.
+	 * @return the number of results visited.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, long startTime, long endTime, int queryType,
+			RTreeVisitor visitor) {
+		return traverse(minX, minY, maxX, maxY, startTime, endTime, queryType, null, 0, visitor);
+	}
+
+
+	/**
+	 * Performs a query iteratively, in the same way as {@link StaticRTree}, descending only into nodes which
+	 * intersect both the rectangle and the time range.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param startTime
+	 * @param endTime
+	 * @param queryType
+	 * @param results
+	 * @param maxResults
+	 * @param visitor
+	 * @return
+	 */
+	private int traverse(int minX, int minY, int maxX, int maxY, long startTime, long endTime, int queryType,
+			int[] results, int maxResults, RTreeVisitor visitor) {
+		return tables.traverse(0, minX, minY, maxX, maxY, startTime, endTime, queryType, null, results, maxResults,
+				visitor);
+	}
+
+
+	/**
+	 * Gets the ID of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getId(int index) {
+		return tables.getId(index);
+	}
+
+
+	/**
+	 * Gets the offset of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getOffset(int index) {
+		return tables.getOffset(index);
+	}
+
+
+	/**
+	 * Gets the type of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getType(int index) {
+		return tables.getType(index);
+	}
+
+
+	/**
+	 * Gets the bounds of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public MapRect getBounds(int index) {
+		int b = index * 4;
+		return new MapRect(tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2), tables.getBound(b + 3));
+	}
+
+
+	/**
+	 * Gets the start time of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public long getStartTime(int index) {
+		return tables.getStartTime(index);
+	}
+
+
+	/**
+	 * Gets the end time of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public long getEndTime(int index) {
+		return tables.getEndTime(index);
+	}
+
+
+	/**
+	 * Gets the size of the tree.
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Builds {@link SpatioTemporalRTree} files by bulk loading entries with a three dimensional
+ * Sort-Tile-Recursive (STR) packing.
+ * <p>
+ * Each level is sorted on time and cut into slabs, each slab is sorted on x and cut into slices, and each
+ * slice is sorted on y and grouped under new parents. Nodes therefore cover short time ranges as well as
+ * small regions, so queries for a time window skip most of the tree. Packing and the layout are otherwise
+ * those of {@link StaticRTreeBuilder}, with the time ranges written after the other tables. There is no
+ * compact format, as it has no time ranges.
+ * <p>
+ * To keep the object count low, arrays are used.
+ */
+public class SpatioTemporalRTreeBuilder extends RTreeBuilder {
+
+	/** The time range (start, end) of each entry, followed by those of internal nodes while building. */
+	private long[] times = new long[INITIAL_CAPACITY * 2];
+
+
+	/**
+	 * Creates a new {@link SpatioTemporalRTreeBuilder} with the default node capacity.
+	 */
+	public SpatioTemporalRTreeBuilder() {
+		this(StaticRTreeBuilder.DEFAULT_NODE_CAPACITY);
+	}
+
+
+	/**
+	 * Creates a new {@link SpatioTemporalRTreeBuilder}.
+	 * @param nodeCapacity maximum number of children per node, at least 2.
+	 */
+	public SpatioTemporalRTreeBuilder(int nodeCapacity) {
+		super(nodeCapacity);
+	}
+
+
+	/**
+	 * Adds an entry covering all time.
+	 * @param id
+	 * @param offset
+	 * @param type the type of the entry, must not be {@link StaticRTree#TYPE_NODE}.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	@Override
+	public void add(int id, int offset, int type, int minX, int minY, int maxX, int maxY) {
+		add(id, offset, type, minX, minY, maxX, maxY, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+
+	/**
+	 * Adds an entry.
+	 * @param id
+	 * @param offset
+	 * @param type the type of the entry, must not be {@link StaticRTree#TYPE_NODE}.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param startTime start of the time range, inclusive.
+	 * @param endTime end of the time range, inclusive.
+	 */
+	public void add(int id, int offset, int type, int minX, int minY, int maxX, int maxY, long startTime,
+			long endTime) {
+		if (startTime > endTime) {
+			throw new IllegalArgumentException("Start time is after end time: " + startTime + " > " + endTime);
+		}
+		super.add(id, offset, type, minX, minY, maxX, maxY);
+		int t = (getSize() - 1) * 2;
+		times[t] = startTime;
+		times[t + 1] = endTime;
+	}
+
+
+	@Override
+	void resizeNodes(int capacity) {
+		super.resizeNodes(capacity);
+		times = Arrays.copyOf(times, capacity * 2);
+	}
+
+
+	/**
+	 * Sorts a level into time slabs, sorts each slab into vertical slices, then sorts each slice on y.
+	 * @param level
+	 * @param sortExecutor
+	 * @param threads
+	 * @return the size of the slices, slabs being a whole number of slices.
+	 * @throws IOException
+	 */
+	@Override
+	int sortLevel(int[] level, ExecutorService sortExecutor, int threads) throws IOException {
+		int count = level.length;
+		int parentCount = (count + nodeCapacity - 1) / nodeCapacity;
+		int slabCount = (int) Math.ceil(Math.cbrt(parentCount));
+		int sliceSize = slabCount * nodeCapacity;
+		int slabSize = slabCount * sliceSize;
+
+		sortOnTime(level);
+		for (int slabStart = 0; slabStart < count; slabStart += slabSize) {
+			int slabEnd = Math.min(slabStart + slabSize, count);
+			sort(level, slabStart, slabEnd, true, sortExecutor, threads);
+			sortSlices(level, slabStart, slabEnd, sliceSize, sortExecutor);
+		}
+		return sliceSize;
+	}
+
+
+	/**
+	 * Computes the time range of an internal node from its children.
+	 * @param node
+	 * @param children
+	 * @param childStart
+	 * @param childEnd
+	 */
+	@Override
+	void addNodeData(int node, int[] children, int childStart, int childEnd) {
+		long startTime = Long.MAX_VALUE;
+		long endTime = Long.MIN_VALUE;
+		for (int i = childStart; i < childEnd; i++) {
+			int t = children[i] * 2;
+			startTime = Math.min(startTime, times[t]);
+			endTime = Math.max(endTime, times[t + 1]);
+		}
+		times[node * 2] = startTime;
+		times[node * 2 + 1] = endTime;
+	}
+
+
+	/**
+	 * Sorts nodes on the center of their time ranges.
+	 * <p>
+	 * Nodes are sorted as packed long keys, with the center in the high and the position in the low bits.
+	 * Time centers are scaled down to 31 bits relative to the smallest one, which only coarsens the order.
+	 * @param nodes
+	 */
+	private void sortOnTime(int[] nodes) {
+		int length = nodes.length;
+		long minCenter = Long.MAX_VALUE;
+		long maxCenter = Long.MIN_VALUE;
+		for (int i = 0; i < length; i++) {
+			long center = timeCenter(nodes[i]);
+			minCenter = Math.min(minCenter, center);
+			maxCenter = Math.max(maxCenter, center);
+		}
+
+		long[] keys = new long[length];
+		int shift = Math.max(0, 33 - Long.numberOfLeadingZeros(maxCenter - minCenter));
+		for (int i = 0; i < length; i++) {
+			long center = (timeCenter(nodes[i]) - minCenter) >>> shift;
+			keys[i] = (center << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		int[] sorted = new int[length];
+		for (int i = 0; i < length; i++) {
+			sorted[i] = nodes[(int) (keys[i] & 0xFFFFFFFFL)];
+		}
+		System.arraycopy(sorted, 0, nodes, 0, length);
+	}
+
+
+	/**
+	 * Gets the center of the time range of a node without overflowing.
+	 * @param node
+	 * @return
+	 */
+	private long timeCenter(int node) {
+		long start = times[node * 2];
+		long end = times[node * 2 + 1];
+		return start + ((end - start) >>> 1);
+	}
+
+
+	@Override
+	void writeHeader(DataOutputStream dataOutputStream, int nodeCount) throws IOException {
+		dataOutputStream.writeInt(SpatioTemporalRTree.MAGIC);
+		dataOutputStream.writeInt(SpatioTemporalRTree.VERSION);
+		dataOutputStream.writeInt(nodeCount);
+	}
+
+
+	@Override
+	void writeNodeData(DataOutputStream dataOutputStream, int[] preorder, int nodeCount) throws IOException {
+		for (int i = 0; i < nodeCount; i++) {
+			dataOutputStream.writeLong(times[preorder[i] * 2]);
+			dataOutputStream.writeLong(times[preorder[i] * 2 + 1]);
+		}
+	}
+}
\ No newline at end of file
@@ -16,78 +16,308 @@
 
 package com.arthurpitman.samassi;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.arthurpitman.samassi.geometry.DistanceEstimator;
 
 
 /**
  * Implements a static r-tree, loaded from a flat file format. Useful for fast spatial queries of static data.
  * <p>
- * To keep the object count low, arrays are used.
+ * To keep the object count low, arrays are used. The tree can either be copied to the heap or memory-mapped,
+ * in which case queries are answered straight from the file and the memory is shared with the page cache.
  */
 public class StaticRTree {
+	/** The type of internal nodes written by {@link StaticRTreeBuilder}, never returned by untyped queries. */
+	public static final int TYPE_NODE = -2;
+
 	/** The number of entries in the r-tree. */
 	private int size;
 
-	/** The id of each entry. */
-	private int[] ids;
+	/**
+	 * The id, offset, type, bounds, sibling and parent of each entry. Offsets are used to address a
+	 * secondary table, such as a {@link RecordStore}.
+	 */
+	private RTreeTables tables;
+
+	/** The depth of the tree, computed when first needed. */
+	private volatile int depth = -1;
 
-	/** The offsets of each entry. Used to address a secondary table*/
-	private int[] offsets;
+	/** Bit masks of the types in the subtree of each entry, computed when first needed. */
+	private volatile int[] typeMasks;
 
-	/** The type of each entry. */
-	private int[] types;
+	/** Maximum number of query types whose summaries are kept. */
+	private static final int MAX_SUMMARIES = 4;
+
+	/** Subtree summaries by query type, computed when first needed, least recently used first. */
+	private final LinkedHashMap<Integer, Summary> summaries = new LinkedHashMap<Integer, Summary>(
+			MAX_SUMMARIES * 2, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Summary> eldest) {
+			return size() > MAX_SUMMARIES;
+		}
+	};
+
+
+	/**
+	 * Aggregates of the matching entries in the subtree of each entry.
+	 */
+	private static class Summary {
+		/** The number of matching entries in each subtree. */
+		private final int[] counts;
 
-	/** The bounds (minX, minY, maxX, maxY) of each entry. */
-	private int[] bounds;
+		/** The envelope (minX, minY, maxX, maxY) of the matching entries in each subtree, null if untyped. */
+		private final int[] envelopes;
 
-	/** The sibling of each entry. */
-	private int[] siblings;
 
-	/** The parent of each entry. */
-	private int[] parents;
+		/**
+		 * Creates a new Summary.
+		 * @param counts
+		 * @param envelopes
+		 */
+		public Summary(int[] counts, int[] envelopes) {
+			this.counts = counts;
+			this.envelopes = envelopes;
+		}
+	}
 
 
 	/**
-	 * Creates a new StaticRTree from the specified file.
+	 * State of a join, traversing pairs of nodes of two trees with an explicit stack.
 	 * <p>
-	 * Note, the file must be big-endian as the class uses DataInputStream.
+	 * For each intersecting pair, the entries themselves are reported, each entry is queried against the
+	 * subtrees below the other one, and the intersecting pairs of children are traversed, so every pair of
+	 * entries is reported exactly once.
+	 */
+	private static class Join implements RTreeVisitor {
+		private final StaticRTree treeA;
+		private final StaticRTree treeB;
+		private final int typeA;
+		private final int typeB;
+		private final int[] masksA;
+		private final int[] masksB;
+		private final RTreePairVisitor visitor;
+
+		/** Flag shared by parallel joins, set once the visitor stops the join. */
+		private final AtomicBoolean stopped;
+
+		/** Pending pairs of nodes. */
+		private int[] stack = new int[64];
+		private int stackSize;
+
+		/** The entry queried against a subtree of the other tree. */
+		private int fixedIndex;
+		private boolean fixedInA;
+
+		/** The number of pairs reported. */
+		private long count;
+
+
+		/**
+		 * Creates a new Join.
+		 * @param treeA
+		 * @param treeB
+		 * @param typeA
+		 * @param typeB
+		 * @param visitor
+		 * @param stopped
+		 */
+		public Join(StaticRTree treeA, StaticRTree treeB, int typeA, int typeB, RTreePairVisitor visitor,
+				AtomicBoolean stopped) {
+			this.treeA = treeA;
+			this.treeB = treeB;
+			this.typeA = typeA;
+			this.typeB = typeB;
+			this.masksA = (typeA == -1) ? null : treeA.getTypeMasks();
+			this.masksB = (typeB == -1) ? null : treeB.getTypeMasks();
+			this.visitor = visitor;
+			this.stopped = stopped;
+		}
+
+
+		/**
+		 * Joins the subtrees of two nodes.
+		 * @param rootA
+		 * @param rootB
+		 * @param pairs receives the intersecting pairs of children of the roots instead of traversing them,
+		 *        null to traverse everything.
+		 */
+		public void run(int rootA, int rootB, List<int[]> pairs) {
+			if (!mayMatch(masksA, typeA, rootA) || !mayMatch(masksB, typeB, rootB) || !intersects(rootA, rootB)) {
+				return;
+			}
+			push(rootA, rootB);
+
+			while ((stackSize > 0) && !stopped.get()) {
+				stackSize -= 2;
+				int indexA = stack[stackSize];
+				int indexB = stack[stackSize + 1];
+				int firstChildA = treeA.tables.firstChild(indexA);
+				int firstChildB = treeB.tables.firstChild(indexB);
+				boolean matchesA = treeA.matches(indexA, typeA);
+				boolean matchesB = treeB.matches(indexB, typeB);
+
+				if (matchesA && matchesB && !report(indexA, indexB)) {
+					return;
+				}
+
+				// each entry against the subtrees below the other one
+				if (matchesA) {
+					fixedIndex = indexA;
+					fixedInA = true;
+					int b = indexA * 4;
+					for (int childB = firstChildB; childB != 0; childB = treeB.tables.getSibling(childB)) {
+						RTreeTables tables = treeA.tables;
+						treeB.traverse(childB, tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2),
+								tables.getBound(b + 3), typeB, null, 0, this);
+					}
+				}
+				if (matchesB) {
+					fixedIndex = indexB;
+					fixedInA = false;
+					int b = indexB * 4;
+					for (int childA = firstChildA; childA != 0; childA = treeA.tables.getSibling(childA)) {
+						RTreeTables tables = treeB.tables;
+						treeA.traverse(childA, tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2),
+								tables.getBound(b + 3), typeA, null, 0, this);
+					}
+				}
+
+				// intersecting pairs of children
+				for (int childA = firstChildA; childA != 0; childA = treeA.tables.getSibling(childA)) {
+					if (!mayMatch(masksA, typeA, childA)) {
+						continue;
+					}
+					for (int childB = firstChildB; childB != 0; childB = treeB.tables.getSibling(childB)) {
+						if (mayMatch(masksB, typeB, childB) && intersects(childA, childB)) {
+							if (pairs != null) {
+								pairs.add(new int[] {childA, childB});
+							} else {
+								push(childA, childB);
+							}
+						}
+					}
+				}
+				pairs = null;
+			}
+		}
+
+
+		@Override
+		public boolean visit(int index) {
+			return fixedInA ? report(fixedIndex, index) : report(index, fixedIndex);
+		}
+
+
+		/**
+		 * Reports a pair to the visitor.
+		 * @param indexA
+		 * @param indexB
+		 * @return false if the join was stopped.
+		 */
+		private boolean report(int indexA, int indexB) {
+			if (stopped.get()) {
+				return false;
+			}
+			count++;
+			if (!visitor.visit(indexA, indexB)) {
+				stopped.set(true);
+				return false;
+			}
+			return true;
+		}
+
+
+		/**
+		 * Pushes a pair of nodes.
+		 * @param indexA
+		 * @param indexB
+		 */
+		private void push(int indexA, int indexB) {
+			if (stackSize == stack.length) {
+				stack = Arrays.copyOf(stack, stackSize * 2);
+			}
+			stack[stackSize] = indexA;
+			stack[stackSize + 1] = indexB;
+			stackSize += 2;
+		}
+
+
+		/**
+		 * Tests if the bounds of two nodes intersect.
+		 * @param indexA
+		 * @param indexB
+		 * @return
+		 */
+		private boolean intersects(int indexA, int indexB) {
+			int a = indexA * 4;
+			int b = indexB * 4;
+			RTreeTables tablesA = treeA.tables;
+			RTreeTables tablesB = treeB.tables;
+			return MapRect.intersects(tablesA.getBound(a), tablesA.getBound(a + 1), tablesA.getBound(a + 2),
+					tablesA.getBound(a + 3), tablesB.getBound(b), tablesB.getBound(b + 1), tablesB.getBound(b + 2),
+					tablesB.getBound(b + 3));
+		}
+
+
+		/**
+		 * Tests if the subtree of a node may contain an entry of the query type.
+		 * @param masks
+		 * @param type
+		 * @param index
+		 * @return
+		 */
+		private static boolean mayMatch(int[] masks, int type, int index) {
+			return (masks == null) || ((masks[index] & RTreeTables.typeBit(type)) != 0);
+		}
+	}
+
+
+	/**
+	 * Creates a new StaticRTree from the specified file, copying it to the heap.
+	 * <p>
+	 * Note, the file must be big-endian.
 	 * @param file the file containing the r-tree.
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
 	public StaticRTree(File file) throws FileNotFoundException, IOException {
-		DataInputStream dataInputStream = new DataInputStream(new FileInputStream(file));
-		try {
-			size = dataInputStream.readInt();
-			ids = readIntArray(dataInputStream, size);
-			offsets = readIntArray(dataInputStream, size);
-			types = readIntArray(dataInputStream, size);
-			bounds = readIntArray(dataInputStream, size * 4);
-			siblings = readIntArray(dataInputStream, size);
-			parents = readIntArray(dataInputStream, size);
-		} finally {
-			dataInputStream.close();
-		}
+		this(file, false);
 	}
 
 
 	/**
-	 * Reads an integer array of the the specified length.
-	 * @param dataInputStream the DataInputStream to read from.
-	 * @param length the length of the array.
-	 * @return the array.
+	 * Creates a new StaticRTree from the specified file.
+	 * <p>
+	 * Note, the file must be big-endian.
+	 * @param file the file containing the r-tree.
+	 * @param memoryMapped if <code>true</code> the file is memory-mapped and no heap copy is made.
+	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
-	private int[] readIntArray(DataInputStream dataInputStream, int length) throws IOException {
-		int[] array = new int[length];
-		for (int i = 0; i < length; i++) {
-			array[i] = dataInputStream.readInt();
+	public StaticRTree(File file, boolean memoryMapped) throws FileNotFoundException, IOException {
+		ByteBuffer data = FileBuffers.map(file);
+		int limit = data.limit() / 4;
+		size = (limit > 0) ? data.getInt(0) : -1;
+		if ((size < 0) || ((long) size * RTreeTables.ENTRY_INTS + 1 > limit)) {
+			throw new IOException("Invalid r-tree file: " + file);
 		}
-		return array;
+
+		// on the heap the tables are copied to arrays, which queries read without going through a buffer
+		tables = new RTreeTables(data, 1, size, false, !memoryMapped);
 	}
 
 
@@ -100,62 +330,677 @@ public class StaticRTree {
 	 * @return the number of results retrieved.
 	 */
 	public int query(MapRect queryRect, int queryType, int[] results, int maxResults) {
-		return queryRec(queryRect, queryType, results, maxResults, 0, 0);
+		return traverse(0, queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
+				queryType, results, maxResults, null);
 	}
 
 
 	/**
-	 * Performs the query recursively.
-	 * @param queryRect
+	 * Queries the tree for nodes within a given rectangle.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for result indexs (NOT ids!), null to count results.
+	 * @param maxResults maximum number of results to retrieve.
+	 * @return the number of results retrieved.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults) {
+		return traverse(0, minX, minY, maxX, maxY, queryType, results, maxResults, null);
+	}
+
+
+	/**
+	 * Queries the tree for nodes within a given rectangle, passing each result to a visitor.
+	 * <p>
+	 * No objects are allocated, so this is suitable for running many queries per frame.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param visitor called for each result, may stop the query early.
+	 * @return the number of results visited.
+	 */
+	public int query(int minX, int minY, int maxX, int maxY, int queryType, RTreeVisitor visitor) {
+		return traverse(0, minX, minY, maxX, maxY, queryType, null, 0, visitor);
+	}
+
+
+	/**
+	 * Performs a query of a subtree iteratively, see
+	 * {@link RTreeTables#traverse(int, int, int, int, int, long, long, int, int[], int[], int, RTreeVisitor)}.
+	 * @param root the root of the subtree, 0 for the whole tree.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
 	 * @param queryType
 	 * @param results
 	 * @param maxResults
-	 * @param index
-	 * @param resultsIndex
+	 * @param visitor
 	 * @return
 	 */
-	private int queryRec(MapRect queryRect, int queryType, int[] results, int maxResults, int index, int resultsIndex) {
-		if ((results != null) && (resultsIndex >= maxResults)) {
-			return resultsIndex;
+	private int traverse(int root, int minX, int minY, int maxX, int maxY, int queryType, int[] results, int maxResults,
+			RTreeVisitor visitor) {
+		int[] masks = ((queryType == -1) || (size == 0)) ? null : getTypeMasks();
+		return tables.traverse(root, minX, minY, maxX, maxY, Long.MIN_VALUE, Long.MAX_VALUE, queryType, masks, results,
+				maxResults, visitor);
+	}
+
+
+	/**
+	 * Queries the tree for nodes within any of several rectangles, walking the tree only once.
+	 * <p>
+	 * Each node is only tested against the rectangles which intersect its parent, so the upper levels of
+	 * the tree are shared by all queries. Results are stored as (queryIndex, nodeIndex) pairs, in tree order.
+	 * @param rects the query rectangles, as minX, minY, maxX and maxY for each query.
+	 * @param rectCount the number of query rectangles.
+	 * @param queryType type restriction, -1 for none.
+	 * @param results buffer for pairs of query index and result index (NOT id!), null to count results.
+	 * @param maxResults maximum number of pairs to retrieve.
+	 * @return the number of pairs retrieved.
+	 */
+	public int query(int[] rects, int rectCount, int queryType, int[] results, int maxResults) {
+		if ((size == 0) || (rectCount <= 0)) {
+			return 0;
 		}
 
-		// only continue processing if the node intersects the region of interest
-		if (!MapRect.intersects(queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
-				bounds[index * 4], bounds[index * 4 + 1], bounds[index * 4 + 2], bounds[index * 4 + 3])) {
-			return resultsIndex;
+		// the queries still active at each depth are stored in consecutive segments
+		int levels = getDepth() + 2;
+		int[] active = new int[levels * rectCount];
+		int[] segmentStarts = new int[levels];
+		int[] segmentEnds = new int[levels];
+		for (int i = 0; i < rectCount; i++) {
+			active[i] = i;
 		}
+		segmentEnds[0] = rectCount;
+
+		int[] masks = (queryType == -1) ? null : getTypeMasks();
+		int typeBit = RTreeTables.typeBit(queryType);
 
-		// save result if the type matches query type or no query type is specified
-		if ((queryType == -1) || (types[index] == queryType)) {
-			if (results != null) {
-				results[resultsIndex] = index;
+		int resultsIndex = 0;
+		int level = 0;
+		int index = 0;
+		while (true) {
+			// keep the queries which intersect this node, none if the subtree lacks the query type
+			int b = index * 4;
+			int minX = tables.getBound(b);
+			int minY = tables.getBound(b + 1);
+			int maxX = tables.getBound(b + 2);
+			int maxY = tables.getBound(b + 3);
+			int start = segmentEnds[level];
+			int end = start;
+			int segmentEnd = ((masks == null) || ((masks[index] & typeBit) != 0)) ? segmentEnds[level] : 0;
+			for (int i = segmentStarts[level]; i < segmentEnd; i++) {
+				int q = active[i] * 4;
+				if (MapRect.intersects(rects[q], rects[q + 1], rects[q + 2], rects[q + 3], minX, minY, maxX, maxY)) {
+					active[end++] = active[i];
+				}
+			}
+
+			if (end > start) {
+				if (matches(index, queryType)) {
+					for (int i = start; i < end; i++) {
+						if (results != null) {
+							if (resultsIndex >= maxResults) {
+								return resultsIndex;
+							}
+							results[resultsIndex * 2] = active[i];
+							results[resultsIndex * 2 + 1] = index;
+						}
+						resultsIndex++;
+					}
+				}
+
+				int childIndex = tables.firstChild(index);
+				if (childIndex != 0) {
+					level++;
+					segmentStarts[level] = start;
+					segmentEnds[level] = end;
+					index = childIndex;
+					continue;
+				}
 			}
-			resultsIndex++;
-		}
 
-		// iterate through all children
-		int childIndex = index + 1;
-		if ((childIndex < size) && (parents[childIndex] == index)) {
+			// move on to the next sibling, climbing up until one is found
 			while (true) {
-				resultsIndex = queryRec(queryRect, queryType, results, maxResults, childIndex, resultsIndex);
-				childIndex = siblings[childIndex];
-				if (childIndex == 0) {
+				if (index == 0) {
+					return resultsIndex;
+				}
+				int siblingIndex = tables.getSibling(index);
+				if (siblingIndex != 0) {
+					index = siblingIndex;
 					break;
 				}
+				index = tables.getParent(index);
+				level--;
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the depth of the tree, i.e. the number of levels below the root.
+	 * @return
+	 */
+	public int getDepth() {
+		int treeDepth = depth;
+		if (treeDepth < 0) {
+			// parents precede their children in preorder
+			int[] depths = new int[size];
+			treeDepth = 0;
+			for (int i = 1; i < size; i++) {
+				depths[i] = depths[tables.getParent(i)] + 1;
+				treeDepth = Math.max(treeDepth, depths[i]);
+			}
+			depth = treeDepth;
+		}
+		return treeDepth;
+	}
+
+
+	/**
+	 * Counts the entries within a given rectangle.
+	 * @param queryRect region of interest.
+	 * @param queryType type restriction, -1 for none.
+	 * @return the number of matching entries.
+	 */
+	public int count(MapRect queryRect, int queryType) {
+		return aggregate(queryRect.getMinX(), queryRect.getMinY(), queryRect.getMaxX(), queryRect.getMaxY(),
+				queryType, null);
+	}
+
+
+	/**
+	 * Counts the entries within a given rectangle.
+	 * <p>
+	 * Subtrees which lie entirely within the rectangle are counted from precomputed subtree counts without
+	 * descending, so only the nodes along the border of the rectangle are visited. The counts are computed
+	 * on first use for each query type and kept on the heap, even for memory-mapped trees: 1 int per entry for
+	 * untyped queries and 5 ints per entry for typed ones. Summaries of the 4 most recently used query types
+	 * are kept, see {@link #releaseSummaries()}.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @return the number of matching entries.
+	 */
+	public int count(int minX, int minY, int maxX, int maxY, int queryType) {
+		return aggregate(minX, minY, maxX, maxY, queryType, null);
+	}
+
+
+	/**
+	 * Gets the envelope of the entries within a given rectangle, in the same way as
+	 * {@link #count(int, int, int, int, int)}.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType type restriction, -1 for none.
+	 * @param envelope array receiving minX, minY, maxX and maxY of the matching entries.
+	 * @return the number of matching entries, 0 if the envelope is undefined.
+	 */
+	public int getEnvelope(int minX, int minY, int maxX, int maxY, int queryType, int[] envelope) {
+		envelope[0] = Integer.MAX_VALUE;
+		envelope[1] = Integer.MAX_VALUE;
+		envelope[2] = Integer.MIN_VALUE;
+		envelope[3] = Integer.MIN_VALUE;
+		return aggregate(minX, minY, maxX, maxY, queryType, envelope);
+	}
+
+
+	/**
+	 * Counts the entries within a rectangle, optionally extending their envelope.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param queryType
+	 * @param envelope
+	 * @return
+	 */
+	private int aggregate(int minX, int minY, int maxX, int maxY, int queryType, int[] envelope) {
+		if (size == 0) {
+			return 0;
+		}
+
+		Summary summary = getSummary(queryType);
+		int[] counts = summary.counts;
+		int[] envelopes = summary.envelopes;
+
+		int count = 0;
+		int index = 0;
+		while (true) {
+			// test the envelope of the matching entries in the subtree, which is tighter for typed queries
+			int b = index * 4;
+			int nodeMinX;
+			int nodeMinY;
+			int nodeMaxX;
+			int nodeMaxY;
+			if (envelopes == null) {
+				nodeMinX = tables.getBound(b);
+				nodeMinY = tables.getBound(b + 1);
+				nodeMaxX = tables.getBound(b + 2);
+				nodeMaxY = tables.getBound(b + 3);
+			} else {
+				nodeMinX = envelopes[b];
+				nodeMinY = envelopes[b + 1];
+				nodeMaxX = envelopes[b + 2];
+				nodeMaxY = envelopes[b + 3];
+			}
+
+			if ((counts[index] > 0) && MapRect.intersects(minX, minY, maxX, maxY, nodeMinX, nodeMinY, nodeMaxX, nodeMaxY)) {
+				if (MapRect.contains(minX, minY, maxX, maxY, nodeMinX, nodeMinY, nodeMaxX, nodeMaxY)) {
+					// the whole subtree is within the rectangle
+					count += counts[index];
+					if (envelope != null) {
+						extend(envelope, nodeMinX, nodeMinY, nodeMaxX, nodeMaxY);
+					}
+				} else {
+					if (matches(index, queryType) && MapRect.intersects(minX, minY, maxX, maxY,
+							tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2), tables.getBound(b + 3))) {
+						count++;
+						if (envelope != null) {
+							extend(envelope, tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2), tables.getBound(b + 3));
+						}
+					}
+
+					int childIndex = tables.firstChild(index);
+					if (childIndex != 0) {
+						index = childIndex;
+						continue;
+					}
+				}
+			}
+
+			// move on to the next sibling, climbing up until one is found
+			index = tables.next(0, index);
+			if (index < 0) {
+				return count;
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the subtree summary for a query type, computing it on first use.
+	 * <p>
+	 * Untyped summaries only hold counts, as the bounds of each entry already cover its subtree. Typed
+	 * summaries also hold the envelope of the matching entries of each subtree.
+	 * @param queryType
+	 * @return
+	 */
+	private Summary getSummary(int queryType) {
+		synchronized (summaries) {
+			Summary summary = summaries.get(queryType);
+			if (summary != null) {
+				return summary;
+			}
+
+			int[] counts = new int[size];
+			int[] envelopes = null;
+			if (queryType != -1) {
+				envelopes = new int[size * 4];
+				for (int i = 0; i < size; i++) {
+					envelopes[i * 4] = Integer.MAX_VALUE;
+					envelopes[i * 4 + 1] = Integer.MAX_VALUE;
+					envelopes[i * 4 + 2] = Integer.MIN_VALUE;
+					envelopes[i * 4 + 3] = Integer.MIN_VALUE;
+				}
+			}
+
+			// children follow their parents in preorder, so accumulate upwards in reverse
+			int[] envelope = new int[4];
+			for (int i = size - 1; i >= 0; i--) {
+				if (matches(i, queryType)) {
+					counts[i]++;
+					if (envelopes != null) {
+						System.arraycopy(envelopes, i * 4, envelope, 0, 4);
+						int b = i * 4;
+						extend(envelope, tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2), tables.getBound(b + 3));
+						System.arraycopy(envelope, 0, envelopes, i * 4, 4);
+					}
+				}
+
+				if ((i > 0) && (counts[i] > 0)) {
+					int parent = tables.getParent(i);
+					counts[parent] += counts[i];
+					if (envelopes != null) {
+						System.arraycopy(envelopes, parent * 4, envelope, 0, 4);
+						extend(envelope, envelopes[i * 4], envelopes[i * 4 + 1], envelopes[i * 4 + 2], envelopes[i * 4 + 3]);
+						System.arraycopy(envelope, 0, envelopes, parent * 4, 4);
+					}
+				}
 			}
+
+			summary = new Summary(counts, envelopes);
+			summaries.put(queryType, summary);
+			return summary;
 		}
+	}
+
+
+	/**
+	 * Releases the subtree summaries used by {@link #count(int, int, int, int, int)} and
+	 * {@link #getEnvelope(int, int, int, int, int, int[])}, which are computed again when next needed.
+	 */
+	public void releaseSummaries() {
+		synchronized (summaries) {
+			summaries.clear();
+		}
+	}
+
+
+	/**
+	 * Extends an envelope to include the specified bounds.
+	 * <p>
+	 * Bounds crossing the date line extend the envelope to the whole width of the map.
+	 * @param envelope
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	private static void extend(int[] envelope, int minX, int minY, int maxX, int maxY) {
+		if (minX > maxX) {
+			envelope[0] = 0;
+			envelope[2] = MapPoint.BASE;
+		} else {
+			envelope[0] = Math.min(envelope[0], minX);
+			envelope[2] = Math.max(envelope[2], maxX);
+		}
+		envelope[1] = Math.min(envelope[1], minY);
+		envelope[3] = Math.max(envelope[3], maxY);
+	}
+
+
+	/**
+	 * Joins this tree with another one, reporting every pair of intersecting entries.
+	 * <p>
+	 * Both trees are traversed together, so only pairs of subtrees with intersecting bounds are visited.
+	 * @param other the other tree, may be this tree.
+	 * @param typeA type restriction for entries of this tree, -1 for none.
+	 * @param typeB type restriction for entries of the other tree, -1 for none.
+	 * @param visitor called for each pair, may stop the join early.
+	 * @return the number of pairs reported.
+	 */
+	public long join(StaticRTree other, int typeA, int typeB, RTreePairVisitor visitor) {
+		if ((size == 0) || (other.size == 0)) {
+			return 0;
+		}
+
+		Join join = new Join(this, other, typeA, typeB, visitor, new AtomicBoolean());
+		join.run(0, 0, null);
+		return join.count;
+	}
+
+
+	/**
+	 * Joins this tree with another one in parallel, reporting every pair of intersecting entries.
+	 * <p>
+	 * The pairs of top-level subtrees are joined as separate tasks on the executor, so the visitor must be
+	 * thread-safe. This call blocks until all tasks are complete.
+	 * @param other the other tree, may be this tree.
+	 * @param typeA type restriction for entries of this tree, -1 for none.
+	 * @param typeB type restriction for entries of the other tree, -1 for none.
+	 * @param visitor called for each pair, may stop the join early.
+	 * @param executor the executor to run the tasks on.
+	 * @return the number of pairs reported.
+	 * @throws InterruptedException
+	 * @throws ExecutionException if the visitor threw an exception.
+	 */
+	public long join(final StaticRTree other, final int typeA, final int typeB, final RTreePairVisitor visitor,
+			ExecutorService executor) throws InterruptedException, ExecutionException {
+		if ((size == 0) || (other.size == 0)) {
+			return 0;
+		}
+
+		// the roots are joined here, their pairs of children as tasks
+		final AtomicBoolean stopped = new AtomicBoolean();
+		List<int[]> pairs = new ArrayList<int[]>();
+		Join rootJoin = new Join(this, other, typeA, typeB, visitor, stopped);
+		rootJoin.run(0, 0, pairs);
 
+		List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(pairs.size());
+		for (final int[] pair : pairs) {
+			tasks.add(new Callable<Long>() {
+				public Long call() throws Exception {
+					Join join = new Join(StaticRTree.this, other, typeA, typeB, visitor, stopped);
+					join.run(pair[0], pair[1], null);
+					return join.count;
+				}
+			});
+		}
+
+		long count = rootJoin.count;
+		for (Future<Long> future : executor.invokeAll(tasks)) {
+			count += future.get();
+		}
+		return count;
+	}
+
+
+	/**
+	 * Finds the entries nearest to a point, in order of increasing distance.
+	 * <p>
+	 * Nodes are visited best-first, so only the part of the tree that is closer than the k-th result is
+	 * searched. Distances are to the closest point of each entry's bounds and are estimated with
+	 * {@link DistanceEstimator}. Nodes with children are queued by a lower bound of the distances within
+	 * their bounds, so no entry comes off the heap before a closer one.
+	 * @param x
+	 * @param y
+	 * @param queryType type restriction, -1 for none.
+	 * @param maxDistance maximum distance in meters, {@link Double#POSITIVE_INFINITY} for none.
+	 * @param results buffer for result indexes (NOT ids!).
+	 * @param distances buffer for result distances in meters, may be null.
+	 * @param maxResults maximum number of results to retrieve, i.e. k.
+	 * @return the number of results retrieved.
+	 */
+	public int nearest(int x, int y, int queryType, double maxDistance, int[] results, double[] distances, int maxResults) {
+		if ((size == 0) || (maxResults <= 0)) {
+			return 0;
+		}
+
+		int[] masks = (queryType == -1) ? null : getTypeMasks();
+		int typeBit = RTreeTables.typeBit(queryType);
+
+		DistanceHeap heap = new DistanceHeap();
+		double rootDistance = distanceTo(x, y, 0, tables.firstChild(0) != 0);
+		if ((rootDistance <= maxDistance) && ((masks == null) || ((masks[0] & typeBit) != 0))) {
+			heap.push(0, rootDistance);
+		}
+
+		// children are contained by their parents, so nodes come off the heap in order of distance
+		int resultsIndex = 0;
+		while (!heap.isEmpty()) {
+			int index = heap.peekIndex();
+			double distance = heap.peekDistance();
+			heap.pop();
+
+			// leaves and complemented indexes are queued by their own distance, others by a lower bound
+			int childIndex = (index < 0) ? 0 : tables.firstChild(index);
+			if (childIndex == 0) {
+				int entry = (index < 0) ? ~index : index;
+				if (matches(entry, queryType)) {
+					results[resultsIndex] = entry;
+					if (distances != null) {
+						distances[resultsIndex] = distance;
+					}
+					resultsIndex++;
+					if (resultsIndex >= maxResults) {
+						break;
+					}
+				}
+				continue;
+			}
+
+			// a matching node with children is queued again by its own distance
+			if (matches(index, queryType)) {
+				double nodeDistance = distanceTo(x, y, index, false);
+				if (nodeDistance <= maxDistance) {
+					heap.push(~index, nodeDistance);
+				}
+			}
+
+			while (childIndex != 0) {
+				if ((masks == null) || ((masks[childIndex] & typeBit) != 0)) {
+					double childDistance = distanceTo(x, y, childIndex, tables.firstChild(childIndex) != 0);
+					if (childDistance <= maxDistance) {
+						heap.push(childIndex, childDistance);
+					}
+				}
+				childIndex = tables.getSibling(childIndex);
+			}
+		}
 		return resultsIndex;
 	}
 
 
+	/**
+	 * Queries the tree for entries within a given distance of a point, passing each result to a visitor.
+	 * <p>
+	 * Results are not ordered by distance, see {@link #nearest(int, int, int, double, int[], double[], int)}.
+	 * @param x
+	 * @param y
+	 * @param maxDistance maximum distance in meters.
+	 * @param queryType type restriction, -1 for none.
+	 * @param visitor called for each result, may stop the query early.
+	 * @return the number of results visited.
+	 */
+	public int queryWithin(int x, int y, double maxDistance, int queryType, RTreeVisitor visitor) {
+		if (size == 0) {
+			return 0;
+		}
+
+		int[] masks = (queryType == -1) ? null : getTypeMasks();
+		int typeBit = RTreeTables.typeBit(queryType);
+
+		int resultsIndex = 0;
+		int index = 0;
+		while (true) {
+			int childIndex = tables.firstChild(index);
+			if (((masks == null) || ((masks[index] & typeBit) != 0))
+					&& (distanceTo(x, y, index, childIndex != 0) <= maxDistance)) {
+				// the distance of a node with children is only a lower bound
+				if (matches(index, queryType)
+						&& ((childIndex == 0) || (distanceTo(x, y, index, false) <= maxDistance))) {
+					resultsIndex++;
+					if (!visitor.visit(index)) {
+						return resultsIndex;
+					}
+				}
+
+				if (childIndex != 0) {
+					index = childIndex;
+					continue;
+				}
+			}
+
+			// move on to the next sibling, climbing up until one is found
+			index = tables.next(0, index);
+			if (index < 0) {
+				return resultsIndex;
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the type masks of all subtrees, computing them on first use.
+	 * <p>
+	 * Bit (type &amp; 31) is set in the mask of an entry if the entry or any of its descendants has that type,
+	 * so typed queries can skip subtrees without a matching entry. Types which are equal modulo 32 share a
+	 * bit, which only weakens the pruning.
+	 * @return
+	 */
+	private int[] getTypeMasks() {
+		int[] masks = typeMasks;
+		if (masks == null) {
+			masks = new int[size];
+			for (int i = 0; i < size; i++) {
+				int type = tables.getType(i);
+				if (type != TYPE_NODE) {
+					masks[i] = RTreeTables.typeBit(type);
+				}
+			}
+
+			// children follow their parents in preorder, so propagate upwards in reverse
+			for (int i = size - 1; i > 0; i--) {
+				masks[tables.getParent(i)] |= masks[i];
+			}
+			typeMasks = masks;
+		}
+		return masks;
+	}
+
+
+	/**
+	 * Tests if the type of the specified index matches a query type.
+	 * @param index
+	 * @param queryType type restriction, -1 for none.
+	 * @return
+	 */
+	private boolean matches(int index, int queryType) {
+		return RTreeTables.matches(tables.getType(index), queryType);
+	}
+
+
+	/**
+	 * Calculates the distance from a point to the closest point of the bounds of the specified index.
+	 * <p>
+	 * The map wraps around on x, so the bounds may be closer across the date line. The estimate of
+	 * {@link DistanceEstimator} depends on latitude, so the closest point in map coordinates isn't always
+	 * the closest in meters. For pruning a subtree, a lower bound is used instead, which takes the scale
+	 * of the map at the latitude farthest from the equator between the point and the bounds.
+	 * @param x
+	 * @param y
+	 * @param index
+	 * @param lowerBound if <code>true</code> a lower bound of the distance to any point within the bounds is
+	 *        returned.
+	 * @return the distance in meters, 0 if the point is within the bounds.
+	 */
+	private double distanceTo(int x, int y, int index, boolean lowerBound) {
+		int b = index * 4;
+		int minX = tables.getBound(b);
+		int minY = tables.getBound(b + 1);
+		int maxX = tables.getBound(b + 2);
+		int maxY = tables.getBound(b + 3);
+
+		int closestY = (y < minY) ? minY : ((y > maxY) ? maxY : y);
+		int closestX = x;
+		if (!MapRect.contains(minX, minY, maxX, maxY, x, closestY)) {
+			int deltaMin = wrapDelta(minX - x);
+			int deltaMax = wrapDelta(maxX - x);
+			closestX = x + ((Math.abs(deltaMin) <= Math.abs(deltaMax)) ? deltaMin : deltaMax);
+		}
+		if (lowerBound) {
+			return DistanceEstimator.getLowerBound(closestX - x, closestY - y, Math.min(y, minY), Math.max(y, maxY));
+		}
+		return DistanceEstimator.get(x, y, closestX, closestY);
+	}
+
+
+	/**
+	 * Wraps a difference of x coordinates to the shortest way around the map.
+	 * @param delta
+	 * @return
+	 */
+	private static int wrapDelta(int delta) {
+		return (delta << 2) >> 2;
+	}
+
+
 	/**
 	 * Gets the ID of the specified index.
 	 * @param index
 	 * @return
 	 */
 	public int getId(int index) {
-		return ids[index];
+		return tables.getId(index);
 	}
 
 
@@ -165,7 +1010,7 @@ public class StaticRTree {
 	 * @return
 	 */
 	public int getOffset(int index) {
-		return offsets[index];
+		return tables.getOffset(index);
 	}
 
 
@@ -175,7 +1020,7 @@ public class StaticRTree {
 	 * @return
 	 */
 	public int getType(int index) {
-		return types[index];
+		return tables.getType(index);
 	}
 
 
@@ -185,7 +1030,61 @@ public class StaticRTree {
 	 * @return
 	 */
 	public MapRect getBounds(int index) {
-		return new MapRect(bounds[index * 4], bounds[index * 4 + 1], bounds[index * 4 + 2], bounds[index * 4 + 3]);
+		int b = index * 4;
+		return new MapRect(tables.getBound(b), tables.getBound(b + 1), tables.getBound(b + 2), tables.getBound(b + 3));
+	}
+
+
+	/**
+	 * Gets the bounds of the specified index without allocating.
+	 * @param index
+	 * @param result array receiving minX, minY, maxX and maxY.
+	 */
+	public void getBounds(int index, int[] result) {
+		result[0] = tables.getBound(index * 4);
+		result[1] = tables.getBound(index * 4 + 1);
+		result[2] = tables.getBound(index * 4 + 2);
+		result[3] = tables.getBound(index * 4 + 3);
+	}
+
+
+	/**
+	 * Gets the minimum x coordinate of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getMinX(int index) {
+		return tables.getBound(index * 4);
+	}
+
+
+	/**
+	 * Gets the minimum y coordinate of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getMinY(int index) {
+		return tables.getBound(index * 4 + 1);
+	}
+
+
+	/**
+	 * Gets the maximum x coordinate of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getMaxX(int index) {
+		return tables.getBound(index * 4 + 2);
+	}
+
+
+	/**
+	 * Gets the maximum y coordinate of the specified index.
+	 * @param index
+	 * @return
+	 */
+	public int getMaxY(int index) {
+		return tables.getBound(index * 4 + 3);
 	}
 
 
@@ -195,7 +1094,7 @@ public class StaticRTree {
 	 * @return
 	 */
 	public MapPoint getPoint(int index) {
-		return new MapPoint(bounds[index * 4], bounds[index * 4 + 1]);
+		return new MapPoint(tables.getBound(index * 4), tables.getBound(index * 4 + 1));
 	}
 
 
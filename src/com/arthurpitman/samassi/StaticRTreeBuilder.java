@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Builds {@link StaticRTree} files by bulk loading entries with Sort-Tile-Recursive (STR) packing.
+ * <p>
+ * Each level of the tree is packed by sorting its nodes on the x coordinate of their centers, cutting them
+ * into vertical slices, sorting each slice on y and grouping runs of nodes under new parents. This gives
+ * nearly full nodes with little overlap, so queries visit few nodes. Internal nodes have the type
+ * {@link StaticRTree#TYPE_NODE}. Sorting is spread over an {@link java.util.concurrent.ExecutorService} for
+ * large inputs. The same entries can also be written in the compact format read by {@link CompactRTree}.
+ * <p>
+ * To keep the object count low, arrays are used.
+ */
+public class StaticRTreeBuilder extends RTreeBuilder {
+	/** Default maximum number of children per node. */
+	public static final int DEFAULT_NODE_CAPACITY = 16;
+
+
+	/**
+	 * Creates a new {@link StaticRTreeBuilder} with the default node capacity.
+	 */
+	public StaticRTreeBuilder() {
+		this(DEFAULT_NODE_CAPACITY);
+	}
+
+
+	/**
+	 * Creates a new {@link StaticRTreeBuilder}.
+	 * @param nodeCapacity maximum number of children per node, at least 2.
+	 */
+	public StaticRTreeBuilder(int nodeCapacity) {
+		super(nodeCapacity);
+	}
+
+
+	/**
+	 * Builds the tree and writes it to the specified file in the compact format read by {@link CompactRTree}.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeCompact(File file) throws IOException {
+		OutputStream outputStream = new FileOutputStream(file);
+		try {
+			writeCompact(outputStream);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+
+	/**
+	 * Builds the tree and writes it to the specified stream in the compact format read by {@link CompactRTree}.
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	public void writeCompact(OutputStream outputStream) throws IOException {
+		try {
+			writeCompactTree(build(), outputStream);
+		} finally {
+			release();
+		}
+	}
+
+
+	/**
+	 * Writes the tree in the compact format read by {@link CompactRTree}.
+	 * <p>
+	 * Internal nodes are written breadth-first, so the children of each node are contiguous, and the bounds
+	 * of each node are quantized relative to the decoded bounds of its parent. Entries are written in the
+	 * order of their leaf nodes.
+	 * @param tree
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	private void writeCompactTree(Tree tree, OutputStream outputStream) throws IOException {
+		int internalCount = tree.nodeCount - size;
+		int nodeCount = (size == 0) ? 0 : Math.max(internalCount, 1);
+		int[] queue = new int[nodeCount];
+		int[] decoded = new int[nodeCount * 4];
+		int[] records = new int[nodeCount * CompactRTree.NODE_SIZE];
+		int[] levels = new int[nodeCount];
+		int[] entryOrder = new int[size];
+		int entryCount = 0;
+		int depth = 0;
+		int maxChildCount = 0;
+
+		int rootMinX = 0;
+		int rootMinY = 0;
+		int rootMaxX = 0;
+		int rootMaxY = 0;
+		if (nodeCount > 0) {
+			int b = tree.root * 4;
+			rootMinX = bounds[b];
+			rootMinY = bounds[b + 1];
+			rootMaxX = bounds[b + 2];
+			rootMaxY = bounds[b + 3];
+			queue[0] = tree.root;
+			decoded[0] = rootMinX;
+			decoded[1] = rootMinY;
+			decoded[2] = rootMaxX;
+			decoded[3] = rootMaxY;
+			records[0] = CompactRTree.QUANTIZED_MAX;
+			records[1] = (CompactRTree.QUANTIZED_MAX << 16) | CompactRTree.QUANTIZED_MAX;
+		}
+
+		int queueSize = (nodeCount > 0) ? 1 : 0;
+		for (int i = 0; i < queueSize; i++) {
+			int node = queue[i];
+			int r = i * CompactRTree.NODE_SIZE;
+
+			// a tree of a single entry has no internal node, so add one
+			if (node < size) {
+				entryOrder[entryCount] = node;
+				records[r + 2] = entryCount++;
+				records[r + 3] = 1 | CompactRTree.LEAF_FLAG;
+				maxChildCount = Math.max(maxChildCount, 1);
+				continue;
+			}
+
+			int internal = node - size;
+			int childStart = tree.childStarts[internal];
+			int childEnd = tree.childEnds[internal];
+			maxChildCount = Math.max(maxChildCount, childEnd - childStart);
+
+			if (tree.children[childStart] < size) {
+				records[r + 2] = entryCount;
+				records[r + 3] = (childEnd - childStart) | CompactRTree.LEAF_FLAG;
+				for (int c = childStart; c < childEnd; c++) {
+					entryOrder[entryCount++] = tree.children[c];
+				}
+				continue;
+			}
+
+			records[r + 2] = queueSize;
+			records[r + 3] = childEnd - childStart;
+			int parentMinX = decoded[i * 4];
+			int parentMinY = decoded[i * 4 + 1];
+			int parentMaxX = decoded[i * 4 + 2];
+			int parentMaxY = decoded[i * 4 + 3];
+			for (int c = childStart; c < childEnd; c++) {
+				int child = tree.children[c];
+				int b = child * 4;
+				int minX = CompactRTree.encodeMin(parentMinX, parentMaxX, bounds[b]);
+				int minY = CompactRTree.encodeMin(parentMinY, parentMaxY, bounds[b + 1]);
+				int maxX = CompactRTree.encodeMax(parentMinX, parentMaxX, bounds[b + 2]);
+				int maxY = CompactRTree.encodeMax(parentMinY, parentMaxY, bounds[b + 3]);
+
+				// children are quantized relative to what the reader will decode
+				int q = queueSize++;
+				queue[q] = child;
+				levels[q] = levels[i] + 1;
+				depth = Math.max(depth, levels[q]);
+				records[q * CompactRTree.NODE_SIZE] = (minX << 16) | minY;
+				records[q * CompactRTree.NODE_SIZE + 1] = (maxX << 16) | maxY;
+				decoded[q * 4] = CompactRTree.decodeMin(parentMinX, parentMaxX, minX);
+				decoded[q * 4 + 1] = CompactRTree.decodeMin(parentMinY, parentMaxY, minY);
+				decoded[q * 4 + 2] = CompactRTree.decodeMax(parentMinX, parentMaxX, maxX);
+				decoded[q * 4 + 3] = CompactRTree.decodeMax(parentMinY, parentMaxY, maxY);
+			}
+		}
+
+		DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+		dataOutputStream.writeInt(CompactRTree.MAGIC);
+		dataOutputStream.writeInt(CompactRTree.VERSION);
+		dataOutputStream.writeInt(entryCount);
+		dataOutputStream.writeInt(nodeCount);
+		dataOutputStream.writeInt(depth);
+		dataOutputStream.writeInt(maxChildCount);
+		dataOutputStream.writeInt(rootMinX);
+		dataOutputStream.writeInt(rootMinY);
+		dataOutputStream.writeInt(rootMaxX);
+		dataOutputStream.writeInt(rootMaxY);
+		for (int record : records) {
+			dataOutputStream.writeInt(record);
+		}
+		for (int i = 0; i < entryCount; i++) {
+			int entry = entryOrder[i];
+			int b = entry * 4;
+			dataOutputStream.writeInt(bounds[b]);
+			dataOutputStream.writeInt(bounds[b + 1]);
+			dataOutputStream.writeInt(bounds[b + 2]);
+			dataOutputStream.writeInt(bounds[b + 3]);
+			dataOutputStream.writeInt(ids[entry]);
+			dataOutputStream.writeInt(offsets[entry]);
+			dataOutputStream.writeInt(types[entry]);
+		}
+		dataOutputStream.flush();
+	}
+}
\ No newline at end of file
@@ -49,27 +49,57 @@ public class DistanceEstimator {
 	* @return
 	*/
    public static double get(MapPoint point1, MapPoint point2, boolean useZ) {
-	   double x1 = ((double) point1.getX()) / MapPoint.BASE;
-	   double y1 = ((double) point1.getY()) / MapPoint.BASE;
+	   double distance = get(point1.getX(), point1.getY(), point2.getX(), point2.getY());
+
+	   if (useZ) {
+		   double elevationDelta = (double)(point1.getZ() - point2.getZ()) / MapPoint.MILLIMETERS_PER_METER;
+		   distance = Math.sqrt(distance * distance + elevationDelta * elevationDelta);
+	   }
+
+	   return distance;
+   }
 
-	   double x2 = ((double) point2.getX()) / MapPoint.BASE;
-	   double y2 = ((double) point2.getY()) / MapPoint.BASE;
 
-	   double deltaX = x1 - x2;
-	   double deltaY = y1 - y2;
-	   double v = (y1 + y2) / 2 - 0.5;
+   /**
+	* Calculates the approximate distance between two map points without allocating.
+	* @param x1
+	* @param y1
+	* @param x2
+	* @param y2
+	* @return
+	*/
+   public static double get(int x1, int y1, int x2, int y2) {
+	   double deltaX = ((double) (x1 - x2)) / MapPoint.BASE;
+	   double deltaY = ((double) (y1 - y2)) / MapPoint.BASE;
+	   double v = ((double) y1 + y2) / 2 / MapPoint.BASE - 0.5;
 	   double v2 = v * v;
 	   double v4 = v2 * v2;
 	   double deltaYDash = (J0 + J2 * v2 + J4 * v4) * deltaY;
 
-	   double distance = A_PI_2 * Math.sqrt(deltaX * deltaX + deltaYDash * deltaYDash) / (1 + K2 * v2 + K4 * v4);
+	   return A_PI_2 * Math.sqrt(deltaX * deltaX + deltaYDash * deltaYDash) / (1 + K2 * v2 + K4 * v4);
+   }
 
-	   if (useZ) {
-		   double elevationDelta = (double)(point1.getZ() - point2.getZ()) / MapPoint.MILLIMETERS_PER_METER;
-		   distance = Math.sqrt(distance * distance + elevationDelta * elevationDelta);
-	   }
 
-	   return distance;
+   /**
+	* Calculates a lower bound of {@link #get(int, int, int, int)} for all pairs of points which are at least
+	* the specified distances apart on each axis and whose average y lies within a range.
+	* <p>
+	* The scale of the map shrinks away from the equator, so the bound uses the end of the range farthest from it.
+	* @param deltaX
+	* @param deltaY
+	* @param minY
+	* @param maxY
+	* @return
+	*/
+   public static double getLowerBound(int deltaX, int deltaY, int minY, int maxY) {
+	   double scaledX = ((double) deltaX) / MapPoint.BASE;
+	   double scaledY = ((double) deltaY) / MapPoint.BASE;
+	   double v = Math.max(Math.abs((double) minY / MapPoint.BASE - 0.5), Math.abs((double) maxY / MapPoint.BASE - 0.5));
+	   double v2 = v * v;
+	   double v4 = v2 * v2;
+	   double scaledYDash = (J0 + J2 * v2 + J4 * v4) * scaledY;
+
+	   return A_PI_2 * Math.sqrt(scaledX * scaledX + scaledYDash * scaledYDash) / (1 + K2 * v2 + K4 * v4);
    }
 
 }
\ No newline at end of file
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.map;
+
+import java.util.Arrays;
+
+import com.arthurpitman.samassi.DynamicSpatialIndex;
+import com.arthurpitman.samassi.MapPoint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+
+/**
+ * A {@link MapLayer} for displaying large numbers of markers.
+ * <p>
+ * Unlike {@link MarkerLayer}, markers are not objects: the location of each marker is kept in the spatial index
+ * and its icon in a primitive array, both addressed by a handle, icons and their offsets are registered once and shared, and a single
+ * {@code Paint} is used for all markers. Each frame, the visible markers are projected with a single call to
+ * {@link android.graphics.Matrix#mapPoints(float[], int, float[], int, int)} on a reused buffer, and drawn in
+ * batches from a {@link MarkerAtlas} holding the icons.
+ */
+public class BulkMarkerLayer extends MapLayer {
+
+	/**
+	 * Receives clicks on markers.
+	 */
+	public interface OnBulkMarkerClickListener {
+
+		/**
+		 * Called when a marker is clicked.
+		 * @param handle
+		 * @param id
+		 * @return <code>true</code> if the click was handled, <code>false</code> if it should be passed to lower layers.
+		 */
+		boolean onMarkerClick(int handle, int id);
+	}
+
+	/** The icons. */
+	private Bitmap[] icons = new Bitmap[16];
+
+	/** The pixel offsets of each icon. */
+	private float[] iconOffsets = new float[32];
+
+	/** The number of icons. */
+	private int iconCount;
+
+	/** The atlas region of each icon in the current frame, -1 if not in the atlas. */
+	private int[] iconRegions = new int[16];
+
+	/** Atlas of the icons, created on first use unless batching is disabled. */
+	private MarkerAtlas atlas;
+	private boolean batched = true;
+
+	/** Spatial index of the markers, whose entry indexes are the marker handles. */
+	private DynamicSpatialIndex index = new DynamicSpatialIndex();
+
+	/** The icon of each marker. */
+	private int[] markerIcons = new int[256];
+
+	/** Paint shared by all markers. */
+	private Paint paint = new Paint();
+
+	/** Buffers for the markers visible in the current frame and their pixel coordinates. */
+	private int[] visible = new int[256];
+	private float[] points = new float[512];
+
+	/** Margin around the clip region in pixels. */
+	private float margin = MarkerLayer.DEFAULT_MARGIN;
+
+	/** Click radius in pixels. */
+	private float clickRadius = MarkerLayer.DEFAULT_CLICK_RADIUS;
+
+	/** Click radius in map units, as of the last frame. */
+	private int clickDistance;
+
+	/** Click radius plus margin in map units, as of the last frame, covering the icons of clicked markers. */
+	private int hitDistance;
+
+	/** The projection of the last frame, used to resolve clicks to icons. */
+	private MapProjection projection;
+
+	private OnBulkMarkerClickListener onMarkerClickListener;
+
+	private final int[] clipRegion = new int[4];
+	private final float[] tempPoint = new float[2];
+	private final float[] clickPoint = new float[2];
+
+
+	/**
+	 * Creates a new {@code BulkMarkerLayer}.
+	 */
+	public BulkMarkerLayer() {
+		super();
+		paint.setAntiAlias(true);
+	}
+
+
+	/**
+	 * Adds an icon.
+	 * @param bitmap
+	 * @param xOffset horizontal offset of the anchor, relative to the width of the bitmap.
+	 * @param yOffset vertical offset of the anchor, relative to the height of the bitmap.
+	 * @return the index of the icon.
+	 */
+	public int addIcon(Bitmap bitmap, float xOffset, float yOffset) {
+		if (iconCount == icons.length) {
+			icons = Arrays.copyOf(icons, iconCount * 2);
+			iconOffsets = Arrays.copyOf(iconOffsets, iconCount * 4);
+			iconRegions = Arrays.copyOf(iconRegions, iconCount * 2);
+		}
+		icons[iconCount] = bitmap;
+		iconOffsets[iconCount * 2] = bitmap.getWidth() * xOffset;
+		iconOffsets[iconCount * 2 + 1] = bitmap.getHeight() * yOffset;
+		return iconCount++;
+	}
+
+
+	/**
+	 * Gets the number of icons.
+	 * @return
+	 */
+	public int getIconCount() {
+		return iconCount;
+	}
+
+
+	/**
+	 * Gets the paint shared by all markers. Markers drawn from the atlas only use its alpha and color filter.
+	 * @return
+	 */
+	public Paint getPaint() {
+		return paint;
+	}
+
+
+	/**
+	 * Gets the atlas used for drawing icons.
+	 * @return the atlas, or <code>null</code> if none is used yet.
+	 */
+	public MarkerAtlas getAtlas() {
+		return atlas;
+	}
+
+
+	/**
+	 * Sets the atlas used for drawing icons, which may be shared with other layers.
+	 * @param atlas an atlas, or <code>null</code> to draw each marker separately.
+	 */
+	public void setAtlas(MarkerAtlas atlas) {
+		this.atlas = atlas;
+		batched = (atlas != null);
+	}
+
+
+	/**
+	 * Adds a marker, which is drawn above the markers with a lower handle.
+	 * @param id
+	 * @param x
+	 * @param y
+	 * @param icon the index of an icon.
+	 * @return the handle of the marker, valid until it is removed.
+	 */
+	public int addMarker(int id, int x, int y, int icon) {
+		checkIcon(icon);
+		int handle = index.insert(id, 0, x, y, x, y);
+		if (handle >= markerIcons.length) {
+			markerIcons = Arrays.copyOf(markerIcons, Math.max(handle + 1, markerIcons.length * 2));
+		}
+		markerIcons[handle] = icon;
+		return handle;
+	}
+
+
+	/**
+	 * Moves a marker.
+	 * @param handle
+	 * @param x
+	 * @param y
+	 */
+	public void moveMarker(int handle, int x, int y) {
+		index.move(handle, x, y, x, y);
+	}
+
+
+	/**
+	 * Sets the icon of a marker.
+	 * @param handle
+	 * @param icon the index of an icon.
+	 */
+	public void setIcon(int handle, int icon) {
+		checkIcon(icon);
+		markerIcons[handle] = icon;
+	}
+
+
+	/**
+	 * Removes a marker. Its handle may be reused by markers added later.
+	 * @param handle
+	 */
+	public void removeMarker(int handle) {
+		index.remove(handle);
+	}
+
+
+	/**
+	 * Removes all markers.
+	 */
+	public void clearMarkers() {
+		index.clear();
+	}
+
+
+	/**
+	 * Checks an icon index.
+	 * @param icon
+	 */
+	private void checkIcon(int icon) {
+		if ((icon < 0) || (icon >= iconCount)) {
+			throw new IllegalArgumentException("Invalid icon: " + icon);
+		}
+	}
+
+
+	/**
+	 * Gets the id of a marker.
+	 * @param handle
+	 * @return
+	 */
+	public int getId(int handle) {
+		return index.getId(handle);
+	}
+
+
+	/**
+	 * Gets the x coordinate of a marker.
+	 * @param handle
+	 * @return
+	 */
+	public int getX(int handle) {
+		return index.getMinX(handle);
+	}
+
+
+	/**
+	 * Gets the y coordinate of a marker.
+	 * @param handle
+	 * @return
+	 */
+	public int getY(int handle) {
+		return index.getMinY(handle);
+	}
+
+
+	/**
+	 * Gets the icon of a marker.
+	 * @param handle
+	 * @return
+	 */
+	public int getIcon(int handle) {
+		return markerIcons[handle];
+	}
+
+
+	/**
+	 * Gets the number of markers.
+	 * @return
+	 */
+	public int getSize() {
+		return index.getSize();
+	}
+
+
+	/**
+	 * Gets the margin around the clip region within which markers are rendered.
+	 * @return the margin in pixels.
+	 */
+	public float getMargin() {
+		return margin;
+	}
+
+
+	/**
+	 * Sets the margin around the clip region within which markers are rendered. This should cover the largest
+	 * icon.
+	 * @param margin the margin in pixels.
+	 */
+	public void setMargin(float margin) {
+		this.margin = margin;
+	}
+
+
+	/**
+	 * Gets the click radius.
+	 * @return the radius in pixels.
+	 */
+	public float getClickRadius() {
+		return clickRadius;
+	}
+
+
+	/**
+	 * Sets the radius around a click within which markers are hit.
+	 * @param clickRadius the radius in pixels.
+	 */
+	public void setClickRadius(float clickRadius) {
+		this.clickRadius = clickRadius;
+	}
+
+
+	/**
+	 * Sets the listener receiving clicks on markers.
+	 * @param onMarkerClickListener
+	 */
+	public void setOnMarkerClickListener(OnBulkMarkerClickListener onMarkerClickListener) {
+		this.onMarkerClickListener = onMarkerClickListener;
+	}
+
+
+	@Override
+	public boolean render(Canvas canvas, MapProjection projection,
+			long frameMillis, Runnable invalidateRunnable) {
+		this.projection = projection;
+		clickDistance = MarkerLayer.toMapDistance(clickRadius, projection);
+		hitDistance = MarkerLayer.toMapDistance(clickRadius + margin, projection);
+		int size = index.getSize();
+		if (size == 0) {
+			return true;
+		}
+
+		int mapMargin = MarkerLayer.toMapDistance(margin, projection);
+		if (!MarkerLayer.getClipRegion(projection, mapMargin, clipRegion)) {
+			return true;
+		}
+
+		int count = queryVisible(clipRegion[0], clipRegion[1], clipRegion[2], clipRegion[3]);
+
+		// draw in handle order, so overlapping markers keep their stacking while the map moves
+		Arrays.sort(visible, 0, count);
+
+		// translate to the focus and scale down to pixels as in MapProjection.toPixelCoordinates,
+		// then transform all points at once
+		int mapFocusX = projection.getMapFocusX();
+		int mapFocusY = projection.getMapFocusY();
+		int pixelShift = projection.getPixelShift();
+		for (int i = 0; i < count; i++) {
+			int handle = visible[i];
+			points[i * 2] = (float) ((index.getMinX(handle) - mapFocusX) >> pixelShift);
+			points[i * 2 + 1] = (float) ((index.getMinY(handle) - mapFocusY) >> pixelShift);
+		}
+		projection.getTransformMatrix().mapPoints(points, 0, points, 0, count);
+
+		if (batched) {
+			if (atlas == null) {
+				atlas = new MarkerAtlas();
+			}
+			for (int i = 0; i < iconCount; i++) {
+				iconRegions[i] = atlas.add(icons[i]);
+			}
+			atlas.begin(paint);
+		}
+		for (int i = 0; i < count; i++) {
+			int icon = markerIcons[visible[i]];
+			float left = points[i * 2] - iconOffsets[icon * 2];
+			float top = points[i * 2 + 1] - iconOffsets[icon * 2 + 1];
+			if (!batched) {
+				canvas.drawBitmap(icons[icon], left, top, paint);
+			} else if (iconRegions[icon] >= 0) {
+				atlas.draw(canvas, iconRegions[icon], left, top);
+			} else {
+				// keep the drawing order by flushing the batch first
+				atlas.end(canvas);
+				canvas.drawBitmap(icons[icon], left, top, paint);
+			}
+		}
+		if (batched) {
+			atlas.end(canvas);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Queries the index into {@link #visible}, growing the buffers if necessary.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return the number of markers found.
+	 */
+	private int queryVisible(int minX, int minY, int maxX, int maxY) {
+		int count = index.query(minX, minY, maxX, maxY, -1, visible, visible.length);
+		if ((count == visible.length) && (count < index.getSize())) {
+			visible = new int[index.getSize()];
+			points = new float[visible.length * 2];
+			count = index.query(minX, minY, maxX, maxY, -1, visible, visible.length);
+		}
+		return count;
+	}
+
+
+	@Override
+	public boolean onClick(int x, int y) {
+		if ((onMarkerClickListener == null) || (projection == null) || (clickDistance == 0)) {
+			return false;
+		}
+
+		// the margin covers the largest icon, so markers further away than the click radius plus margin
+		// cannot be hit
+		int count;
+		if (hitDistance >= MapPoint.MASK / 2) {
+			count = queryVisible(0, y - hitDistance, MapPoint.MASK, y + hitDistance);
+		} else {
+			count = queryVisible((x - hitDistance) & MapPoint.MASK, y - hitDistance,
+					(x + hitDistance) & MapPoint.MASK, y + hitDistance);
+		}
+
+		// hit the marker whose icon is closest to the click, preferring markers drawn on top
+		projection.toPixelCoordinates(x, y, clickPoint);
+		float maxDistance = clickRadius * clickRadius;
+		int hit = -1;
+		float bestDistance = 0;
+		for (int i = 0; i < count; i++) {
+			int handle = visible[i];
+			int icon = markerIcons[handle];
+			projection.toPixelCoordinates(index.getMinX(handle), index.getMinY(handle), tempPoint);
+			float left = tempPoint[0] - iconOffsets[icon * 2];
+			float top = tempPoint[1] - iconOffsets[icon * 2 + 1];
+			float right = left + icons[icon].getWidth();
+			float bottom = top + icons[icon].getHeight();
+
+			// distance from the click to the drawn rectangle, 0 if inside
+			float dx = Math.max(Math.max(left - clickPoint[0], clickPoint[0] - right), 0);
+			float dy = Math.max(Math.max(top - clickPoint[1], clickPoint[1] - bottom), 0);
+			float distance = dx * dx + dy * dy;
+			if ((distance <= maxDistance) && ((hit < 0) || (distance < bestDistance)
+					|| ((distance == bestDistance) && (handle > hit)))) {
+				hit = handle;
+				bestDistance = distance;
+			}
+		}
+		return (hit >= 0) && onMarkerClickListener.onMarkerClick(hit, index.getId(hit));
+	}
+}
\ No newline at end of file
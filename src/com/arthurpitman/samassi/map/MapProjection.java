@@ -33,6 +33,12 @@ public class MapProjection {
 	/** Look-up table for converting zoom units to scale. */
 	private final static float[] zoomScales;
 
+	/** Weight of a new motion sample when smoothing velocities. */
+	private final static float MOTION_SMOOTHING = 0.5f;
+
+	/** Number of bits of map coordinates. */
+	final static int MAP_BITS = 30;
+
 
 
 	/** x coordinate of the pixel focus. */
@@ -118,6 +124,29 @@ public class MapProjection {
 
 
 
+	/** Time of the last motion sample in milliseconds, 0 if not moving. */
+	private long motionMillis;
+
+	/** Map focus x component of the last motion sample. */
+	private int motionMapX;
+
+	/** Map focus y component of the last motion sample. */
+	private int motionMapY;
+
+	/** Zoom points of the last motion sample. */
+	private int motionZoomPoints;
+
+	/** Smoothed x velocity in map units per millisecond. */
+	private float velocityX;
+
+	/** Smoothed y velocity in map units per millisecond. */
+	private float velocityY;
+
+	/** Smoothed zoom velocity in zoom points per millisecond. */
+	private float zoomVelocity;
+
+
+
 	/**	Temporary storage for 1 point. */
 	private float[] tempPoint = new float[2];
 
@@ -448,6 +477,88 @@ public class MapProjection {
 	}
 
 
+	/*
+	 * ========================================
+	 * MOTION
+	 * ========================================
+	 */
+
+
+	/**
+	 * Records the current map focus and zoom as a motion sample, updating the smoothed velocities.
+	 * <p>
+	 * Should be called whenever a gesture moves the map.
+	 * @param eventTime the time of the sample, see {@link android.os.SystemClock#uptimeMillis()}.
+	 */
+	public void trackMotion(long eventTime) {
+		if (motionMillis != 0) {
+			long deltaMillis = eventTime - motionMillis;
+			if (deltaMillis <= 0) {
+				return;
+			}
+
+			// the map wraps around, so take the shortest way
+			int deltaX = ((mapFocusX - motionMapX) << (32 - MAP_BITS)) >> (32 - MAP_BITS);
+			int deltaY = ((mapFocusY - motionMapY) << (32 - MAP_BITS)) >> (32 - MAP_BITS);
+			velocityX += ((float)deltaX / deltaMillis - velocityX) * MOTION_SMOOTHING;
+			velocityY += ((float)deltaY / deltaMillis - velocityY) * MOTION_SMOOTHING;
+			zoomVelocity += ((float)(zoomPoints - motionZoomPoints) / deltaMillis - zoomVelocity) * MOTION_SMOOTHING;
+		}
+
+		motionMillis = eventTime;
+		motionMapX = mapFocusX;
+		motionMapY = mapFocusY;
+		motionZoomPoints = zoomPoints;
+	}
+
+
+	/**
+	 * Stops tracking motion, e.g. at the start or end of a gesture.
+	 */
+	public void resetMotion() {
+		motionMillis = 0;
+		velocityX = 0;
+		velocityY = 0;
+		zoomVelocity = 0;
+	}
+
+
+	/**
+	 * Gets the time of the last motion sample.
+	 * @return the time in milliseconds, or 0 if the map is not moving.
+	 */
+	public long getMotionMillis() {
+		return motionMillis;
+	}
+
+
+	/**
+	 * Gets the x velocity of the map focus.
+	 * @return the velocity in map units per millisecond.
+	 */
+	public float getVelocityX() {
+		return velocityX;
+	}
+
+
+	/**
+	 * Gets the y velocity of the map focus.
+	 * @return the velocity in map units per millisecond.
+	 */
+	public float getVelocityY() {
+		return velocityY;
+	}
+
+
+	/**
+	 * Gets the zoom velocity.
+	 * @return the velocity in zoom points per millisecond.
+	 */
+	public float getZoomVelocity() {
+		return zoomVelocity;
+	}
+
+
 	/*
 	 * ========================================
 	 * MANIPULATION METHODS
@@ -462,7 +573,7 @@ public class MapProjection {
 		zoom = zoomPoints / MapView.ZOOM_MULTIPLIER;
 		zoomScale = zoomScales[zoomPoints % MapView.ZOOM_MULTIPLIER];
 		tileCount = 1 << zoom;
-		tileShift = 30 - zoom;
+		tileShift = MAP_BITS - zoom;
 		pixelShift = tileShift - tileSizePower;
 
 		transformMatrix.reset();
@@ -485,11 +596,11 @@ public class MapProjection {
 
 		rawMapClipMinX = ((long)Math.min(tempPoint4[0], Math.min(tempPoint4[2], Math.min(tempPoint4[4], tempPoint4[6])))
 				<< pixelShift) + mapFocusX;
-		mapClipMinX = (int)(rawMapClipMaxX & MapPoint.MASK);
+		mapClipMinX = (int)(rawMapClipMinX & MapPoint.MASK);
 
 		rawMapClipMinY = ((long)Math.min(tempPoint4[1], Math.min(tempPoint4[3], Math.min(tempPoint4[5], tempPoint4[7])))
 				<< pixelShift) + mapFocusY;
-		mapClipMinY = (int)(rawMapClipMaxY & MapPoint.MASK);
+		mapClipMinY = (int)(rawMapClipMinY & MapPoint.MASK);
 
 		rawMapClipMaxX = ((long)Math.max(tempPoint4[0], Math.max(tempPoint4[2], Math.max(tempPoint4[4], tempPoint4[6])))
 				<< pixelShift) + mapFocusX;
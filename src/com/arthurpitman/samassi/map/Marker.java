@@ -43,6 +43,18 @@ public class Marker {
 	private float xOffset;
 	private float yOffset;
 
+	/** The {@code MarkerLayer} containing the {@code Marker}, if any. */
+	MarkerLayer layer;
+
+	/** The index of the {@code Marker} in the spatial index of its layer, -1 if not indexed. */
+	int layerIndex = -1;
+
+	/** The drawing order of the {@code Marker} within its layer. */
+	int layerOrder;
+
+	/** The position of the {@code Marker} in the marker list of its layer, -1 if not in a layer. */
+	int layerPosition = -1;
+
 
 	/**
 	 * Creates a new {@code Marker}.
@@ -98,6 +110,24 @@ public class Marker {
 	}
 
 
+	/**
+	 * Gets the horizontal distance from the left edge of the bitmap to the location.
+	 * @return
+	 */
+	float getXPixelOffset() {
+		return xPixelOffset;
+	}
+
+
+	/**
+	 * Gets the vertical distance from the top edge of the bitmap to the location.
+	 * @return
+	 */
+	float getYPixelOffset() {
+		return yPixelOffset;
+	}
+
+
 	/**
 	 * Gets the location of the {@code Marker}.
 	 * @return
@@ -113,6 +143,9 @@ public class Marker {
 	 */
 	public void setLocation(MapPoint location) {
 		this.location = location;
+		if (layer != null) {
+			layer.updateMarker(this);
+		}
 	}
 
 
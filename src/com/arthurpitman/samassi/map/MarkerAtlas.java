@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.map;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+
+/**
+ * Packs marker icons into a single bitmap and draws batches of them.
+ * <p>
+ * Icons are copied into the atlas the first time they are added, row by row. Quads added between
+ * {@link #begin()} and {@link #end(Canvas)} are drawn with a single {@link Canvas#drawVertices} call per
+ * {@link #MAX_QUADS} quads, textured by the atlas, so the number of draw calls does not grow with the number of
+ * markers. Hardware accelerated canvases do not support {@code drawVertices}, so there each quad is drawn with
+ * {@link Canvas#drawBitmap(Bitmap, Rect, RectF, Paint)}, which is still cheap as all quads share one bitmap.
+ * <p>
+ * Icons are identified by their {@code Bitmap}, and copied again when its generation id shows that its pixels
+ * changed. Regions of icons whose {@code Bitmap} was garbage collected are reclaimed by repacking the atlas once
+ * it is full.
+ */
+public class MarkerAtlas {
+
+	/** Default width and height of the atlas in pixels. */
+	public static final int DEFAULT_SIZE = 512;
+
+	/** Maximum number of quads per draw call, limited by the range of short indices. */
+	public static final int MAX_QUADS = 8192;
+
+	/** Transparent pixels between icons, so filtering does not bleed neighbours into each other. */
+	private static final int PADDING = 1;
+
+	/** Indices of the two triangles of each quad, shared by all batches. */
+	private static final short[] INDICES = new short[MAX_QUADS * 6];
+
+	static {
+		for (int i = 0; i < MAX_QUADS; i++) {
+			int v = i * 4;
+			INDICES[i * 6] = (short) v;
+			INDICES[i * 6 + 1] = (short) (v + 1);
+			INDICES[i * 6 + 2] = (short) (v + 2);
+			INDICES[i * 6 + 3] = (short) (v + 2);
+			INDICES[i * 6 + 4] = (short) (v + 1);
+			INDICES[i * 6 + 5] = (short) (v + 3);
+		}
+	}
+
+	private Bitmap atlas;
+	private Canvas atlasCanvas;
+
+	/** Paint texturing vertices with the atlas. */
+	private Paint vertexPaint;
+
+	/** Paint for drawing quads from the atlas as bitmaps. */
+	private Paint bitmapPaint;
+
+	/** The region of each icon in the atlas, as left, top, width and height. */
+	private int[] regions = new int[64];
+	private int regionCount;
+
+	/** The generation id of each icon when it was copied into the atlas. */
+	private int[] generations = new int[16];
+
+	/** Regions no longer used by any icon, to be reused. */
+	private int[] freeRegions = new int[16];
+	private int freeCount;
+
+	/** Whether a free region still takes up space in the atlas. */
+	private boolean wasted;
+
+	/** The region of each icon {@code Bitmap}, weakly held. */
+	private WeakHashMap<Bitmap, Integer> regionMap = new WeakHashMap<Bitmap, Integer>();
+
+	/** Position of the next icon and height of the current row. */
+	private int rowX;
+	private int rowY;
+	private int rowHeight;
+
+	/** Batch being assembled. */
+	private float[] vertices = new float[64];
+	private float[] texCoords = new float[64];
+	private int quadCount;
+
+	private final Rect srcRect = new Rect();
+	private final RectF dstRect = new RectF();
+
+
+	/**
+	 * Creates a new {@code MarkerAtlas} of the default size.
+	 */
+	public MarkerAtlas() {
+		this(DEFAULT_SIZE, DEFAULT_SIZE);
+	}
+
+
+	/**
+	 * Creates a new {@code MarkerAtlas}.
+	 * @param width
+	 * @param height
+	 */
+	public MarkerAtlas(int width, int height) {
+		atlas = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		atlasCanvas = new Canvas(atlas);
+		vertexPaint = new Paint();
+		vertexPaint.setAntiAlias(true);
+		vertexPaint.setFilterBitmap(true);
+		vertexPaint.setShader(new BitmapShader(atlas, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+		bitmapPaint = new Paint();
+		bitmapPaint.setAntiAlias(true);
+		bitmapPaint.setFilterBitmap(true);
+	}
+
+
+	/**
+	 * Gets the atlas bitmap.
+	 * @return
+	 */
+	public Bitmap getBitmap() {
+		return atlas;
+	}
+
+
+	/**
+	 * Gets the region of an icon, adding the icon or copying it again if necessary.
+	 * <p>
+	 * If the atlas is full but holds regions of icons which were garbage collected or resized, it is repacked,
+	 * moving the regions of the other icons. This only happens while no quads are pending, so callers should
+	 * retry after {@link #end(Canvas)} when this returns -1 within a batch.
+	 * @param bitmap
+	 * @return the region, or -1 if the atlas is full.
+	 */
+	public int add(Bitmap bitmap) {
+		Integer existing = regionMap.get(bitmap);
+		if (existing != null) {
+			int region = existing;
+			int r = region * 4;
+			if (generations[region] == bitmap.getGenerationId()) {
+				return region;
+			}
+			if ((bitmap.getWidth() == regions[r + 2]) && (bitmap.getHeight() == regions[r + 3])) {
+				copy(bitmap, region);
+				return region;
+			}
+			// the bitmap was resized, so it needs a new region
+			regionMap.remove(bitmap);
+			free(region);
+			wasted = true;
+		}
+
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if ((width > atlas.getWidth()) || (height > atlas.getHeight())) {
+			return -1;
+		}
+		if (!place(width, height) && !((quadCount == 0) && repack() && place(width, height))) {
+			return -1;
+		}
+
+		int region;
+		if (freeCount > 0) {
+			region = freeRegions[--freeCount];
+		} else {
+			region = regionCount++;
+			if (region * 4 == regions.length) {
+				regions = Arrays.copyOf(regions, regions.length * 2);
+			}
+			if (region == generations.length) {
+				generations = Arrays.copyOf(generations, generations.length * 2);
+			}
+		}
+		setRegion(region, width, height);
+		copy(bitmap, region);
+		regionMap.put(bitmap, region);
+		return region;
+	}
+
+
+	/**
+	 * Moves the row position to where an icon fits.
+	 * @param width
+	 * @param height
+	 * @return <code>false</code> if the icon does not fit.
+	 */
+	private boolean place(int width, int height) {
+		if (rowX + width > atlas.getWidth()) {
+			rowX = 0;
+			rowY += rowHeight;
+			rowHeight = 0;
+		}
+		return rowY + height <= atlas.getHeight();
+	}
+
+
+	/**
+	 * Assigns a region at the row position and advances it.
+	 * @param region
+	 * @param width
+	 * @param height
+	 */
+	private void setRegion(int region, int width, int height) {
+		int r = region * 4;
+		regions[r] = rowX;
+		regions[r + 1] = rowY;
+		regions[r + 2] = width;
+		regions[r + 3] = height;
+		rowX += width + PADDING;
+		rowHeight = Math.max(rowHeight, height + PADDING);
+	}
+
+
+	/**
+	 * Copies an icon into its region, replacing the previous pixels.
+	 * @param bitmap
+	 * @param region
+	 */
+	private void copy(Bitmap bitmap, int region) {
+		int r = region * 4;
+		int left = regions[r];
+		int top = regions[r + 1];
+		atlasCanvas.save();
+		atlasCanvas.clipRect(left, top, left + regions[r + 2], top + regions[r + 3]);
+		atlasCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+		atlasCanvas.restore();
+		atlasCanvas.drawBitmap(bitmap, left, top, null);
+		generations[region] = bitmap.getGenerationId();
+	}
+
+
+	/**
+	 * Marks a region as no longer used.
+	 * @param region
+	 */
+	private void free(int region) {
+		if (freeCount == freeRegions.length) {
+			freeRegions = Arrays.copyOf(freeRegions, freeCount * 2);
+		}
+		freeRegions[freeCount++] = region;
+	}
+
+
+	/**
+	 * Packs the icons still referenced again, keeping their region numbers, so the space of unused regions
+	 * can be reused. Icons are packed in the order of their previous positions, so they all fit again.
+	 * @return <code>false</code> if no space is unused.
+	 */
+	private boolean repack() {
+		// the map drops collected bitmaps, so it holds fewer entries than there are used regions
+		if (!wasted && (regionMap.size() == regionCount - freeCount)) {
+			return false;
+		}
+
+		Bitmap[] bitmaps = new Bitmap[regionCount];
+		long[] keys = new long[regionMap.size()];
+		int keyCount = 0;
+		for (Map.Entry<Bitmap, Integer> entry : regionMap.entrySet()) {
+			int region = entry.getValue();
+			if (keyCount < keys.length) {
+				long left = regions[region * 4];
+				long top = regions[region * 4 + 1];
+				bitmaps[region] = entry.getKey();
+				keys[keyCount++] = (top << 40) | (left << 20) | region;
+			}
+		}
+		Arrays.sort(keys, 0, keyCount);
+
+		atlasCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+		rowX = 0;
+		rowY = 0;
+		rowHeight = 0;
+		freeCount = 0;
+		wasted = false;
+		for (int i = 0; i < keyCount; i++) {
+			int region = (int) (keys[i] & 0xFFFFF);
+			Bitmap bitmap = bitmaps[region];
+			if (place(bitmap.getWidth(), bitmap.getHeight())) {
+				setRegion(region, bitmap.getWidth(), bitmap.getHeight());
+				copy(bitmap, region);
+			} else {
+				regionMap.remove(bitmap);
+				bitmaps[region] = null;
+			}
+		}
+		for (int region = 0; region < regionCount; region++) {
+			if (bitmaps[region] == null) {
+				free(region);
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Removes all icons.
+	 */
+	public void clear() {
+		atlasCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+		regionMap.clear();
+		regionCount = 0;
+		freeCount = 0;
+		wasted = false;
+		rowX = 0;
+		rowY = 0;
+		rowHeight = 0;
+		quadCount = 0;
+	}
+
+
+	/**
+	 * Starts a batch drawn opaquely and without a color filter.
+	 */
+	public void begin() {
+		begin(null);
+	}
+
+
+	/**
+	 * Starts a batch drawn with the alpha and color filter of a paint.
+	 * @param paint a paint, or <code>null</code> for none.
+	 */
+	public void begin(Paint paint) {
+		quadCount = 0;
+		int alpha = (paint != null) ? paint.getAlpha() : 255;
+		ColorFilter colorFilter = (paint != null) ? paint.getColorFilter() : null;
+		vertexPaint.setAlpha(alpha);
+		vertexPaint.setColorFilter(colorFilter);
+		bitmapPaint.setAlpha(alpha);
+		bitmapPaint.setColorFilter(colorFilter);
+	}
+
+
+	/**
+	 * Adds a quad to the batch, drawing the pending quads first if the batch is full.
+	 * @param canvas
+	 * @param region
+	 * @param left
+	 * @param top
+	 */
+	public void draw(Canvas canvas, int region, float left, float top) {
+		if (quadCount == MAX_QUADS) {
+			end(canvas);
+		}
+		int q = quadCount * 8;
+		if (q == vertices.length) {
+			vertices = Arrays.copyOf(vertices, q * 2);
+			texCoords = Arrays.copyOf(texCoords, q * 2);
+		}
+
+		int r = region * 4;
+		float u = regions[r];
+		float v = regions[r + 1];
+		float width = regions[r + 2];
+		float height = regions[r + 3];
+
+		// corners in the order top left, top right, bottom left, bottom right
+		vertices[q] = left;
+		vertices[q + 1] = top;
+		vertices[q + 2] = left + width;
+		vertices[q + 3] = top;
+		vertices[q + 4] = left;
+		vertices[q + 5] = top + height;
+		vertices[q + 6] = left + width;
+		vertices[q + 7] = top + height;
+		texCoords[q] = u;
+		texCoords[q + 1] = v;
+		texCoords[q + 2] = u + width;
+		texCoords[q + 3] = v;
+		texCoords[q + 4] = u;
+		texCoords[q + 5] = v + height;
+		texCoords[q + 6] = u + width;
+		texCoords[q + 7] = v + height;
+		quadCount++;
+	}
+
+
+	/**
+	 * Draws the pending quads of the batch.
+	 * @param canvas
+	 */
+	public void end(Canvas canvas) {
+		if (quadCount == 0) {
+			return;
+		}
+
+		if (canvas.isHardwareAccelerated()) {
+			for (int i = 0; i < quadCount; i++) {
+				int q = i * 8;
+				srcRect.set((int) texCoords[q], (int) texCoords[q + 1], (int) texCoords[q + 6], (int) texCoords[q + 7]);
+				dstRect.set(vertices[q], vertices[q + 1], vertices[q + 6], vertices[q + 7]);
+				canvas.drawBitmap(atlas, srcRect, dstRect, bitmapPaint);
+			}
+		} else {
+			canvas.drawVertices(Canvas.VertexMode.TRIANGLES, quadCount * 8, vertices, 0, texCoords, 0,
+					null, 0, INDICES, 0, quadCount * 6, vertexPaint);
+		}
+		quadCount = 0;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,832 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.map;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.arthurpitman.samassi.MapPoint;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+
+/**
+ * Groups the markers of a {@link MarkerLayer} into clusters at low zoom levels.
+ * <p>
+ * At each zoom level up to the maximum, the map is divided into a grid of cells of a fixed pixel size, and the
+ * markers within each cell form a cluster drawn at their centroid. Cells of a zoom level nest within the
+ * cells of the level above, so the levels form a hierarchy. Clusters of a single marker are drawn as the
+ * marker itself.
+ * <p>
+ * Marker changes are queued by the layer and applied on a worker thread, which updates the counts and sums of
+ * the affected cells and then publishes new snapshots of the levels whose clusters changed, copying the
+ * unchanged cells of the previous snapshot in bulk. Rendering always uses the latest snapshot, so the UI
+ * thread never waits for clustering.
+ */
+public class MarkerClusterer {
+
+	/** Default cell size, as a power of 2 in pixels. */
+	public static final int DEFAULT_CELL_SIZE_POWER = 6;
+
+	/** Size of tiles as a power of 2, which relates pixels to map units at each zoom level. */
+	private static final int TILE_SIZE_POWER = 8;
+
+	/** Seconds the worker thread is kept alive without work. */
+	private static final int KEEP_ALIVE_SECONDS = 5;
+
+	/** Number of ints per queued change. */
+	private static final int CHANGE_SIZE = 7;
+
+	/** Change flags. */
+	private static final int CHANGE_REMOVE = 1;
+	private static final int CHANGE_ADD = 2;
+	private static final int CHANGE_CLEAR = 4;
+
+	/** Initial capacity of cell tables and lists of changed cells. */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Draws clusters of several markers.
+	 */
+	public interface ClusterRenderer {
+
+		/**
+		 * Draws a cluster.
+		 * @param canvas
+		 * @param x pixel x coordinate of the cluster centroid.
+		 * @param y pixel y coordinate of the cluster centroid.
+		 * @param count the number of markers in the cluster.
+		 */
+		void render(Canvas canvas, float x, float y, int count);
+	}
+
+
+	/**
+	 * Draws clusters as circles labeled with their marker count.
+	 */
+	private static class DefaultClusterRenderer implements ClusterRenderer {
+		private final Paint circlePaint = new Paint();
+		private final Paint textPaint = new Paint();
+
+
+		/**
+		 * Creates a new {@link DefaultClusterRenderer}.
+		 */
+		public DefaultClusterRenderer() {
+			circlePaint.setAntiAlias(true);
+			circlePaint.setColor(Color.argb(200, 33, 150, 243));
+			textPaint.setAntiAlias(true);
+			textPaint.setColor(Color.WHITE);
+			textPaint.setTextAlign(Paint.Align.CENTER);
+			textPaint.setTextSize(14);
+		}
+
+
+		@Override
+		public void render(Canvas canvas, float x, float y, int count) {
+			float radius = 12 + 6 * (float) Math.log10(count);
+			canvas.drawCircle(x, y, radius, circlePaint);
+			canvas.drawText(Integer.toString(count), x, y - (textPaint.ascent() + textPaint.descent()) / 2, textPaint);
+		}
+	}
+
+
+	/**
+	 * Snapshot of the clusters of one zoom level, sorted by cell. Filled by the worker before it is published
+	 * and not changed afterwards.
+	 */
+	private static class Level {
+		private final int shift;
+		private int size;
+		private final long[] cells;
+		private final int[] xs;
+		private final int[] ys;
+		private final int[] counts;
+		private final int[] handles;
+		private final int[] orders;
+
+
+		/**
+		 * Creates a new empty {@link Level}.
+		 * @param shift
+		 * @param capacity
+		 */
+		public Level(int shift, int capacity) {
+			this.shift = shift;
+			cells = new long[capacity];
+			xs = new int[capacity];
+			ys = new int[capacity];
+			counts = new int[capacity];
+			handles = new int[capacity];
+			orders = new int[capacity];
+		}
+
+
+		/**
+		 * Appends a range of the clusters of another level.
+		 * @param other
+		 * @param from
+		 * @param length
+		 */
+		public void append(Level other, int from, int length) {
+			System.arraycopy(other.cells, from, cells, size, length);
+			System.arraycopy(other.xs, from, xs, size, length);
+			System.arraycopy(other.ys, from, ys, size, length);
+			System.arraycopy(other.counts, from, counts, size, length);
+			System.arraycopy(other.handles, from, handles, size, length);
+			System.arraycopy(other.orders, from, orders, size, length);
+			size += length;
+		}
+
+
+		/**
+		 * Appends the cluster of a cell in a table.
+		 * @param table
+		 * @param slot
+		 */
+		public void append(CellTable table, int slot) {
+			cells[size] = table.keys[slot];
+			xs[size] = table.getX(slot);
+			ys[size] = table.getY(slot);
+			counts[size] = table.counts[slot];
+			handles[size] = table.handles[slot];
+			orders[size] = table.orders[slot];
+			size++;
+		}
+	}
+
+
+	/**
+	 * Open addressing hash table of the aggregates (sums, count and XORs of index handles and orders) of the
+	 * cells of one zoom level, used by the worker only.
+	 * <p>
+	 * Collisions are resolved by linear probing, and removal shifts later entries back, so no deleted markers
+	 * are needed.
+	 */
+	private static class CellTable {
+		/** Marks an empty slot, cells being non-negative. */
+		private static final long EMPTY = -1;
+
+		private long[] keys;
+		private long[] sumXs;
+		private long[] sumYs;
+		private int[] counts;
+		private int[] handles;
+		private int[] orders;
+		private int size;
+		private int mask;
+
+
+		/**
+		 * Creates a new empty {@link CellTable}.
+		 */
+		public CellTable() {
+			allocate(INITIAL_CAPACITY);
+		}
+
+
+		/**
+		 * Allocates empty slots.
+		 * @param capacity a power of 2.
+		 */
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			sumXs = new long[capacity];
+			sumYs = new long[capacity];
+			counts = new int[capacity];
+			handles = new int[capacity];
+			orders = new int[capacity];
+			mask = capacity - 1;
+		}
+
+
+		/**
+		 * Finds the slot of a cell.
+		 * @param cell
+		 * @return the slot, or -1 if the cell is empty.
+		 */
+		public int find(long cell) {
+			for (int slot = hash(cell); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+				if (keys[slot] == cell) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+
+		/**
+		 * Finds the slot of a cell, adding an empty aggregate if necessary.
+		 * @param cell
+		 * @return
+		 */
+		public int findOrAdd(long cell) {
+			if ((size + 1) * 2 > keys.length) {
+				rehash(keys.length * 2);
+			}
+			int slot = hash(cell);
+			for (; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+				if (keys[slot] == cell) {
+					return slot;
+				}
+			}
+			keys[slot] = cell;
+			sumXs[slot] = 0;
+			sumYs[slot] = 0;
+			counts[slot] = 0;
+			handles[slot] = 0;
+			orders[slot] = 0;
+			size++;
+			return slot;
+		}
+
+
+		/**
+		 * Removes the aggregate in a slot, moving back later entries of the same probe sequence.
+		 * @param slot
+		 */
+		public void remove(int slot) {
+			int hole = slot;
+			for (int i = (slot + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+				// an entry may fill the hole if the hole lies between its home slot and its slot
+				if (((i - hash(keys[i])) & mask) >= ((i - hole) & mask)) {
+					keys[hole] = keys[i];
+					sumXs[hole] = sumXs[i];
+					sumYs[hole] = sumYs[i];
+					counts[hole] = counts[i];
+					handles[hole] = handles[i];
+					orders[hole] = orders[i];
+					hole = i;
+				}
+			}
+			keys[hole] = EMPTY;
+			size--;
+		}
+
+
+		/**
+		 * Removes all aggregates.
+		 */
+		public void clear() {
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+		}
+
+
+		/**
+		 * Gets the x coordinate of the centroid in a slot.
+		 * @param slot
+		 * @return
+		 */
+		public int getX(int slot) {
+			return (int) (sumXs[slot] / counts[slot]);
+		}
+
+
+		/**
+		 * Gets the y coordinate of the centroid in a slot.
+		 * @param slot
+		 * @return
+		 */
+		public int getY(int slot) {
+			return (int) (sumYs[slot] / counts[slot]);
+		}
+
+
+		/**
+		 * Hashes a cell to its home slot.
+		 * @param cell
+		 * @return
+		 */
+		private int hash(long cell) {
+			int h = (int) cell * 0x9E3779B9 + (int) (cell >>> 32) * 0x85EBCA6B;
+			return (h ^ (h >>> 15)) & mask;
+		}
+
+
+		/**
+		 * Changes the number of slots, reinserting all aggregates.
+		 * @param capacity a power of 2.
+		 */
+		private void rehash(int capacity) {
+			long[] oldKeys = keys;
+			long[] oldSumXs = sumXs;
+			long[] oldSumYs = sumYs;
+			int[] oldCounts = counts;
+			int[] oldHandles = handles;
+			int[] oldOrders = orders;
+			allocate(capacity);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					int slot = hash(oldKeys[i]);
+					while (keys[slot] != EMPTY) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					sumXs[slot] = oldSumXs[i];
+					sumYs[slot] = oldSumYs[i];
+					counts[slot] = oldCounts[i];
+					handles[slot] = oldHandles[i];
+					orders[slot] = oldOrders[i];
+				}
+			}
+		}
+	}
+
+	private final int maxZoom;
+	private final int cellSizePower;
+	private ClusterRenderer clusterRenderer = new DefaultClusterRenderer();
+
+	/** Latest snapshot of each zoom level, written by the worker. */
+	private final AtomicReferenceArray<Level> levels;
+
+	/** Aggregates of the cells of each zoom level, used by the worker only. */
+	private final CellTable[] tables;
+
+	/** The cells of each zoom level changed since its last snapshot, possibly repeated, used by the worker only. */
+	private final long[][] changedCells;
+	private final int[] changedCounts;
+
+	/** Queued changes, guarded by this. */
+	private int[] changes = new int[64 * CHANGE_SIZE];
+	private int changeCount;
+	private boolean working;
+
+	private final ThreadPoolExecutor executor;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private volatile Runnable invalidateRunnable;
+
+	private final float[] pixelPoint = new float[2];
+
+
+	/**
+	 * Creates a new {@link MarkerClusterer} with the default cell size.
+	 * @param maxZoom the highest zoom level at which markers are clustered.
+	 */
+	public MarkerClusterer(int maxZoom) {
+		this(maxZoom, DEFAULT_CELL_SIZE_POWER);
+	}
+
+
+	/**
+	 * Creates a new {@link MarkerClusterer}.
+	 * @param maxZoom the highest zoom level at which markers are clustered.
+	 * @param cellSizePower cell size as a power of 2 in pixels.
+	 */
+	public MarkerClusterer(int maxZoom, int cellSizePower) {
+		if ((maxZoom < 0) || (maxZoom > MapProjection.MAP_BITS - TILE_SIZE_POWER)) {
+			throw new IllegalArgumentException("Invalid maximum zoom: " + maxZoom);
+		}
+		this.maxZoom = maxZoom;
+		this.cellSizePower = cellSizePower;
+		levels = new AtomicReferenceArray<Level>(maxZoom + 1);
+		tables = new CellTable[maxZoom + 1];
+		changedCells = new long[maxZoom + 1][];
+		changedCounts = new int[maxZoom + 1];
+		for (int zoom = 0; zoom <= maxZoom; zoom++) {
+			tables[zoom] = new CellTable();
+			changedCells[zoom] = new long[INITIAL_CAPACITY];
+		}
+
+		executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "MarkerClusterer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * Gets the highest zoom level at which markers are clustered.
+	 * @return
+	 */
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+
+	/**
+	 * Sets the renderer used to draw clusters of several markers.
+	 * @param clusterRenderer
+	 */
+	public void setClusterRenderer(ClusterRenderer clusterRenderer) {
+		this.clusterRenderer = clusterRenderer;
+	}
+
+
+	/**
+	 * Gets the shift from map units to cells at a zoom level.
+	 * @param zoom
+	 * @return
+	 */
+	private int getCellShift(int zoom) {
+		return Math.max(MapProjection.MAP_BITS - zoom - TILE_SIZE_POWER + cellSizePower, 0);
+	}
+
+
+	/*
+	 * ========================================
+	 * CHANGE METHODS, CALLED BY THE LAYER
+	 * ========================================
+	 */
+
+
+	/**
+	 * Queues the addition, removal or move of an indexed marker.
+	 * @param flags
+	 * @param handle the index handle of the marker.
+	 * @param order the drawing order of the marker.
+	 * @param oldX
+	 * @param oldY
+	 * @param newX
+	 * @param newY
+	 */
+	private synchronized void change(int flags, int handle, int order, int oldX, int oldY, int newX, int newY) {
+		if (changeCount * CHANGE_SIZE == changes.length) {
+			changes = Arrays.copyOf(changes, changes.length * 2);
+		}
+		int c = changeCount * CHANGE_SIZE;
+		changes[c] = flags;
+		changes[c + 1] = handle;
+		changes[c + 2] = order;
+		changes[c + 3] = oldX;
+		changes[c + 4] = oldY;
+		changes[c + 5] = newX;
+		changes[c + 6] = newY;
+		changeCount++;
+
+		if (!working) {
+			working = true;
+			executor.execute(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Queues the addition of a marker.
+	 * @param handle
+	 * @param order
+	 * @param x
+	 * @param y
+	 */
+	void add(int handle, int order, int x, int y) {
+		change(CHANGE_ADD, handle, order, 0, 0, x, y);
+	}
+
+
+	/**
+	 * Queues the removal of a marker.
+	 * @param handle
+	 * @param order
+	 * @param x
+	 * @param y
+	 */
+	void remove(int handle, int order, int x, int y) {
+		change(CHANGE_REMOVE, handle, order, x, y, 0, 0);
+	}
+
+
+	/**
+	 * Queues the move of a marker.
+	 * @param handle
+	 * @param order
+	 * @param oldX
+	 * @param oldY
+	 * @param newX
+	 * @param newY
+	 */
+	void move(int handle, int order, int oldX, int oldY, int newX, int newY) {
+		change(CHANGE_REMOVE | CHANGE_ADD, handle, order, oldX, oldY, newX, newY);
+	}
+
+
+	/**
+	 * Queues the removal of all markers.
+	 */
+	void clear() {
+		change(CHANGE_CLEAR, 0, 0, 0, 0, 0, 0);
+	}
+
+
+	/*
+	 * ========================================
+	 * WORKER METHODS
+	 * ========================================
+	 */
+
+
+	/**
+	 * Applies queued changes in batches until none are left, publishing the changed levels after each batch.
+	 */
+	private void work() {
+		while (true) {
+			int[] batch;
+			int batchCount;
+			synchronized (this) {
+				if (changeCount == 0) {
+					working = false;
+					return;
+				}
+				batch = changes;
+				batchCount = changeCount;
+				changes = new int[Math.max(64, batchCount) * CHANGE_SIZE];
+				changeCount = 0;
+			}
+
+			boolean cleared = false;
+			for (int i = 0; i < batchCount; i++) {
+				if ((batch[i * CHANGE_SIZE] & CHANGE_CLEAR) != 0) {
+					// earlier changes of the batch are superseded
+					for (int zoom = 0; zoom <= maxZoom; zoom++) {
+						tables[zoom].clear();
+						changedCounts[zoom] = 0;
+					}
+					cleared = true;
+				} else {
+					apply(batch, i * CHANGE_SIZE);
+				}
+			}
+
+			boolean published = false;
+			for (int zoom = 0; zoom <= maxZoom; zoom++) {
+				if (cleared || (changedCounts[zoom] > 0)) {
+					published |= publish(zoom, cleared);
+				}
+			}
+			Runnable runnable = invalidateRunnable;
+			if (published && (runnable != null)) {
+				handler.removeCallbacks(runnable);
+				handler.post(runnable);
+			}
+		}
+	}
+
+
+	/**
+	 * Applies a single change to the cell aggregates of all zoom levels.
+	 * @param batch
+	 * @param c
+	 */
+	private void apply(int[] batch, int c) {
+		int flags = batch[c];
+		int handle = batch[c + 1];
+		int order = batch[c + 2];
+		int oldX = batch[c + 3];
+		int oldY = batch[c + 4];
+		int newX = batch[c + 5];
+		int newY = batch[c + 6];
+		if ((flags == (CHANGE_REMOVE | CHANGE_ADD)) && (oldX == newX) && (oldY == newY)) {
+			return;
+		}
+
+		for (int zoom = 0; zoom <= maxZoom; zoom++) {
+			int shift = getCellShift(zoom);
+			if ((flags & CHANGE_REMOVE) != 0) {
+				update(zoom, cell(oldX, oldY, shift), handle, order, -oldX, -oldY, -1);
+			}
+			if ((flags & CHANGE_ADD) != 0) {
+				update(zoom, cell(newX, newY, shift), handle, order, newX, newY, 1);
+			}
+		}
+	}
+
+
+	/**
+	 * Updates the aggregate of a cell and records the cell as changed.
+	 * @param zoom
+	 * @param cell
+	 * @param handle
+	 * @param order
+	 * @param x
+	 * @param y
+	 * @param count +1 to add a marker, -1 to remove it.
+	 */
+	private void update(int zoom, long cell, int handle, int order, long x, long y, int count) {
+		CellTable table = tables[zoom];
+		int slot = table.findOrAdd(cell);
+		table.sumXs[slot] += x;
+		table.sumYs[slot] += y;
+		table.counts[slot] += count;
+		table.handles[slot] ^= handle;
+		table.orders[slot] ^= order;
+		if (table.counts[slot] <= 0) {
+			table.remove(slot);
+		}
+
+		int changedCount = changedCounts[zoom];
+		if (changedCount == changedCells[zoom].length) {
+			changedCells[zoom] = Arrays.copyOf(changedCells[zoom], changedCount * 2);
+		}
+		changedCells[zoom][changedCount] = cell;
+		changedCounts[zoom] = changedCount + 1;
+	}
+
+
+	/**
+	 * Publishes a new snapshot of a zoom level if the clusters of its changed cells differ from the current
+	 * snapshot, merging the changed cells into a copy of it.
+	 * <p>
+	 * Centroids are compared at the pixel resolution of the zoom level, so markers moving within a cluster
+	 * rarely require a new snapshot of the lower levels.
+	 * @param zoom
+	 * @param cleared whether all cells were removed before the changes, so the current snapshot is discarded.
+	 * @return <code>true</code> if a snapshot was published.
+	 */
+	private boolean publish(int zoom, boolean cleared) {
+		CellTable table = tables[zoom];
+		long[] changed = changedCells[zoom];
+		int changedCount = changedCounts[zoom];
+		changedCounts[zoom] = 0;
+		Arrays.sort(changed, 0, changedCount);
+
+		int shift = getCellShift(zoom);
+		Level old = cleared ? null : levels.get(zoom);
+		if (old == null) {
+			old = new Level(shift, 0);
+		}
+		int pixelShift = Math.max(MapProjection.MAP_BITS - zoom - TILE_SIZE_POWER, 0);
+		if (!cleared && !differs(old, table, changed, changedCount, pixelShift)) {
+			return false;
+		}
+
+		Level level = new Level(shift, old.size + changedCount);
+		int from = 0;
+		for (int j = 0; j < changedCount; j++) {
+			long cell = changed[j];
+			if ((j > 0) && (cell == changed[j - 1])) {
+				continue;
+			}
+			int i = Arrays.binarySearch(old.cells, from, old.size, cell);
+			int end = (i >= 0) ? i : -i - 1;
+			level.append(old, from, end - from);
+			from = (i >= 0) ? i + 1 : end;
+
+			int slot = table.find(cell);
+			if (slot >= 0) {
+				level.append(table, slot);
+			}
+		}
+		level.append(old, from, old.size - from);
+		levels.set(zoom, level);
+		return true;
+	}
+
+
+	/**
+	 * Tests if the clusters of any changed cell differ from a snapshot.
+	 * @param level
+	 * @param table
+	 * @param changed the sorted changed cells.
+	 * @param changedCount
+	 * @param pixelShift the shift from map units to pixels.
+	 * @return
+	 */
+	private static boolean differs(Level level, CellTable table, long[] changed, int changedCount,
+			int pixelShift) {
+		for (int j = 0; j < changedCount; j++) {
+			int i = Arrays.binarySearch(level.cells, 0, level.size, changed[j]);
+			int slot = table.find(changed[j]);
+			if ((i < 0) || (slot < 0)) {
+				if ((i >= 0) || (slot >= 0)) {
+					return true;
+				}
+				continue;
+			}
+			if ((level.counts[i] != table.counts[slot]) || (level.handles[i] != table.handles[slot])
+					|| (level.orders[i] != table.orders[slot])
+					|| ((level.xs[i] >> pixelShift) != (table.getX(slot) >> pixelShift))
+					|| ((level.ys[i] >> pixelShift) != (table.getY(slot) >> pixelShift))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Gets the cell of a map point.
+	 * @param x
+	 * @param y
+	 * @param shift
+	 * @return the row in the high and the column in the low bits.
+	 */
+	private static long cell(int x, int y, int shift) {
+		return ((long) ((y & MapPoint.MASK) >> shift) << 32) | ((x & MapPoint.MASK) >> shift);
+	}
+
+
+	/*
+	 * ========================================
+	 * RENDERING METHODS, CALLED BY THE LAYER
+	 * ========================================
+	 */
+
+
+	/**
+	 * Renders the clusters of the zoom level of a projection within a region.
+	 * @param canvas
+	 * @param projection
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param markers the markers of the layer, by index handle.
+	 * @param invalidateRunnable
+	 * @return <code>false</code> if no clusters are available yet.
+	 */
+	boolean render(Canvas canvas, MapProjection projection, int minX, int minY, int maxX, int maxY,
+			Marker[] markers, Runnable invalidateRunnable) {
+		this.invalidateRunnable = invalidateRunnable;
+		Level level = levels.get(projection.getZoom());
+		if (level == null) {
+			return false;
+		}
+
+		int shift = level.shift;
+		int firstRow = minY >> shift;
+		int lastRow = maxY >> shift;
+		int firstColumn = minX >> shift;
+		int lastColumn = maxX >> shift;
+		for (int row = firstRow; row <= lastRow; row++) {
+			if (firstColumn <= lastColumn) {
+				renderRow(canvas, projection, level, row, firstColumn, lastColumn, markers);
+			} else {
+				renderRow(canvas, projection, level, row, firstColumn, MapPoint.MASK >> shift, markers);
+				renderRow(canvas, projection, level, row, 0, lastColumn, markers);
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Renders the clusters of a range of cells within a row.
+	 * @param canvas
+	 * @param projection
+	 * @param level
+	 * @param row
+	 * @param firstColumn
+	 * @param lastColumn
+	 * @param markers
+	 */
+	private void renderRow(Canvas canvas, MapProjection projection, Level level, int row, int firstColumn,
+			int lastColumn, Marker[] markers) {
+		long first = ((long) row << 32) | firstColumn;
+		long last = ((long) row << 32) | lastColumn;
+		int i = Arrays.binarySearch(level.cells, 0, level.size, first);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		for (; (i < level.size) && (level.cells[i] <= last); i++) {
+			if (level.counts[i] == 1) {
+				// the XORs of a single marker are its handle and order, skip it if the handle was reused since
+				int handle = level.handles[i];
+				Marker marker = (handle < markers.length) ? markers[handle] : null;
+				if ((marker != null) && (marker.layerOrder == level.orders[i])) {
+					marker.render(canvas, projection);
+				}
+			} else {
+				projection.toPixelCoordinates(level.xs[i], level.ys[i], pixelPoint);
+				clusterRenderer.render(canvas, pixelPoint[0], pixelPoint[1], level.counts[i]);
+			}
+		}
+	}
+}
\ No newline at end of file
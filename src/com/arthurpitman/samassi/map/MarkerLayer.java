@@ -17,18 +17,95 @@
 package com.arthurpitman.samassi.map;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import com.arthurpitman.samassi.DynamicSpatialIndex;
+import com.arthurpitman.samassi.MapPoint;
+
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 
 
 /**
  * A {@link MapLayer} for displaying markers.
+ * <p>
+ * Markers are kept in a {@link DynamicSpatialIndex}, so only markers within the clip region of the projection
+ * are rendered, and clicks are resolved by testing the bitmaps of the markers around the click only. At low zoom levels,
+ * markers can be grouped by a {@link MarkerClusterer}.
+ * <p>
+ * If a {@link MarkerAtlas} is set, marker bitmaps are packed into it, so visible markers are drawn in a few
+ * batched calls rather than one call each. Batched markers are drawn from the atlas instead of by
+ * {@link Marker#render(Canvas, MapProjection)}, so batching is only enabled on request. Bitmaps which do not fit
+ * into the atlas are drawn by their markers.
  */
 public class MarkerLayer extends MapLayer {
 
+	/** Default radius around a click within which markers are hit, in pixels. */
+	public static final float DEFAULT_CLICK_RADIUS = 24;
+
+	/** Default margin around the clip region within which markers are rendered, in pixels. */
+	public static final float DEFAULT_MARGIN = 64;
+
+	/**
+	 * Receives clicks on markers.
+	 */
+	public interface OnMarkerClickListener {
+
+		/**
+		 * Called when a marker is clicked.
+		 * @param marker
+		 * @return <code>true</code> if the click was handled, <code>false</code> if it should be passed to lower layers.
+		 */
+		boolean onMarkerClick(Marker marker);
+	}
+
 	/** The {@code Marker}'s. */
 	private ArrayList<Marker> markers = new ArrayList<Marker>();
 
+	/** Spatial index of the {@code Marker}'s with a location. */
+	private DynamicSpatialIndex index = new DynamicSpatialIndex();
+
+	/** The {@code Marker} of each index entry. */
+	private Marker[] indexedMarkers = new Marker[256];
+
+	/** Drawing order of the next {@code Marker} added. */
+	private int nextOrder;
+
+	/** Buffers for the markers visible in the current frame and their pixel coordinates. */
+	private int[] visible = new int[256];
+	private long[] visibleKeys = new long[256];
+	private float[] points = new float[512];
+
+	/** Margin around the clip region in pixels. */
+	private float margin = DEFAULT_MARGIN;
+
+	/** Click radius in pixels. */
+	private float clickRadius = DEFAULT_CLICK_RADIUS;
+
+	/** Click radius in map units, as of the last frame. */
+	private int clickDistance;
+
+	/** Click radius plus margin in map units, as of the last frame, covering the bitmaps of clicked markers. */
+	private int hitDistance;
+
+	/** The projection of the last frame, used to resolve clicks to bitmaps. */
+	private MapProjection projection;
+
+	private OnMarkerClickListener onMarkerClickListener;
+
+	/** Clusters markers at low zoom levels, if set. */
+	private MarkerClusterer clusterer;
+
+	/** Atlas of marker bitmaps, <code>null</code> unless batching is enabled. */
+	private MarkerAtlas atlas;
+
+	private final int[] tempBounds = new int[4];
+	private final float[] tempPoint = new float[2];
+	private final float[] clickPoint = new float[2];
+	private final int[] clipRegion = new int[4];
+
 
 	/**
 	 * Creates a new {@code MarkerLayer}.
@@ -40,26 +117,388 @@ public class MarkerLayer extends MapLayer {
 
 	/**
 	 * Gets the markers.
+	 * <p>
+	 * Use {@link #addMarker(Marker)} and {@link #removeMarker(Marker)} to change the markers. Removing a marker
+	 * moves the last marker into its place, so the list is not in drawing order.
+	 * @return an unmodifiable list of the markers.
+	 */
+	public List<Marker> getMarkers() {
+		return Collections.unmodifiableList(markers);
+	}
+
+
+	/**
+	 * Adds a marker, which is drawn above the markers already added.
+	 * @param marker a marker not belonging to any layer.
+	 */
+	public void addMarker(Marker marker) {
+		if (marker.layer != null) {
+			throw new IllegalArgumentException("Marker already belongs to a layer");
+		}
+		marker.layer = this;
+		marker.layerOrder = nextOrder++;
+		marker.layerPosition = markers.size();
+		markers.add(marker);
+		updateMarker(marker);
+	}
+
+
+	/**
+	 * Removes a marker.
+	 * @param marker
+	 * @return <code>true</code> if the marker belonged to this layer.
+	 */
+	public boolean removeMarker(Marker marker) {
+		if (marker.layer != this) {
+			return false;
+		}
+		unindex(marker);
+
+		// move the last marker into the place of the removed one
+		Marker last = markers.remove(markers.size() - 1);
+		if (last != marker) {
+			markers.set(marker.layerPosition, last);
+			last.layerPosition = marker.layerPosition;
+		}
+		marker.layer = null;
+		marker.layerPosition = -1;
+		return true;
+	}
+
+
+	/**
+	 * Removes all markers.
+	 */
+	public void clearMarkers() {
+		for (Marker marker : markers) {
+			marker.layer = null;
+			marker.layerIndex = -1;
+			marker.layerPosition = -1;
+		}
+		markers.clear();
+		index.clear();
+		Arrays.fill(indexedMarkers, null);
+		if (clusterer != null) {
+			clusterer.clear();
+		}
+	}
+
+
+	/**
+	 * Gets the clusterer.
+	 * @return
+	 */
+	public MarkerClusterer getClusterer() {
+		return clusterer;
+	}
+
+
+	/**
+	 * Sets the clusterer used to group markers at low zoom levels.
+	 * @param clusterer a clusterer not used by any other layer, or <code>null</code> to disable clustering.
+	 */
+	public void setClusterer(MarkerClusterer clusterer) {
+		if (this.clusterer != null) {
+			this.clusterer.clear();
+		}
+		this.clusterer = clusterer;
+		if (clusterer != null) {
+			clusterer.clear();
+			for (Marker marker : markers) {
+				if (marker.layerIndex >= 0) {
+					index.getBounds(marker.layerIndex, tempBounds);
+					clusterer.add(marker.layerIndex, marker.layerOrder, tempBounds[0], tempBounds[1]);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the atlas used for drawing markers.
+	 * @return the atlas, or <code>null</code> if markers are drawn separately.
+	 */
+	public MarkerAtlas getAtlas() {
+		return atlas;
+	}
+
+
+	/**
+	 * Sets the atlas used for drawing markers in batches, which may be shared with other layers.
+	 * @param atlas an atlas, or <code>null</code> to draw each marker separately.
+	 */
+	public void setAtlas(MarkerAtlas atlas) {
+		this.atlas = atlas;
+	}
+
+
+	/**
+	 * Updates the index entry of a marker after its location changed.
+	 * @param marker
+	 */
+	void updateMarker(Marker marker) {
+		MapPoint location = marker.getLocation();
+		if (location == null) {
+			unindex(marker);
+			return;
+		}
+
+		int x = location.getX();
+		int y = location.getY();
+		if (marker.layerIndex >= 0) {
+			if (clusterer != null) {
+				index.getBounds(marker.layerIndex, tempBounds);
+				clusterer.move(marker.layerIndex, marker.layerOrder, tempBounds[0], tempBounds[1], x, y);
+			}
+			index.move(marker.layerIndex, x, y, x, y);
+		} else {
+			int i = index.insert(marker.layerOrder, 0, x, y, x, y);
+			if (i >= indexedMarkers.length) {
+				indexedMarkers = Arrays.copyOf(indexedMarkers, Math.max(i + 1, indexedMarkers.length * 2));
+			}
+			indexedMarkers[i] = marker;
+			marker.layerIndex = i;
+			if (clusterer != null) {
+				clusterer.add(i, marker.layerOrder, x, y);
+			}
+		}
+	}
+
+
+	/**
+	 * Removes the index entry of a marker, if any.
+	 * @param marker
+	 */
+	private void unindex(Marker marker) {
+		if (marker.layerIndex >= 0) {
+			if (clusterer != null) {
+				index.getBounds(marker.layerIndex, tempBounds);
+				clusterer.remove(marker.layerIndex, marker.layerOrder, tempBounds[0], tempBounds[1]);
+			}
+			index.remove(marker.layerIndex);
+			indexedMarkers[marker.layerIndex] = null;
+			marker.layerIndex = -1;
+		}
+	}
+
+
+	/**
+	 * Gets the margin around the clip region within which markers are rendered.
+	 * @return the margin in pixels.
+	 */
+	public float getMargin() {
+		return margin;
+	}
+
+
+	/**
+	 * Sets the margin around the clip region within which markers are rendered. This should cover the largest
+	 * marker bitmap, so markers just outside the clip region are still partially drawn.
+	 * @param margin the margin in pixels.
+	 */
+	public void setMargin(float margin) {
+		this.margin = margin;
+	}
+
+
+	/**
+	 * Gets the click radius.
+	 * @return the radius in pixels.
+	 */
+	public float getClickRadius() {
+		return clickRadius;
+	}
+
+
+	/**
+	 * Sets the radius around a click within which markers are hit.
+	 * @param clickRadius the radius in pixels.
+	 */
+	public void setClickRadius(float clickRadius) {
+		this.clickRadius = clickRadius;
+	}
+
+
+	/**
+	 * Sets the listener receiving clicks on markers.
+	 * @param onMarkerClickListener
+	 */
+	public void setOnMarkerClickListener(OnMarkerClickListener onMarkerClickListener) {
+		this.onMarkerClickListener = onMarkerClickListener;
+	}
+
+
+	/**
+	 * Converts a distance in pixels to map units at the zoom of a projection.
+	 * @param pixels
+	 * @param projection
 	 * @return
 	 */
-	public ArrayList<Marker> getMarkers() {
-		return markers;
+	static int toMapDistance(float pixels, MapProjection projection) {
+		long distance = (long) (pixels / projection.getZoomScale()) << projection.getPixelShift();
+		return (int) Math.min(distance, MapPoint.MASK);
+	}
+
+
+	/**
+	 * Gets the clip region of a projection extended by a margin, covering the whole width if it wraps around
+	 * completely.
+	 * @param projection
+	 * @param mapMargin the margin in map units.
+	 * @param region receives minX, minY, maxX and maxY.
+	 * @return <code>false</code> if the region is empty.
+	 */
+	static boolean getClipRegion(MapProjection projection, int mapMargin, int[] region) {
+		long rawMinX = projection.getRawMapClipMinX() - mapMargin;
+		long rawMaxX = projection.getRawMapClipMaxX() + mapMargin;
+		region[0] = 0;
+		region[2] = MapPoint.MASK;
+		if (rawMaxX - rawMinX < MapPoint.MASK) {
+			region[0] = (int) (rawMinX & MapPoint.MASK);
+			region[2] = (int) (rawMaxX & MapPoint.MASK);
+		}
+		region[1] = (int) Math.max(projection.getRawMapClipMinY() - mapMargin, 0);
+		region[3] = (int) Math.min(projection.getRawMapClipMaxY() + mapMargin, MapPoint.MASK);
+		return region[1] <= region[3];
 	}
 
 
 	@Override
 	public boolean render(Canvas canvas, MapProjection projection,
 			long frameMillis, Runnable invalidateRunnable) {
-		for (Marker marker : markers) {
-			marker.render(canvas, projection);
+		this.projection = projection;
+		clickDistance = toMapDistance(clickRadius, projection);
+		hitDistance = toMapDistance(clickRadius + margin, projection);
+		if (index.getSize() == 0) {
+			return true;
+		}
+
+		int mapMargin = toMapDistance(margin, projection);
+		if (!getClipRegion(projection, mapMargin, clipRegion)) {
+			return true;
+		}
+		int minX = clipRegion[0];
+		int minY = clipRegion[1];
+		int maxX = clipRegion[2];
+		int maxY = clipRegion[3];
+
+		// draw clusters instead of markers at low zoom levels, once they are available
+		if ((clusterer != null) && (projection.getZoom() <= clusterer.getMaxZoom())
+				&& clusterer.render(canvas, projection, minX, minY, maxX, maxY, indexedMarkers, invalidateRunnable)) {
+			return true;
+		}
+
+		int count = queryVisible(minX, minY, maxX, maxY);
+
+		// draw in the order the markers were added
+		for (int i = 0; i < count; i++) {
+			visibleKeys[i] = ((long) indexedMarkers[visible[i]].layerOrder << 32) | visible[i];
 		}
+		Arrays.sort(visibleKeys, 0, count);
+		if (atlas == null) {
+			for (int i = 0; i < count; i++) {
+				indexedMarkers[(int) visibleKeys[i]].render(canvas, projection);
+			}
+			return true;
+		}
+
+		// project all markers at once, as in MapProjection.toPixelCoordinates
+		int mapFocusX = projection.getMapFocusX();
+		int mapFocusY = projection.getMapFocusY();
+		int pixelShift = projection.getPixelShift();
+		for (int i = 0; i < count; i++) {
+			MapPoint location = indexedMarkers[(int) visibleKeys[i]].getLocation();
+			points[i * 2] = (float) ((location.getX() - mapFocusX) >> pixelShift);
+			points[i * 2 + 1] = (float) ((location.getY() - mapFocusY) >> pixelShift);
+		}
+		projection.getTransformMatrix().mapPoints(points, 0, points, 0, count);
+
+		atlas.begin();
+		for (int i = 0; i < count; i++) {
+			Marker marker = indexedMarkers[(int) visibleKeys[i]];
+			Bitmap bitmap = marker.getBitmap();
+			if (bitmap == null) {
+				continue;
+			}
+			int region = atlas.add(bitmap);
+			if (region < 0) {
+				// keep the drawing order by flushing the batch first, which also lets the atlas repack
+				atlas.end(canvas);
+				region = atlas.add(bitmap);
+			}
+			if (region >= 0) {
+				atlas.draw(canvas, region, points[i * 2] - marker.getXPixelOffset(),
+						points[i * 2 + 1] - marker.getYPixelOffset());
+			} else {
+				marker.render(canvas, projection);
+			}
+		}
+		atlas.end(canvas);
 		return true;
 	}
 
 
+	/**
+	 * Queries the index into {@link #visible}, growing the buffers if necessary.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return the number of markers found.
+	 */
+	private int queryVisible(int minX, int minY, int maxX, int maxY) {
+		int count = index.query(minX, minY, maxX, maxY, -1, visible, visible.length);
+		if ((count == visible.length) && (count < index.getSize())) {
+			visible = new int[index.getSize()];
+			visibleKeys = new long[visible.length];
+			count = index.query(minX, minY, maxX, maxY, -1, visible, visible.length);
+			points = new float[visible.length * 2];
+		}
+		return count;
+	}
+
+
 	@Override
 	public boolean onClick(int x, int y) {
-		// TODO add click support
-		return false;
+		if ((onMarkerClickListener == null) || (projection == null) || (clickDistance == 0)) {
+			return false;
+		}
+
+		// the margin covers the largest bitmap, so markers further away than the click radius plus margin
+		// cannot be hit
+		int count;
+		if (hitDistance >= MapPoint.MASK / 2) {
+			count = queryVisible(0, y - hitDistance, MapPoint.MASK, y + hitDistance);
+		} else {
+			count = queryVisible((x - hitDistance) & MapPoint.MASK, y - hitDistance,
+					(x + hitDistance) & MapPoint.MASK, y + hitDistance);
+		}
+
+		// hit the marker whose bitmap is closest to the click, preferring markers drawn on top
+		projection.toPixelCoordinates(x, y, clickPoint);
+		float maxDistance = clickRadius * clickRadius;
+		Marker hit = null;
+		float bestDistance = 0;
+		for (int i = 0; i < count; i++) {
+			Marker marker = indexedMarkers[visible[i]];
+			MapPoint location = marker.getLocation();
+			Bitmap bitmap = marker.getBitmap();
+			projection.toPixelCoordinates(location.getX(), location.getY(), tempPoint);
+			float left = tempPoint[0] - marker.getXPixelOffset();
+			float top = tempPoint[1] - marker.getYPixelOffset();
+			float right = (bitmap != null) ? left + bitmap.getWidth() : left;
+			float bottom = (bitmap != null) ? top + bitmap.getHeight() : top;
+
+			// distance from the click to the drawn rectangle, 0 if inside
+			float dx = Math.max(Math.max(left - clickPoint[0], clickPoint[0] - right), 0);
+			float dy = Math.max(Math.max(top - clickPoint[1], clickPoint[1] - bottom), 0);
+			float distance = dx * dx + dy * dy;
+			if ((distance <= maxDistance) && ((hit == null) || (distance < bestDistance)
+					|| ((distance == bestDistance) && (marker.layerOrder > hit.layerOrder)))) {
+				hit = marker;
+				bestDistance = distance;
+			}
+		}
+		return (hit != null) && onMarkerClickListener.onMarkerClick(hit);
 	}
 }
\ No newline at end of file
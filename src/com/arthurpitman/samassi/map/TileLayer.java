@@ -16,6 +16,8 @@
 
 package com.arthurpitman.samassi.map;
 
+import java.util.Arrays;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Canvas.EdgeType;
@@ -31,6 +33,15 @@ import com.arthurpitman.samassi.view.MapView;
  * Map layer composed of tiles.
  */
 public class TileLayer extends MapLayer {
+	/** How far ahead to predict the viewport for prefetching, in milliseconds. */
+	private final static int PREFETCH_MILLIS = 300;
+
+	/** Maximum age of the last motion sample for prefetching, in milliseconds. */
+	private final static int MOTION_TIMEOUT_MILLIS = 100;
+
+	/** Maximum number of tiles prefetched per zoom level and frame. */
+	private final static int MAX_PREFETCH_TILES = 256;
+
 	/** Paint used for drawing tile bitmaps. */
 	private Paint tilePaint;
 
@@ -52,6 +63,23 @@ public class TileLayer extends MapLayer {
 	/** Reusable temporary destination rectangle. */
 	RectF tileDestRect;
 
+	/** Grid coordinates of visible missing tiles, requested together at the end of each frame. */
+	private int[] missingTiles = new int[64];
+	private int missingCount;
+
+	/** Grid coordinates of visible missing tiles at the next zoom level. */
+	private int[] missingChildTiles = new int[64];
+	private int missingChildCount;
+
+	/** Tile coordinates of a request. */
+	private int[] requestedTiles = new int[64];
+
+	/** Grid bounds of tiles to prefetch. */
+	private final int[] prefetchBounds = new int[4];
+
+	/** Flag for enabling prefetching of tiles along the predicted motion. */
+	private boolean prefetching = true;
+
 
 	/**
 	 * Creates a new TileLayer.
@@ -96,8 +124,29 @@ public class TileLayer extends MapLayer {
 	}
 
 
+	/**
+	 * Gets whether tiles about to come into view are prefetched.
+	 * @return
+	 */
+	public boolean isPrefetching() {
+		return prefetching;
+	}
+
+
+	/**
+	 * Sets whether tiles about to come into view are prefetched.
+	 * @param prefetching
+	 */
+	public void setPrefetching(boolean prefetching) {
+		this.prefetching = prefetching;
+	}
+
+
 	@Override
 	public boolean render(Canvas canvas, MapProjection projection, long frameMillis, Runnable invalidateRunnable) {
+		// requests not repeated in this frame are for tiles which are no longer visible
+		tileLoader.beginFrame(frameMillis);
+
 		// allow drawing in transformed space
 		canvas.save();
 		canvas.concat(projection.getTransformMatrix());
@@ -129,8 +178,10 @@ public class TileLayer extends MapLayer {
 		float xStart = (float)(startTileX * tileSize - (projection.getMapFocusX() >> pixelShift));
 		float yStart = (float)(startTileY * tileSize - (projection.getMapFocusY() >> pixelShift));
 
+		missingCount = 0;
+		missingChildCount = 0;
+
 		float y = yStart;
-		boolean requested = false;
 		for (int gridY = startTileY; gridY <= endTileY; gridY++) {
 			float x = xStart;
 			for (int gridX = startTileX; gridX <= endTileX; gridX++) {
@@ -160,8 +211,7 @@ public class TileLayer extends MapLayer {
 						canvas.drawBitmap(tileBitmap, x, y, tilePaint);
 					} else {
 						missing = true;
-						tileLoader.requestTile(tx, ty, zoom, null);
-						requested = true;
+						addMissingTile(gridX, gridY);
 					}
 
 					if (downscale || missing) {
@@ -175,8 +225,7 @@ public class TileLayer extends MapLayer {
 							tileDestRect.set(x, y, x + halfTileSize, y + halfTileSize);
 							canvas.drawBitmap(tileBitmap, tileSourceRect, tileDestRect,  tilePaint);
 						} else if (downscale) {
-							tileLoader.requestTile(tx * 2, ty * 2, zoom + 1, null);
-							requested = true;
+							addMissingChildTile(gridX * 2, gridY * 2);
 						}
 
 						// T1
@@ -185,8 +234,7 @@ public class TileLayer extends MapLayer {
 							tileDestRect.set(x + halfTileSize, y, x + tileSize, y + halfTileSize);
 							canvas.drawBitmap(tileBitmap, tileSourceRect, tileDestRect,  tilePaint);
 						} else if (downscale) {
-							tileLoader.requestTile(tx * 2 + 1, ty * 2, zoom + 1, null);
-							requested = true;
+							addMissingChildTile(gridX * 2 + 1, gridY * 2);
 						}
 
 						// T2
@@ -195,8 +243,7 @@ public class TileLayer extends MapLayer {
 							tileDestRect.set(x, y + halfTileSize, x + halfTileSize, y + tileSize);
 							canvas.drawBitmap(tileBitmap, tileSourceRect, tileDestRect,  tilePaint);
 						} else if (downscale) {
-							tileLoader.requestTile(tx * 2, ty * 2 + 1, zoom + 1, null);
-							requested = true;
+							addMissingChildTile(gridX * 2, gridY * 2 + 1);
 						}
 
 						// T3
@@ -205,8 +252,7 @@ public class TileLayer extends MapLayer {
 							tileDestRect.set(x + halfTileSize, y + halfTileSize, x + tileSize, y + tileSize);
 							canvas.drawBitmap(tileBitmap, tileSourceRect, tileDestRect,  tilePaint);
 						} else if (downscale) {
-							tileLoader.requestTile(tx * 2 + 1, ty * 2 + 1, zoom + 1, null);
-							requested = true;
+							addMissingChildTile(gridX * 2 + 1, gridY * 2 + 1);
 						}
 					}
 
@@ -221,8 +267,12 @@ public class TileLayer extends MapLayer {
 			y += tileSize;
 		}
 
-		if (requested) {
-			tileLoader.requestTile(0, 0, -1, invalidateRunnable);
+		// request missing tiles together, so batch capable sources can fetch them with few queries
+		requestTiles(missingTiles, missingCount, zoom, tileCount, invalidateRunnable);
+		requestTiles(missingChildTiles, missingChildCount, zoom + 1, tileCount * 2, invalidateRunnable);
+
+		if (prefetching) {
+			prefetch(projection, frameMillis, downscale);
 		}
 
 		canvas.restore();
@@ -230,6 +280,247 @@ public class TileLayer extends MapLayer {
 	}
 
 
+	/**
+	 * Requests low priority loading of the tiles which are predicted to come into view.
+	 * <p>
+	 * The viewport is extrapolated along the current pan and zoom velocity. Tiles are prefetched at the
+	 * current zoom level, covering both the current and the predicted viewport, and at the zoom level
+	 * which is being zoomed towards.
+	 * @param projection
+	 * @param frameMillis
+	 * @param downscale
+	 */
+	private void prefetch(MapProjection projection, long frameMillis, boolean downscale) {
+		long motionMillis = projection.getMotionMillis();
+		if ((motionMillis == 0) || (frameMillis - motionMillis > MOTION_TIMEOUT_MILLIS)) {
+			return;
+		}
+
+		float velocityX = projection.getVelocityX();
+		float velocityY = projection.getVelocityY();
+		float zoomVelocity = projection.getZoomVelocity();
+		if ((velocityX == 0) && (velocityY == 0) && (zoomVelocity == 0)) {
+			return;
+		}
+
+		// extrapolate the clip, zooming scales it around the map focus
+		int zoomPoints = projection.getZoomPoints();
+		int predictedZoomPoints = zoomPoints + (int)(zoomVelocity * PREFETCH_MILLIS);
+		Map map = projection.getMap();
+		if (map != null) {
+			predictedZoomPoints = Math.min(Math.max(predictedZoomPoints, map.getMinimumZoom() * MapView.ZOOM_MULTIPLIER),
+					map.getMaximumZoom() * MapView.ZOOM_MULTIPLIER);
+		}
+		double scale = Math.pow(2, (double)(zoomPoints - predictedZoomPoints) / MapView.ZOOM_MULTIPLIER);
+		long focusX = projection.getMapFocusX();
+		long focusY = projection.getMapFocusY();
+		long offsetX = (long)(velocityX * PREFETCH_MILLIS);
+		long offsetY = (long)(velocityY * PREFETCH_MILLIS);
+		long minX = focusX + (long)((projection.getRawMapClipMinX() - focusX) * scale) + offsetX;
+		long minY = focusY + (long)((projection.getRawMapClipMinY() - focusY) * scale) + offsetY;
+		long maxX = focusX + (long)((projection.getRawMapClipMaxX() - focusX) * scale) + offsetX;
+		long maxY = focusY + (long)((projection.getRawMapClipMaxY() - focusY) * scale) + offsetY;
+
+		// current zoom level, including the tiles passed on the way
+		int zoom = projection.getZoom();
+		prefetchLevel(zoom, Math.min(minX, projection.getRawMapClipMinX()), Math.min(minY, projection.getRawMapClipMinY()),
+				Math.max(maxX, projection.getRawMapClipMaxX()), Math.max(maxY, projection.getRawMapClipMaxY()));
+
+		// the zoom level being zoomed towards, zoom + 1 is also drawn while zoomed in between levels
+		int nextZoom = (zoomVelocity < 0) ? zoom - 1 : zoom + 1;
+		if ((zoomVelocity != 0) || downscale) {
+			if ((map == null) || ((nextZoom >= map.getMinimumZoom()) && (nextZoom <= map.getMaximumZoom()))) {
+				prefetchLevel(nextZoom, minX, minY, maxX, maxY);
+			}
+		}
+	}
+
+
+	/**
+	 * Requests low priority loading of the tiles of a zoom level within raw map bounds.
+	 * @param zoom
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	private void prefetchLevel(int zoom, long minX, long minY, long maxX, long maxY) {
+		if (zoom < 0) {
+			return;
+		}
+
+		int tileShift = MapProjection.MAP_BITS - zoom;
+		resetBounds(prefetchBounds);
+		extendBounds(prefetchBounds, (int)(minX >> tileShift), (int)(minY >> tileShift));
+		extendBounds(prefetchBounds, (int)(maxX >> tileShift), (int)(maxY >> tileShift));
+
+		long tiles = (long)(prefetchBounds[2] - prefetchBounds[0] + 1) * (prefetchBounds[3] - prefetchBounds[1] + 1);
+		if (tiles <= MAX_PREFETCH_TILES) {
+			requestBounds(prefetchBounds, zoom, 1 << zoom, TileLoader.PRIORITY_PREFETCH, null);
+		}
+	}
+
+
+	/**
+	 * Resets grid bounds to empty.
+	 * @param bounds
+	 */
+	private static void resetBounds(int[] bounds) {
+		bounds[0] = Integer.MAX_VALUE;
+		bounds[1] = Integer.MAX_VALUE;
+		bounds[2] = Integer.MIN_VALUE;
+		bounds[3] = Integer.MIN_VALUE;
+	}
+
+
+	/**
+	 * Extends grid bounds to include the specified tile.
+	 * @param bounds
+	 * @param gridX
+	 * @param gridY
+	 */
+	private static void extendBounds(int[] bounds, int gridX, int gridY) {
+		bounds[0] = Math.min(bounds[0], gridX);
+		bounds[1] = Math.min(bounds[1], gridY);
+		bounds[2] = Math.max(bounds[2], gridX);
+		bounds[3] = Math.max(bounds[3], gridY);
+	}
+
+
+	/**
+	 * Adds a visible missing tile.
+	 * @param gridX
+	 * @param gridY
+	 */
+	private void addMissingTile(int gridX, int gridY) {
+		if (missingCount * 2 == missingTiles.length) {
+			missingTiles = Arrays.copyOf(missingTiles, missingTiles.length * 2);
+		}
+		missingTiles[missingCount * 2] = gridX;
+		missingTiles[missingCount * 2 + 1] = gridY;
+		missingCount++;
+	}
+
+
+	/**
+	 * Adds a visible missing tile at the next zoom level.
+	 * @param gridX
+	 * @param gridY
+	 */
+	private void addMissingChildTile(int gridX, int gridY) {
+		if (missingChildCount * 2 == missingChildTiles.length) {
+			missingChildTiles = Arrays.copyOf(missingChildTiles, missingChildTiles.length * 2);
+		}
+		missingChildTiles[missingChildCount * 2] = gridX;
+		missingChildTiles[missingChildCount * 2 + 1] = gridY;
+		missingChildCount++;
+	}
+
+
+	/**
+	 * Requests a list of visible tiles, splitting them where the grid wraps around, so only these tiles are
+	 * loaded rather than everything within their bounds, e.g. the off-screen corners of a rotated map.
+	 * @param tiles grid coordinates of the tiles, reordered by this method.
+	 * @param count
+	 * @param zoom
+	 * @param tileCount
+	 * @param callback
+	 */
+	private void requestTiles(int[] tiles, int count, int zoom, int tileCount, Runnable callback) {
+		if (requestedTiles.length < count * 2) {
+			requestedTiles = new int[count * 2];
+		}
+
+		while (count > 0) {
+			// take all tiles of the same copy of the world as the first one, keeping the others
+			int copyX = tiles[0] - wrap(tiles[0], tileCount);
+			int copyY = tiles[1] - wrap(tiles[1], tileCount);
+			int requestedCount = 0;
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				int gridX = tiles[i * 2];
+				int gridY = tiles[i * 2 + 1];
+				if ((gridX - copyX >= 0) && (gridX - copyX < tileCount)
+						&& (gridY - copyY >= 0) && (gridY - copyY < tileCount)) {
+					requestedTiles[requestedCount * 2] = gridX - copyX;
+					requestedTiles[requestedCount * 2 + 1] = gridY - copyY;
+					requestedCount++;
+				} else {
+					tiles[kept * 2] = gridX;
+					tiles[kept * 2 + 1] = gridY;
+					kept++;
+				}
+			}
+			tileLoader.requestTiles(requestedTiles, requestedCount, zoom, TileLoader.PRIORITY_VISIBLE, callback);
+			count = kept;
+		}
+	}
+
+
+	/**
+	 * Requests the tiles within grid bounds, splitting them where they wrap around.
+	 * @param bounds
+	 * @param zoom
+	 * @param tileCount
+	 * @param priority
+	 * @param callback
+	 */
+	private void requestBounds(int[] bounds, int zoom, int tileCount, int priority, Runnable callback) {
+		if (bounds[0] > bounds[2]) {
+			return;
+		}
+
+		// wrap around tiles on X
+		int minX = 0;
+		int maxX = tileCount - 1;
+		int splitX = -1;
+		if (bounds[2] - bounds[0] < tileCount) {
+			minX = wrap(bounds[0], tileCount);
+			maxX = minX + bounds[2] - bounds[0];
+			if (maxX >= tileCount) {
+				splitX = maxX - tileCount;
+				maxX = tileCount - 1;
+			}
+		}
+
+		// wrap around tiles on Y
+		int minY = 0;
+		int maxY = tileCount - 1;
+		int splitY = -1;
+		if (bounds[3] - bounds[1] < tileCount) {
+			minY = wrap(bounds[1], tileCount);
+			maxY = minY + bounds[3] - bounds[1];
+			if (maxY >= tileCount) {
+				splitY = maxY - tileCount;
+				maxY = tileCount - 1;
+			}
+		}
+
+		tileLoader.requestTiles(minX, minY, maxX, maxY, zoom, priority, callback);
+		if (splitX >= 0) {
+			tileLoader.requestTiles(0, minY, splitX, maxY, zoom, priority, callback);
+		}
+		if (splitY >= 0) {
+			tileLoader.requestTiles(minX, 0, maxX, splitY, zoom, priority, callback);
+			if (splitX >= 0) {
+				tileLoader.requestTiles(0, 0, splitX, splitY, zoom, priority, callback);
+			}
+		}
+	}
+
+
+	/**
+	 * Wraps a grid coordinate into the range of valid tile coordinates.
+	 * @param grid
+	 * @param tileCount
+	 * @return
+	 */
+	private static int wrap(int grid, int tileCount) {
+		int tile = grid % tileCount;
+		return (tile < 0) ? tile + tileCount : tile;
+	}
+
+
 	@Override
 	public boolean onClick(int x, int y) {
 		// TileLayers can't be clicked.
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.tiles;
+
+
+/**
+ * Interface for tile sources that can supply the encoded data of many tiles in a single operation.
+ */
+public interface BatchTileSource extends RawTileSource {
+
+	/**
+	 * Receives tile data from {@link BatchTileSource#getTileData(int, int, int, int, int, TileDataReceiver)}.
+	 */
+	interface TileDataReceiver {
+
+		/**
+		 * Called for each available tile.
+		 * @param x
+		 * @param y
+		 * @param z
+		 * @param data the encoded tile data.
+		 */
+		void onTileData(int x, int y, int z, byte[] data);
+	}
+
+
+	/**
+	 * Gets the encoded data of all available tiles in the specified rectangle, bounds inclusive.
+	 * <p>
+	 * The receiver is called on the calling thread, in no particular order. Tiles which are not available
+	 * are not reported.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param z
+	 * @param receiver
+	 */
+	void getTileData(int minX, int minY, int maxX, int maxY, int z, TileDataReceiver receiver);
+}
\ No newline at end of file
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.tiles;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+
+/**
+ * Pool of reusable bitmaps, bucketed by width, height and config.
+ * <p>
+ * Bitmaps that are no longer needed are returned to the pool and their memory is reused when decoding
+ * new bitmaps via {@link BitmapFactory.Options#inBitmap}. This avoids allocating and garbage collecting
+ * large pixel buffers during continuous panning. Only bitmaps of exactly the same size are reused, as
+ * required before API level 19.
+ * <p>
+ * Note that the pool never recycles bitmaps, as they may still be drawn after being returned.
+ */
+public class BitmapPool {
+
+	/** Maximum size of all pooled bitmaps. */
+	private final int maxSizeBytes;
+
+	/** Config of decoded bitmaps. */
+	private final Bitmap.Config config;
+
+	/** Pooled bitmaps, keyed by width, height and config. */
+	private final HashMap<Long, ArrayList<Bitmap>> buckets = new HashMap<Long, ArrayList<Bitmap>>();
+
+	/** Current size of all pooled bitmaps. */
+	private int sizeBytes;
+
+	private int hitCount;
+	private int missCount;
+
+
+	/**
+	 * Creates a new {@link BitmapPool} of the specified size, decoding to {@link Bitmap.Config#ARGB_8888}.
+	 * @param maxSizeBytes
+	 */
+	public BitmapPool(int maxSizeBytes) {
+		this(maxSizeBytes, Bitmap.Config.ARGB_8888);
+	}
+
+
+	/**
+	 * Creates a new {@link BitmapPool} of the specified size.
+	 * @param maxSizeBytes
+	 * @param config the config of decoded bitmaps.
+	 */
+	public BitmapPool(int maxSizeBytes, Bitmap.Config config) {
+		this.maxSizeBytes = maxSizeBytes;
+		this.config = config;
+	}
+
+
+	/**
+	 * Gets a pooled bitmap with the specified attributes.
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return a bitmap to reuse, or <code>null</code> if none is available.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		ArrayList<Bitmap> bucket = buckets.get(toKey(width, height, config));
+		if ((bucket == null) || bucket.isEmpty()) {
+			missCount++;
+			return null;
+		}
+
+		hitCount++;
+		Bitmap bitmap = bucket.remove(bucket.size() - 1);
+		sizeBytes -= bitmap.getByteCount();
+		return bitmap;
+	}
+
+
+	/**
+	 * Returns a bitmap to the pool.
+	 * <p>
+	 * Immutable or recycled bitmaps can't be reused and are ignored, as are bitmaps that don't fit into the pool.
+	 * @param bitmap
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if ((bitmap == null) || !bitmap.isMutable() || bitmap.isRecycled()) {
+			return;
+		}
+
+		int byteCount = bitmap.getByteCount();
+		if (sizeBytes + byteCount > maxSizeBytes) {
+			return;
+		}
+
+		Long key = toKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayList<Bitmap> bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new ArrayList<Bitmap>();
+			buckets.put(key, bucket);
+		}
+		bucket.add(bitmap);
+		sizeBytes += byteCount;
+	}
+
+
+	/**
+	 * Decodes a bitmap, reusing a pooled bitmap if possible.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return the decoded bitmap, or <code>null</code> if the data could not be decoded.
+	 */
+	public Bitmap decodeByteArray(byte[] data, int offset, int length) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, offset, length, options);
+		if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+			return null;
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = config;
+		options.inMutable = true;
+		options.inSampleSize = 1;
+		options.inBitmap = get(options.outWidth, options.outHeight, config);
+
+		if (options.inBitmap != null) {
+			try {
+				return BitmapFactory.decodeByteArray(data, offset, length, options);
+			} catch (IllegalArgumentException e) {
+				// the decoder refused to reuse the bitmap, e.g. because of a different config
+				put(options.inBitmap);
+				options.inBitmap = null;
+			}
+		}
+		return BitmapFactory.decodeByteArray(data, offset, length, options);
+	}
+
+
+	/**
+	 * Removes all bitmaps from the pool.
+	 */
+	public synchronized void clear() {
+		buckets.clear();
+		sizeBytes = 0;
+	}
+
+
+	/**
+	 * Gets the number of times a pooled bitmap was available.
+	 * @return
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+
+	/**
+	 * Gets the number of times no pooled bitmap was available.
+	 * @return
+	 */
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+
+	/**
+	 * Gets the current size of all pooled bitmaps in bytes.
+	 * @return
+	 */
+	public synchronized int getSize() {
+		return sizeBytes;
+	}
+
+
+	/**
+	 * Converts the specified bitmap attributes to a bucket key.
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return
+	 */
+	private static long toKey(int width, int height, Bitmap.Config config) {
+		int configIndex = (config == null) ? 0xFF : config.ordinal();
+		return ((long)configIndex << 32) | (((long)width & 0xFFFF) << 16) | ((long)height & 0xFFFF);
+	}
+}
\ No newline at end of file
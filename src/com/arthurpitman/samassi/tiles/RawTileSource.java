@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.tiles;
+
+
+/**
+ * Interface for tile sources that can supply tiles in their encoded form, e.g. PNG or JPEG.
+ * <p>
+ * This allows {@link TileLoader} to fetch tile data and decode it on separate threads.
+ */
+public interface RawTileSource extends TileSource {
+
+	/**
+	 * Gets the encoded data of the specified tile.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the encoded tile data if available, otherwise <code>null</code>.
+	 */
+	byte[] getTileData(int x, int y, int z);
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 - 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.tiles;
+
+
+/**
+ * Packs x, y and z tile coordinates into a single, non-negative 64-bit key.
+ * <p>
+ * x and y are limited to 24 bits and z to 8 bits.
+ */
+public final class TileKey {
+
+	private static final int X_SHIFT = 32;
+	private static final int Y_SHIFT = 8;
+	private static final int X_MASK = 0xFFFFFF;
+	private static final int Y_MASK = 0xFFFFFF;
+	private static final int Z_MASK = 0xFF;
+
+
+	private TileKey() {
+	}
+
+
+	/**
+	 * Converts the specified x, y and z tile coordinates to a key.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the key.
+	 */
+	public static long pack(int x, int y, int z) {
+		return (((long)x & X_MASK) << X_SHIFT) | (((long)y & Y_MASK) << Y_SHIFT) | ((long)z & Z_MASK);
+	}
+
+
+	/**
+	 * Gets the x tile coordinate of the specified key.
+	 * @param key
+	 * @return
+	 */
+	public static int getX(long key) {
+		return (int)(key >>> X_SHIFT) & X_MASK;
+	}
+
+
+	/**
+	 * Gets the y tile coordinate of the specified key.
+	 * @param key
+	 * @return
+	 */
+	public static int getY(long key) {
+		return (int)(key >>> Y_SHIFT) & Y_MASK;
+	}
+
+
+	/**
+	 * Gets the z tile coordinate of the specified key.
+	 * @param key
+	 * @return
+	 */
+	public static int getZ(long key) {
+		return (int)key & Z_MASK;
+	}
+}
\ No newline at end of file
@@ -16,39 +16,76 @@
 
 package com.arthurpitman.samassi.tiles;
 
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
+import android.os.Process;
 
 
 /**
- * Loads and caches bitmap tiles using a background thread.
+ * Loads and caches bitmap tiles using pools of background threads.
+ * <p>
+ * Tiles are fetched from the {@link TileSource} on a pool of I/O threads. If the source is a
+ * {@link RawTileSource}, the fetched data is decoded on a separate pool of decode threads, so a slow
+ * fetch never holds up decoding and vice versa. Both pools serve visible tiles before prefetched tiles.
+ * <p>
+ * Tiles are cached on two levels: decoded bitmaps in a small cache and, for {@link RawTileSource}s,
+ * encoded tile data in a second cache that holds many more tiles for the same amount of memory. A tile
+ * missing from the first level but present in the second is decoded without querying the source.
+ * <p>
+ * Duplicate requests for a tile that is already queued are merged. Callers that issue requests while
+ * rendering should call {@link #beginFrame(long)} first, so requests for tiles that are no longer
+ * visible can be dropped before they are loaded.
  */
 public class TileLoader {
 
+	/** Priority of tiles that are currently visible. */
+	public static final int PRIORITY_VISIBLE = 0;
+
+	/** Priority of tiles that are loaded in anticipation of becoming visible. */
+	public static final int PRIORITY_PREFETCH = 1;
+
+	/** Default number of I/O threads. */
+	private static final int DEFAULT_IO_THREADS = 2;
+
+	/** Time in seconds idle worker threads are kept alive. */
+	private static final int KEEP_ALIVE_SECONDS = 5;
+
+	/** Size of the bitmap pool as a fraction of the cache size. */
+	private static final int POOL_SIZE_DIVISOR = 4;
+
 
 	/**
 	 * Least-recently-used bitmap cache.
+	 * <p>
+	 * Evicted bitmaps are returned to a {@link BitmapPool} for reuse.
 	 */
 	private static class TileCache extends android.util.LruCache<Long, Bitmap> {
 
-		private static final int X_SHIFT = 32;
-		private static final int Y_SHIFT = 8;
-		private static final int X_MASK = 0xFFFFFF;
-		private static final int Y_MASK = 0xFFFFFF;
-		private static final int Z_MASK = 0xFF;
+		private final BitmapPool bitmapPool;
+		private final Bitmap emptyTile;
 
 
 		/**
 		 * Creates a new {@link TileCache} of the specified size.
 		 * @param maxSizeBytes
+		 * @param bitmapPool the pool receiving evicted bitmaps.
+		 * @param emptyTile the shared empty tile, which is never pooled.
 		 */
-		public TileCache(int maxSizeBytes) {
+		public TileCache(int maxSizeBytes, BitmapPool bitmapPool, Bitmap emptyTile) {
 			super(maxSizeBytes);
+			this.bitmapPool = bitmapPool;
+			this.emptyTile = emptyTile;
 		}
 
 
@@ -60,7 +97,7 @@ public class TileLoader {
 		 * @return
 		 */
 		public Bitmap get(int x, int y, int z) {
-			return get(toKey(x, y, z));
+			return get(TileKey.pack(x, y, z));
 		}
 
 
@@ -72,7 +109,7 @@ public class TileLoader {
 		 * @param tile
 		 */
 		public void put(int x, int y, int z, Bitmap tile) {
-			put(toKey(x, y, z), tile);
+			put(TileKey.pack(x, y, z), tile);
 		}
 
 
@@ -82,87 +119,497 @@ public class TileLoader {
 		}
 
 
+		@Override
+		protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+			if ((oldValue != newValue) && (oldValue != emptyTile)) {
+				bitmapPool.put(oldValue);
+			}
+		}
+	}
+
+
+	/**
+	 * Least-recently-used cache of encoded tile data.
+	 */
+	private static class TileDataCache extends android.util.LruCache<Long, byte[]> {
+
+		/**
+		 * Creates a new {@link TileDataCache} of the specified size.
+		 * @param maxSizeBytes
+		 */
+		public TileDataCache(int maxSizeBytes) {
+			super(maxSizeBytes);
+		}
+
+
+		@Override
+		protected int sizeOf(Long key, byte[] value) {
+			return value.length;
+		}
+	}
+
+
+	/**
+	 * Base class of tasks run by the thread pools, ordered by priority and then by age.
+	 */
+	private abstract class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+		protected final long sequence;
+		protected final int generation;
+
+		/** Priority, only changed while the task is not queued. */
+		protected int priority;
+
+
+		/**
+		 * Creates a new {@link PrioritizedTask}.
+		 * @param priority
+		 */
+		public PrioritizedTask(int priority) {
+			this.priority = priority;
+			sequence = sequenceCounter.getAndIncrement();
+			generation = sourceGeneration;
+		}
+
+
+		@Override
+		public int compareTo(PrioritizedTask other) {
+			if (priority != other.priority) {
+				return (priority < other.priority) ? -1 : 1;
+			}
+			if (sequence != other.sequence) {
+				return (sequence < other.sequence) ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+
+
+	/**
+	 * A request to load a single tile.
+	 * <p>
+	 * Tasks run twice for {@link RawTileSource}s: once on an I/O thread to fetch the data and once on a
+	 * decode thread to decode it. Tasks which are part of a {@link BatchTask} only run on a decode thread.
+	 * <p>
+	 * While a task is queued or running it is registered in {@link TileLoader#inFlight}, so duplicate
+	 * requests for the same tile are merged into it. Fields marked as guarded are only accessed while
+	 * holding the {@code inFlight} lock.
+	 */
+	private class LoadTask extends PrioritizedTask {
+		private final int x;
+		private final int y;
+		private final int z;
+		private final long key;
+		private byte[] data;
+
+		/** Callback, guarded. */
+		private Runnable callback;
+
+		/** Additional callbacks of merged requests, guarded. */
+		private ArrayList<Runnable> extraCallbacks;
+
+		/** The frame the task was last requested in, guarded. */
+		private long frame;
+
+		/** Flag indicating that the task is no longer needed. */
+		private volatile boolean cancelled;
+
+		/** The batch fetching the data of the task, if any, guarded. */
+		private BatchTask batch;
+
+
 		/**
-		 * Converts the specified x, y and z tile coordinates to a key.
+		 * Creates a new {@link LoadTask}.
 		 * @param x
 		 * @param y
 		 * @param z
-		 * @return the key.
+		 * @param key
+		 * @param priority
+		 * @param callback
+		 */
+		public LoadTask(int x, int y, int z, long key, int priority, Runnable callback) {
+			super(priority);
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.key = key;
+			this.callback = callback;
+			frame = currentFrame;
+		}
+
+
+		/**
+		 * Merges another request for the same tile into this task. Call while holding the {@code inFlight} lock.
+		 * @param requestPriority
+		 * @param requestCallback
+		 */
+		public void merge(int requestPriority, Runnable requestCallback) {
+			frame = currentFrame;
+
+			if ((requestCallback != null) && (requestCallback != callback)) {
+				if (callback == null) {
+					callback = requestCallback;
+				} else {
+					if (extraCallbacks == null) {
+						extraCallbacks = new ArrayList<Runnable>(1);
+					}
+					if (!extraCallbacks.contains(requestCallback)) {
+						extraCallbacks.add(requestCallback);
+					}
+				}
+			}
+
+			// re-queue with the raised priority, a task that is already running is left alone
+			if (requestPriority < priority) {
+				if (ioExecutor.remove(this)) {
+					priority = requestPriority;
+					ioExecutor.execute(this);
+				} else if (decodeExecutor.remove(this)) {
+					priority = requestPriority;
+					decodeExecutor.execute(this);
+				} else if ((batch != null) && (requestPriority < batch.priority) && ioExecutor.remove(batch)) {
+					// the task waits for its batch, so raise the whole batch, whose tasks are not queued yet
+					batch.priority = requestPriority;
+					for (LoadTask task : batch.tasks) {
+						if ((task != null) && (requestPriority < task.priority)) {
+							task.priority = requestPriority;
+						}
+					}
+					ioExecutor.execute(batch);
+				}
+			}
+		}
+
+
+		@Override
+		public void run() {
+			if (cancelled || (generation != sourceGeneration)) {
+				finish();
+				return;
+			}
+
+			if (data == null) {
+				fetch();
+			} else {
+				decode();
+			}
+		}
+
+
+		/**
+		 * Fetches the tile, handing encoded data over to the decode threads.
+		 */
+		private void fetch() {
+			TileSource source = tileSource;
+			if (source == null) {
+				finish();
+				return;
+			}
+
+			if (source instanceof RawTileSource) {
+				byte[] tileData = ((RawTileSource) source).getTileData(x, y, z);
+				if (tileData != null) {
+					startDecode(tileData);
+				} else {
+					complete(null);
+				}
+			} else {
+				complete(source.getTile(x, y, z));
+			}
+		}
+
+
+		/**
+		 * Caches fetched tile data and hands the task over to the decode threads.
+		 * @param tileData
+		 */
+		private void startDecode(byte[] tileData) {
+			if (generation == sourceGeneration) {
+				dataCache.put(key, tileData);
+			}
+			data = tileData;
+			decodeExecutor.execute(this);
+		}
+
+
+		/**
+		 * Decodes the fetched tile data.
+		 */
+		private void decode() {
+			byte[] tileData = data;
+			data = null;
+			complete(bitmapPool.decodeByteArray(tileData, 0, tileData.length));
+		}
+
+
+		/**
+		 * Stores the loaded tile in the cache and notifies the callbacks.
+		 * @param bitmap the tile, or <code>null</code> if not available.
+		 */
+		private void complete(Bitmap bitmap) {
+			if (generation == sourceGeneration) {
+				cache.put(x, y, z, (bitmap == null) ? emptyTile : bitmap);
+			}
+
+			Runnable firstCallback;
+			ArrayList<Runnable> otherCallbacks;
+			synchronized (inFlight) {
+				unregister();
+				firstCallback = callback;
+				otherCallbacks = extraCallbacks;
+			}
+
+			if (generation == sourceGeneration) {
+				post(firstCallback);
+				if (otherCallbacks != null) {
+					for (Runnable otherCallback : otherCallbacks) {
+						post(otherCallback);
+					}
+				}
+			}
+		}
+
+
+		/**
+		 * Unregisters the task without storing a result.
+		 */
+		private void finish() {
+			synchronized (inFlight) {
+				unregister();
+			}
+		}
+
+
+		/**
+		 * Removes the task from the in-flight table. Call while holding the {@code inFlight} lock.
 		 */
-		private static final long toKey(int x, int y, int z) {
-			return (((long)x & X_MASK) << X_SHIFT) | (((long)y & Y_MASK) << Y_SHIFT) | ((long)z & Z_MASK);
+		private void unregister() {
+			if (inFlight.get(key) == this) {
+				inFlight.remove(key);
+			}
+		}
+
+
+		/**
+		 * Posts a callback, coalescing pending posts, e.g. many tiles invalidating the same view.
+		 * @param postCallback
+		 */
+		private void post(Runnable postCallback) {
+			if (postCallback != null) {
+				callbackHandler.removeCallbacks(postCallback);
+				callbackHandler.post(postCallback);
+			}
 		}
 	}
 
 
 	/**
-	 * Internal Handler for loading tiles on a worker thread.
+	 * A request to load all tiles of a rectangle with a single query of a {@link BatchTileSource}.
+	 * <p>
+	 * The individual tiles are represented by {@link LoadTask}s, which are registered in the in-flight
+	 * table as usual and handed over to the decode threads as their data arrives.
 	 */
-	private static class LoaderHandler extends Handler {
-		private WeakReference<TileLoader> outer;
+	private class BatchTask extends PrioritizedTask implements BatchTileSource.TileDataReceiver {
+		private final int minX;
+		private final int minY;
+		private final int width;
+		private final int z;
+
+		/** Tasks indexed by position in the rectangle, <code>null</code> where no tile is needed. */
+		private final LoadTask[] tasks;
+
+		/** The number of tasks which have not been cancelled, guarded. */
+		private int remaining;
 
 
 		/**
-		 * Creates a new WorkerHandler.
-		 * @param mbTileSource the outer class.
-		 * @param looper the looper to create the handler on.
+		 * Creates a new {@link BatchTask}.
+		 * @param minX
+		 * @param minY
+		 * @param width
+		 * @param z
+		 * @param tasks
+		 * @param priority
 		 */
-		public LoaderHandler(TileLoader loader, Looper looper) {
-			super(looper);
-			outer = new WeakReference<TileLoader>(loader);
+		public BatchTask(int minX, int minY, int width, int z, LoadTask[] tasks, int priority) {
+			super(priority);
+			this.minX = minX;
+			this.minY = minY;
+			this.width = width;
+			this.z = z;
+			this.tasks = tasks;
 		}
 
 
 		@Override
-		public void handleMessage(Message message) {
-			TileLoader loader = outer.get();
-			if (loader == null) {
+		public void run() {
+			TileSource source = tileSource;
+			if ((generation != sourceGeneration) || !(source instanceof BatchTileSource)) {
+				for (LoadTask task : tasks) {
+					if (task != null) {
+						task.finish();
+					}
+				}
 				return;
 			}
 
-			TileSource tileSource = loader.tileSource;
-			if (tileSource == null) {
+			// only query the bounds of tiles which are still needed
+			int queryMinX = Integer.MAX_VALUE;
+			int queryMinY = Integer.MAX_VALUE;
+			int queryMaxX = Integer.MIN_VALUE;
+			int queryMaxY = Integer.MIN_VALUE;
+			for (int i = 0; i < tasks.length; i++) {
+				LoadTask task = tasks[i];
+				if (task == null) {
+					continue;
+				}
+				if (task.cancelled) {
+					task.finish();
+					tasks[i] = null;
+					continue;
+				}
+				queryMinX = Math.min(queryMinX, task.x);
+				queryMinY = Math.min(queryMinY, task.y);
+				queryMaxX = Math.max(queryMaxX, task.x);
+				queryMaxY = Math.max(queryMaxY, task.y);
+			}
+			if (queryMinX > queryMaxX) {
 				return;
 			}
 
-			int x = message.what;
-			int y = message.arg1;
-			int z = message.arg2;
-			Runnable callback = (Runnable) message.obj;
+			((BatchTileSource) source).getTileData(queryMinX, queryMinY, queryMaxX, queryMaxY, z, this);
 
-			if (z >= 0) {
-				Bitmap b = tileSource.getTile(x, y, z);
-				if (b == null) {
-					loader.cache.put(x, y, z, loader.emptyTile);
+			// tiles which were not reported are not available
+			for (LoadTask task : tasks) {
+				if (task == null) {
+					continue;
+				}
+				if (task.cancelled) {
+					task.finish();
 				} else {
-					loader.cache.put(x, y, z, b);
+					task.complete(null);
 				}
 			}
+		}
+
 
-			if (callback != null) {
-				loader.callbackHandler.post(callback);
+		@Override
+		public void onTileData(int x, int y, int z, byte[] data) {
+			int index = (y - minY) * width + x - minX;
+			if ((x < minX) || (x >= minX + width) || (index < 0) || (index >= tasks.length)) {
+				return;
 			}
+
+			LoadTask task = tasks[index];
+			if (task != null) {
+				tasks[index] = null;
+				task.startDecode(data);
+			}
+		}
+	}
+
+
+	/**
+	 * Creates low priority, daemon worker threads.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+
+		/**
+		 * Creates a new {@link WorkerThreadFactory}.
+		 * @param name the base name of created threads.
+		 */
+		public WorkerThreadFactory(String name) {
+			this.name = name;
+		}
+
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
 		}
 	}
 
 
 	private TileCache cache;
-	private LoaderHandler workerHandler;
+	private TileDataCache dataCache;
+	private BitmapPool bitmapPool;
+	private ThreadPoolExecutor ioExecutor;
+	private ThreadPoolExecutor decodeExecutor;
 	private Handler callbackHandler;
 	private volatile TileSource tileSource;
+	private volatile int sourceGeneration;
+	private final AtomicLong sequenceCounter = new AtomicLong();
+	private final HashMap<Long, LoadTask> inFlight = new HashMap<Long, LoadTask>();
+	private long currentFrame;
+	private long previousFrame;
 	private Bitmap emptyTile;
 
 
+	/**
+	 * Creates a new {@link TileLoader} with default thread pool sizes.
+	 * <p>
+	 * Must be called on the thread that should receive callbacks, usually the UI thread.
+	 * The encoded tile data cache is given the same size as the bitmap cache.
+	 * @param cacheSize
+	 */
+	public TileLoader(int cacheSize) {
+		this(cacheSize, cacheSize, DEFAULT_IO_THREADS, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+
+	/**
+	 * Creates a new {@link TileLoader}.
+	 * <p>
+	 * Must be called on the thread that should receive callbacks, usually the UI thread.
+	 * A {@link BitmapPool} of a quarter of the cache size is used for reusing evicted tile bitmaps.
+	 * @param cacheSize size of the bitmap cache in bytes.
+	 * @param dataCacheSize size of the encoded tile data cache in bytes.
+	 * @param ioThreads number of threads fetching tiles from the {@link TileSource}.
+	 * @param decodeThreads number of threads decoding tiles fetched from a {@link RawTileSource}.
+	 */
+	public TileLoader(int cacheSize, int dataCacheSize, int ioThreads, int decodeThreads) {
+		emptyTile = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
+		bitmapPool = new BitmapPool(cacheSize / POOL_SIZE_DIVISOR);
+		cache = new TileCache(cacheSize, bitmapPool, emptyTile);
+		dataCache = new TileDataCache(dataCacheSize);
+		ioExecutor = createExecutor(ioThreads, "TileLoader-io");
+		decodeExecutor = createExecutor(decodeThreads, "TileLoader-decode");
+		callbackHandler = new Handler();
+	}
+
+
 	/**
 	 * Creates a new {@link TileLoader}.
 	 * @param cacheSize
-	 * @param handlerThread
+	 * @param handlerThread no longer used, tiles are loaded on the {@code TileLoader}'s own threads.
+	 * @deprecated use {@link #TileLoader(int)} or {@link #TileLoader(int, int, int, int)}.
 	 */
+	@Deprecated
 	public TileLoader(int cacheSize, HandlerThread handlerThread) {
-		cache = new TileCache(cacheSize);
-		workerHandler = new LoaderHandler(this, handlerThread.getLooper());
-		callbackHandler = new Handler();
-		emptyTile = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
+		this(cacheSize);
+	}
+
+
+	/**
+	 * Creates a fixed size thread pool which runs tasks in priority order.
+	 * @param threads
+	 * @param name
+	 * @return
+	 */
+	private static ThreadPoolExecutor createExecutor(int threads, String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory(name), new ThreadPoolExecutor.DiscardPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
 	}
 
 
@@ -180,8 +627,15 @@ public class TileLoader {
 	 * @param tileSource
 	 */
 	public void setTileSource(TileSource tileSource) {
-		cache.evictAll();
+		synchronized (inFlight) {
+			sourceGeneration++;
+			ioExecutor.getQueue().clear();
+			decodeExecutor.getQueue().clear();
+			inFlight.clear();
+		}
 		this.tileSource = tileSource;
+		cache.evictAll();
+		dataCache.evictAll();
 	}
 
 
@@ -198,14 +652,262 @@ public class TileLoader {
 
 
 	/**
-	 * Requests that a tile be loaded into the cache on the background thread.
+	 * Requests that a visible tile be loaded into the cache on the background threads.
 	 * @param x tile x coordinate.
 	 * @param y tile y coordinate.
 	 * @param z tile z coordinate.
-	 * @param callback called one the tile has been loaded.
+	 * @param callback called once the tile has been loaded.
 	 */
 	public void requestTile(int x, int y, int z, Runnable callback) {
-		workerHandler.sendMessage(workerHandler.obtainMessage(x, y, z, callback));
+		requestTile(x, y, z, PRIORITY_VISIBLE, callback);
+	}
+
+
+	/**
+	 * Requests that a tile be loaded into the cache on the background threads.
+	 * <p>
+	 * If the tile is already queued, the request is merged with the queued one, raising its priority if
+	 * necessary. Callbacks are posted to the thread that created the {@code TileLoader}. Multiple pending
+	 * posts of the same callback are coalesced.
+	 * @param x tile x coordinate.
+	 * @param y tile y coordinate.
+	 * @param z tile z coordinate.
+	 * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}.
+	 * @param callback called once the tile has been loaded.
+	 */
+	public void requestTile(int x, int y, int z, int priority, Runnable callback) {
+		if (z < 0) {
+			return;
+		}
+
+		long key = TileKey.pack(x, y, z);
+		synchronized (inFlight) {
+			LoadTask task = inFlight.get(key);
+			if (task != null) {
+				task.merge(priority, callback);
+				return;
+			}
+
+			task = new LoadTask(x, y, z, key, priority, callback);
+			inFlight.put(key, task);
+
+			// skip the source if the encoded data is still cached
+			byte[] data = (tileSource instanceof RawTileSource) ? dataCache.get(key) : null;
+			if (data != null) {
+				task.data = data;
+				decodeExecutor.execute(task);
+			} else {
+				ioExecutor.execute(task);
+			}
+		}
+	}
+
+
+	/**
+	 * Requests that all tiles of a rectangle be loaded into the cache on the background threads.
+	 * <p>
+	 * Tiles which are already cached are skipped. For {@link BatchTileSource}s the remaining tiles are
+	 * fetched with a single query, otherwise this is equivalent to calling
+	 * {@link #requestTile(int, int, int, int, Runnable)} for each of them.
+	 * @param minX minimum tile x coordinate, inclusive.
+	 * @param minY minimum tile y coordinate, inclusive.
+	 * @param maxX maximum tile x coordinate, inclusive.
+	 * @param maxY maximum tile y coordinate, inclusive.
+	 * @param z tile z coordinate.
+	 * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}.
+	 * @param callback called once each tile has been loaded.
+	 */
+	public void requestTiles(int minX, int minY, int maxX, int maxY, int z, int priority, Runnable callback) {
+		if ((z < 0) || (minX > maxX) || (minY > maxY)) {
+			return;
+		}
+
+		if (!(tileSource instanceof BatchTileSource)) {
+			for (int y = minY; y <= maxY; y++) {
+				for (int x = minX; x <= maxX; x++) {
+					if (cache.get(x, y, z) == null) {
+						requestTile(x, y, z, priority, callback);
+					}
+				}
+			}
+			return;
+		}
+
+		int width = maxX - minX + 1;
+		LoadTask[] tasks = new LoadTask[width * (maxY - minY + 1)];
+		boolean batched = false;
+		synchronized (inFlight) {
+			for (int y = minY; y <= maxY; y++) {
+				for (int x = minX; x <= maxX; x++) {
+					batched |= queueBatchTile(x, y, z, priority, callback, tasks, (y - minY) * width + x - minX);
+				}
+			}
+			if (batched) {
+				executeBatch(new BatchTask(minX, minY, width, z, tasks, priority));
+			}
+		}
+	}
+
+
+	/**
+	 * Requests that a list of tiles be loaded into the cache on the background threads.
+	 * <p>
+	 * This behaves like {@link #requestTiles(int, int, int, int, int, int, Runnable)} for the bounds of the
+	 * tiles, except that only the listed tiles are loaded.
+	 * @param tiles the x and y coordinate of each tile, not wrapping around.
+	 * @param count the number of tiles.
+	 * @param z tile z coordinate.
+	 * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}.
+	 * @param callback called once each tile has been loaded.
+	 */
+	public void requestTiles(int[] tiles, int count, int z, int priority, Runnable callback) {
+		if ((z < 0) || (count <= 0)) {
+			return;
+		}
+
+		if (!(tileSource instanceof BatchTileSource)) {
+			for (int i = 0; i < count; i++) {
+				int x = tiles[i * 2];
+				int y = tiles[i * 2 + 1];
+				if (cache.get(x, y, z) == null) {
+					requestTile(x, y, z, priority, callback);
+				}
+			}
+			return;
+		}
+
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			minX = Math.min(minX, tiles[i * 2]);
+			minY = Math.min(minY, tiles[i * 2 + 1]);
+			maxX = Math.max(maxX, tiles[i * 2]);
+			maxY = Math.max(maxY, tiles[i * 2 + 1]);
+		}
+
+		int width = maxX - minX + 1;
+		LoadTask[] tasks = new LoadTask[width * (maxY - minY + 1)];
+		boolean batched = false;
+		synchronized (inFlight) {
+			for (int i = 0; i < count; i++) {
+				int x = tiles[i * 2];
+				int y = tiles[i * 2 + 1];
+				batched |= queueBatchTile(x, y, z, priority, callback, tasks, (y - minY) * width + x - minX);
+			}
+			if (batched) {
+				executeBatch(new BatchTask(minX, minY, width, z, tasks, priority));
+			}
+		}
+	}
+
+
+	/**
+	 * Registers a request for a tile which is to be fetched by a batch. Call while holding the
+	 * {@code inFlight} lock.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param priority
+	 * @param callback
+	 * @param tasks the tasks of the batch.
+	 * @param taskIndex the position of the tile in the batch.
+	 * @return <code>true</code> if the tile was added to the batch.
+	 */
+	private boolean queueBatchTile(int x, int y, int z, int priority, Runnable callback, LoadTask[] tasks,
+			int taskIndex) {
+		if (cache.get(x, y, z) != null) {
+			return false;
+		}
+
+		long key = TileKey.pack(x, y, z);
+		LoadTask task = inFlight.get(key);
+		if (task != null) {
+			task.merge(priority, callback);
+			return false;
+		}
+
+		task = new LoadTask(x, y, z, key, priority, callback);
+		inFlight.put(key, task);
+		byte[] data = dataCache.get(key);
+		if (data != null) {
+			task.data = data;
+			decodeExecutor.execute(task);
+			return false;
+		}
+		tasks[taskIndex] = task;
+		return true;
+	}
+
+
+	/**
+	 * Queues a batch, linking its tasks to it. Call while holding the {@code inFlight} lock.
+	 * @param batch
+	 */
+	private void executeBatch(BatchTask batch) {
+		for (LoadTask task : batch.tasks) {
+			if (task != null) {
+				task.batch = batch;
+				batch.remaining++;
+			}
+		}
+		ioExecutor.execute(batch);
+	}
+
+
+	/**
+	 * Marks the start of a new frame.
+	 * <p>
+	 * Queued requests that were made in neither this frame nor the previous one are assumed to be for
+	 * tiles that have scrolled out of view and are dropped, along with batches none of whose tiles are still
+	 * needed. Calling this method repeatedly with the same
+	 * {@code frameMillis}, e.g. from several layers, has no further effect.
+	 * @param frameMillis the milliseconds of the frame, see {@link android.os.SystemClock#uptimeMillis()}.
+	 */
+	public void beginFrame(long frameMillis) {
+		synchronized (inFlight) {
+			if (frameMillis == currentFrame) {
+				return;
+			}
+			previousFrame = currentFrame;
+			currentFrame = frameMillis;
+
+			Iterator<LoadTask> iterator = inFlight.values().iterator();
+			while (iterator.hasNext()) {
+				LoadTask task = iterator.next();
+				if (task.frame < previousFrame) {
+					task.cancelled = true;
+					iterator.remove();
+					if (!ioExecutor.remove(task)) {
+						decodeExecutor.remove(task);
+					}
+					if ((task.batch != null) && (--task.batch.remaining == 0)) {
+						ioExecutor.remove(task.batch);
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the number of tile requests that are queued or being loaded.
+	 * @return
+	 */
+	public int getPendingCount() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+
+
+	/**
+	 * Gets the {@link BitmapPool} used for decoding tiles, e.g. to inspect its hit and miss counts.
+	 * @return
+	 */
+	public BitmapPool getBitmapPool() {
+		return bitmapPool;
 	}
 
 
@@ -219,9 +921,59 @@ public class TileLoader {
 
 
 	/**
-	 * Clears all tile bitmaps from the cache.
+	 * Gets the number of times a tile bitmap was found in the cache.
+	 * @return
+	 */
+	public int getCacheHitCount() {
+		return cache.hitCount();
+	}
+
+
+	/**
+	 * Gets the number of times a tile bitmap was not found in the cache.
+	 * @return
+	 */
+	public int getCacheMissCount() {
+		return cache.missCount();
+	}
+
+
+	/**
+	 * Gets the number of times encoded tile data was found in the cache.
+	 * @return
+	 */
+	public int getDataCacheHitCount() {
+		return dataCache.hitCount();
+	}
+
+
+	/**
+	 * Gets the number of times encoded tile data was not found in the cache.
+	 * @return
+	 */
+	public int getDataCacheMissCount() {
+		return dataCache.missCount();
+	}
+
+
+	/**
+	 * Clears all tile bitmaps and encoded tile data from the caches.
 	 */
 	public void clearCache() {
 		cache.evictAll();
+		dataCache.evictAll();
+	}
+
+
+	/**
+	 * Stops all background threads. The {@code TileLoader} can't load tiles afterwards.
+	 */
+	public void shutdown() {
+		synchronized (inFlight) {
+			sourceGeneration++;
+			inFlight.clear();
+		}
+		ioExecutor.shutdownNow();
+		decodeExecutor.shutdownNow();
 	}
 }
\ No newline at end of file
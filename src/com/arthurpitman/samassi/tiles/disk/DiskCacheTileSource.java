@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2014 Arthur Pitman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arthurpitman.samassi.tiles.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.arthurpitman.samassi.Log;
+import com.arthurpitman.samassi.tiles.RawTileSource;
+import com.arthurpitman.samassi.tiles.TileKey;
+import com.arthurpitman.samassi.tiles.TileSource;
+
+
+/**
+ * {@link TileSource} decorator which persists all tiles fetched from another source on disk.
+ * <p>
+ * Tiles are appended to fixed-size segment files, which are memory-mapped for both reading and writing.
+ * Each record consists of the tile data's length, the tile's {@link TileKey} and the data itself. The length
+ * is written last, so a record interrupted by a crash reads as the end of the segment.
+ * <p>
+ * An in-memory index maps tile keys to segment offsets. It is rebuilt on start-up by scanning the record
+ * headers, so tiles seen in previous sessions load without touching the original source. Once the
+ * maximum number of segments is reached, the oldest segment is deleted.
+ * <p>
+ * Note: tiles the original source doesn't have are not cached.
+ */
+public class DiskCacheTileSource implements RawTileSource {
+
+	private static final String TAG = "DiskCacheTileSource";
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/** Size of a record header: data length and tile key. */
+	private static final int HEADER_SIZE = 12;
+
+	/** Default size of segment files. */
+	private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	/** Default maximum number of segment files. */
+	private static final int DEFAULT_MAX_SEGMENTS = 8;
+
+
+	/**
+	 * A memory-mapped segment file.
+	 */
+	private static class Segment {
+		private final int number;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+
+
+		/**
+		 * Maps the specified segment file, creating it if necessary.
+		 * @param number the segment's sequence number.
+		 * @param file
+		 * @param size the size of the segment file.
+		 * @throws IOException
+		 */
+		public Segment(int number, File file, int size) throws IOException {
+			this.number = number;
+			this.file = file;
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.setLength(size);
+				buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Compact open addressing hash map from tile keys to locations.
+	 * <p>
+	 * A location packs a segment number in the upper and an offset in the lower 32 bits, so locations in
+	 * deleted segments are exactly those below a threshold and can be dropped when the table is rebuilt.
+	 */
+	private static class LocationIndex {
+		private static final long EMPTY = -1;
+
+		private long[] keys;
+		private long[] locations;
+		private int size;
+
+
+		/**
+		 * Creates a new {@link LocationIndex}.
+		 */
+		public LocationIndex() {
+			allocate(1024);
+		}
+
+
+		/**
+		 * Gets the location of the specified key.
+		 * @param key
+		 * @return the location or -1 if not available.
+		 */
+		public long get(long key) {
+			int mask = keys.length - 1;
+			for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return locations[slot];
+				}
+			}
+			return -1;
+		}
+
+
+		/**
+		 * Puts the location of the specified key.
+		 * @param key
+		 * @param location
+		 * @param minLocation locations below this value are dropped if the table is rebuilt.
+		 */
+		public void put(long key, long location, long minLocation) {
+			if ((size + 1) * 2 > keys.length) {
+				rebuild(minLocation);
+			}
+
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while (keys[slot] != EMPTY) {
+				if (keys[slot] == key) {
+					locations[slot] = location;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			locations[slot] = location;
+			size++;
+		}
+
+
+		/**
+		 * Rebuilds the table, dropping stale locations and growing it if necessary.
+		 * @param minLocation
+		 */
+		private void rebuild(long minLocation) {
+			long[] oldKeys = keys;
+			long[] oldLocations = locations;
+
+			int live = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if ((oldKeys[i] != EMPTY) && (oldLocations[i] >= minLocation)) {
+					live++;
+				}
+			}
+
+			int capacity = oldKeys.length;
+			while ((live + 1) * 4 > capacity) {
+				capacity *= 2;
+			}
+			allocate(capacity);
+
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if ((oldKeys[i] != EMPTY) && (oldLocations[i] >= minLocation)) {
+					int slot = hash(oldKeys[i]) & mask;
+					while (keys[slot] != EMPTY) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					locations[slot] = oldLocations[i];
+					size++;
+				}
+			}
+		}
+
+
+		/**
+		 * Allocates an empty table of the specified capacity.
+		 * @param capacity a power of 2.
+		 */
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			locations = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+		}
+
+
+		/**
+		 * Hashes a key.
+		 * @param key
+		 * @return
+		 */
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32));
+		}
+	}
+
+
+	private final TileSource source;
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+
+	/** Segments in order of their sequence numbers, the last segment is written to. */
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+	private final LocationIndex index = new LocationIndex();
+
+
+	/**
+	 * Creates a new {@link DiskCacheTileSource} with default segment size and count.
+	 * @param source the original source.
+	 * @param directory directory for the segment files, which must not be shared with other sources.
+	 * @throws IOException
+	 */
+	public DiskCacheTileSource(TileSource source, File directory) throws IOException {
+		this(source, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+
+	/**
+	 * Creates a new {@link DiskCacheTileSource}.
+	 * @param source the original source.
+	 * @param directory directory for the segment files, which must not be shared with other sources.
+	 * @param segmentSize size of each segment file in bytes.
+	 * @param maxSegments maximum number of segment files.
+	 * @throws IOException
+	 */
+	public DiskCacheTileSource(TileSource source, File directory, int segmentSize, int maxSegments) throws IOException {
+		this.source = source;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(2, maxSegments);
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create " + directory);
+		}
+		openSegments();
+	}
+
+
+	/**
+	 * Maps existing segments and rebuilds the index.
+	 * @throws IOException
+	 */
+	private void openSegments() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String filename) {
+				return filename.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		int[] numbers = new int[files.length];
+		int count = 0;
+		for (File file : files) {
+			try {
+				numbers[count++] = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				count--;
+			}
+		}
+		Arrays.sort(numbers, 0, count);
+
+		// keep the newest segments only, they must be consecutive
+		int first = count;
+		while ((first > 0) && (count - first < maxSegments) && ((first == count) || (numbers[first - 1] == numbers[first] - 1))) {
+			first--;
+		}
+		for (int i = 0; i < first; i++) {
+			getSegmentFile(numbers[i]).delete();
+		}
+
+		for (int i = first; i < count; i++) {
+			Segment segment = new Segment(numbers[i], getSegmentFile(numbers[i]), segmentSize);
+			scanSegment(segment);
+			segments.add(segment);
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(new Segment(0, getSegmentFile(0), segmentSize));
+		}
+	}
+
+
+	/**
+	 * Adds all records of a segment to the index and determines its write position.
+	 * @param segment
+	 */
+	private void scanSegment(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + HEADER_SIZE <= segmentSize) {
+			int length = buffer.getInt(position);
+			if ((length <= 0) || (length > segmentSize - position - HEADER_SIZE)) {
+				break;
+			}
+			index.put(buffer.getLong(position + 4), toLocation(segment.number, position), 0);
+			position += HEADER_SIZE + length;
+		}
+		segment.writePosition = position;
+	}
+
+
+	@Override
+	public Bitmap getTile(int x, int y, int z) {
+		byte[] data = getCachedTileData(x, y, z);
+		if (data != null) {
+			return BitmapFactory.decodeByteArray(data, 0, data.length);
+		}
+
+		if (source instanceof RawTileSource) {
+			data = ((RawTileSource) source).getTileData(x, y, z);
+			if (data == null) {
+				return null;
+			}
+			store(TileKey.pack(x, y, z), data);
+			return BitmapFactory.decodeByteArray(data, 0, data.length);
+		}
+
+		Bitmap bitmap = source.getTile(x, y, z);
+		if (bitmap != null) {
+			store(TileKey.pack(x, y, z), compress(bitmap));
+		}
+		return bitmap;
+	}
+
+
+	@Override
+	public byte[] getTileData(int x, int y, int z) {
+		byte[] data = getCachedTileData(x, y, z);
+		if (data != null) {
+			return data;
+		}
+
+		if (source instanceof RawTileSource) {
+			data = ((RawTileSource) source).getTileData(x, y, z);
+		} else {
+			Bitmap bitmap = source.getTile(x, y, z);
+			if (bitmap != null) {
+				data = compress(bitmap);
+			}
+		}
+
+		if (data != null) {
+			store(TileKey.pack(x, y, z), data);
+		}
+		return data;
+	}
+
+
+	/**
+	 * Gets the data of a tile from the disk cache only.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the tile data, or <code>null</code> if it is not cached.
+	 */
+	public synchronized byte[] getCachedTileData(int x, int y, int z) {
+		if (segments.isEmpty()) {
+			return null;
+		}
+
+		long location = index.get(TileKey.pack(x, y, z));
+		int segmentIndex = getSegmentNumber(location) - segments.get(0).number;
+		if ((location < 0) || (segmentIndex < 0)) {
+			return null;
+		}
+
+		MappedByteBuffer buffer = segments.get(segmentIndex).buffer;
+		int position = getOffset(location);
+		byte[] data = new byte[buffer.getInt(position)];
+		buffer.position(position + HEADER_SIZE);
+		buffer.get(data);
+		return data;
+	}
+
+
+	/**
+	 * Appends a tile to the active segment, starting a new segment if necessary.
+	 * @param key
+	 * @param data
+	 */
+	private synchronized void store(long key, byte[] data) {
+		// a zero length marks the end of the records of a segment, so empty tiles are not cached
+		if (segments.isEmpty() || (data.length == 0) || (data.length > segmentSize - HEADER_SIZE)) {
+			return;
+		}
+
+		Segment segment = segments.get(segments.size() - 1);
+		if (segment.writePosition + HEADER_SIZE + data.length > segmentSize) {
+			try {
+				segment.buffer.force();
+				segment = startSegment(segment.number + 1);
+			} catch (IOException e) {
+				Log.e(TAG, "Can't create segment: " + e.getMessage());
+				return;
+			}
+		}
+
+		MappedByteBuffer buffer = segment.buffer;
+		int position = segment.writePosition;
+		buffer.putLong(position + 4, key);
+		buffer.position(position + HEADER_SIZE);
+		buffer.put(data);
+		buffer.putInt(position, data.length);
+		segment.writePosition = position + HEADER_SIZE + data.length;
+
+		index.put(key, toLocation(segment.number, position), toLocation(segments.get(0).number, 0));
+	}
+
+
+	/**
+	 * Starts a new segment, deleting the oldest segment if the maximum number of segments is reached.
+	 * @param number
+	 * @return the new segment.
+	 * @throws IOException
+	 */
+	private Segment startSegment(int number) throws IOException {
+		if (segments.size() >= maxSegments) {
+			Segment oldest = segments.remove(0);
+			if (!oldest.file.delete()) {
+				Log.w(TAG, "Can't delete " + oldest.file);
+			}
+		}
+
+		File file = getSegmentFile(number);
+		if (file.exists()) {
+			file.delete();
+		}
+		Segment segment = new Segment(number, file, segmentSize);
+		segments.add(segment);
+		return segment;
+	}
+
+
+	/**
+	 * Flushes written tiles to disk.
+	 */
+	public synchronized void flush() {
+		if (!segments.isEmpty()) {
+			segments.get(segments.size() - 1).buffer.force();
+		}
+	}
+
+
+	/**
+	 * Flushes written tiles to disk and closes the {@code DiskCacheTileSource}. The original source is not closed.
+	 */
+	public synchronized void close() {
+		flush();
+		segments.clear();
+	}
+
+
+	/**
+	 * Compresses a tile bitmap for storage.
+	 * @param bitmap
+	 * @return
+	 */
+	private static byte[] compress(Bitmap bitmap) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+		return stream.toByteArray();
+	}
+
+
+	/**
+	 * Gets the file of the specified segment.
+	 * @param number
+	 * @return
+	 */
+	private File getSegmentFile(int number) {
+		return new File(directory, String.format(Locale.US, "%08d", number) + SEGMENT_SUFFIX);
+	}
+
+
+	/**
+	 * Converts a segment number and offset to a location.
+	 * @param segmentNumber
+	 * @param offset
+	 * @return
+	 */
+	private static long toLocation(int segmentNumber, int offset) {
+		return ((long)segmentNumber << 32) | offset;
+	}
+
+
+	/**
+	 * Gets the segment number of a location.
+	 * @param location
+	 * @return
+	 */
+	private static int getSegmentNumber(long location) {
+		return (int)(location >>> 32);
+	}
+
+
+	/**
+	 * Gets the offset of a location.
+	 * @param location
+	 * @return
+	 */
+	private static int getOffset(long location) {
+		return (int)location;
+	}
+}
\ No newline at end of file
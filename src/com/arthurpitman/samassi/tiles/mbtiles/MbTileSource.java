@@ -24,13 +24,16 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import com.arthurpitman.samassi.GeoPoint;
-import com.arthurpitman.samassi.tiles.TileSource;
+import com.arthurpitman.samassi.tiles.BatchTileSource;
 
 
 /**
  * TileSource implementation for MbTiles (MapBox maps).
+ * <p>
+ * Tile queries use constant SQL, so they are compiled once and then served from the database's prepared
+ * statement cache. Results are read by column position rather than looking up column names.
  */
-public class MbTileSource implements TileSource {
+public class MbTileSource implements BatchTileSource {
 
 	private static final String METADATA_BOUNDS = "bounds";
 	private static final String METADATA_CENTER = "center";
@@ -42,6 +45,14 @@ public class MbTileSource implements TileSource {
 	private static final String METADATA_ATTRIBUTION = "attribution";
 	private static final String METADATA_TEMPLATE = "template";
 
+	/** Query for a single tile. Note: the MbTiles index is on zoom_level, tile_column, tile_row. */
+	private static final String TILE_QUERY =
+			"select tile_data from tiles where zoom_level=? and tile_column=? and tile_row=?";
+
+	/** Query for a range of tiles. */
+	private static final String TILE_RANGE_QUERY =
+			"select tile_column, tile_row, tile_data from tiles where zoom_level=? and tile_column between ? and ? and tile_row between ? and ?";
+
 	private SQLiteDatabase database;
 
 
@@ -56,26 +67,55 @@ public class MbTileSource implements TileSource {
 
 	@Override
 	public Bitmap getTile(int x, int y, int z) {
-		Bitmap result = null;
-		int maxTiles = 1 << z;
+		byte[] data = getTileData(x, y, z);
+		if (data == null) {
+			return null;
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length);
+	}
+
 
-		// convert coordinates to strings, note that y coordinate is flipped
-		String[] tileSpec = new String[3];
-		tileSpec[0] = Integer.toString(x);
-		tileSpec[1] = Integer.toString(maxTiles - y - 1);
-		tileSpec[2] = Integer.toString(z);
+	@Override
+	public byte[] getTileData(int x, int y, int z) {
+		byte[] result = null;
+		int maxTiles = 1 << z;
 
-		Cursor c = database.rawQuery("select tile_data from tiles where tile_column=? and tile_row=? and zoom_level=?", tileSpec);
+		// note that y coordinate is flipped
+		Cursor c = database.rawQuery(TILE_QUERY, new String[] {
+				Integer.toString(z),
+				Integer.toString(x),
+				Integer.toString(maxTiles - y - 1)});
 
 		if (c.moveToFirst()) {
-			byte[] blobBytes = c.getBlob(c.getColumnIndex("tile_data"));
-			result = BitmapFactory.decodeByteArray(blobBytes, 0, blobBytes.length);
+			result = c.getBlob(0);
 		}
 		c.close();
 		return result;
 	}
 
 
+	@Override
+	public void getTileData(int minX, int minY, int maxX, int maxY, int z, TileDataReceiver receiver) {
+		int maxTiles = 1 << z;
+
+		// note that y coordinate is flipped
+		Cursor c = database.rawQuery(TILE_RANGE_QUERY, new String[] {
+				Integer.toString(z),
+				Integer.toString(minX),
+				Integer.toString(maxX),
+				Integer.toString(maxTiles - maxY - 1),
+				Integer.toString(maxTiles - minY - 1)});
+
+		try {
+			while (c.moveToNext()) {
+				receiver.onTileData(c.getInt(0), maxTiles - c.getInt(1) - 1, z, c.getBlob(2));
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+
 	/**
 	 * Gets the {@link MbTileSourceMetadata} stored in this MbTileSource.
 	 * @return
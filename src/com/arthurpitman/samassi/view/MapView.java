@@ -581,6 +581,7 @@ public class MapView extends View implements TouchListener  {
 		projection.toMapPoint(x, y, lastTouchMapPoint);
 		startTouchMapX = lastTouchMapPoint[0];
 		startTouchMapY = lastTouchMapPoint[1];
+		projection.resetMotion();
 	}
 
 
@@ -595,6 +596,7 @@ public class MapView extends View implements TouchListener  {
 			projection.setMapFocusX((projection.getMapFocusX() - newTouchMapPoint[0] + lastTouchMapPoint[0]) & MapPoint.MASK);
 			projection.setMapFocusY((projection.getMapFocusY() - newTouchMapPoint[1] + lastTouchMapPoint[1]) & MapPoint.MASK);
 			projection.project();
+			projection.trackMotion(eventTime);
 			invalidate();
 
 			projection.toMapPoint(x, y, lastTouchMapPoint);
@@ -620,6 +622,7 @@ public class MapView extends View implements TouchListener  {
 		}
 
 		dragGestureActive = false;
+		projection.resetMotion();
 	}
 
 
@@ -634,6 +637,7 @@ public class MapView extends View implements TouchListener  {
 		startTouchZoomPoints = projection.getZoomPoints();
 		startTouchAngle = (float)(Math.atan2(yDiff, xDiff) * 180 / Math.PI);
 		startTouchMapRotation = projection.getMapRotation();
+		projection.resetMotion();
 
 		if (rotateGestureActive) {
 			snapRotationAnimator.cancel();
@@ -669,6 +673,7 @@ public class MapView extends View implements TouchListener  {
 			if (!gestureActive) {
 				gestureActive = true;
 				projection.focusOnPixel(startTouchPixelX, startTouchPixelY);
+				projection.resetMotion();
 			}
 
 			if (zoomGestureActive) {
@@ -684,6 +689,7 @@ public class MapView extends View implements TouchListener  {
 			}
 
 			projection.project();
+			projection.trackMotion(eventTime);
 			invalidate();
 		}
 	}
@@ -691,6 +697,8 @@ public class MapView extends View implements TouchListener  {
 
 	@Override
 	public void onDualTouchEnd(long eventTime) {
+		projection.resetMotion();
+
 		if (rotateGestureActive) {
 			float rotation = projection.getMapRotation();
 			float snapRotation = Math.round(rotation / 10) * 10;